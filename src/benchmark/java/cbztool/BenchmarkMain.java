@@ -0,0 +1,34 @@
+package cbztool;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with the GC profiler, so the allocation rate is reported
+ * next to the throughput. The results are also written to
+ * <code>jmh-result.json</code>.
+ * 
+ * <p>
+ * Usage: <code>BenchmarkMain [regexp]</code>, the regexp selects the
+ * benchmarks to run, all benchmarks are run by default.
+ * </p>
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+	ChainedOptionsBuilder options = new OptionsBuilder()
+		.include(args.length > 0 ? args[0] : "cbztool\\..*Benchmark")
+		.addProfiler(GCProfiler.class)
+		.resultFormat(ResultFormatType.JSON)
+		.result("jmh-result.json");
+	new Runner(options.build()).run();
+    }
+
+}
@@ -0,0 +1,78 @@
+package cbztool;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+
+import cbztool.bench.SyntheticCbz;
+
+/**
+ * Archives used by the benchmarks, the content depends only on the
+ * parameters.
+ */
+final class Corpus {
+
+    /** Page size of a small page, a phone scan. */
+    static final String SMALL = "SMALL";
+
+    /** Page size of a large page, a high resolution scan. */
+    static final String LARGE = "LARGE";
+
+    private Corpus() {
+    }
+
+    /**
+     * @param format
+     *            page format.
+     * @param pageSize
+     *            {@link #SMALL} or {@link #LARGE}.
+     * @param method
+     *            <code>STORED</code> or <code>DEFLATED</code>.
+     * @param pages
+     *            number of pages.
+     * @return generator for the archive.
+     */
+    static SyntheticCbz generator(SyntheticCbz.Format format,
+	    String pageSize, String method, int pages) {
+	SyntheticCbz cbz = new SyntheticCbz(42);
+	cbz.setFormat(format);
+	cbz.setPages(pages);
+	if (LARGE.equals(pageSize)) {
+	    cbz.setSize(2400, 3600);
+	} else {
+	    cbz.setSize(800, 1200);
+	}
+	cbz.setMethod("STORED".equals(method) ? ZipEntry.STORED
+		: ZipEntry.DEFLATED);
+	return cbz;
+    }
+
+    /**
+     * Write an archive to a temporary file.
+     * 
+     * @return the archive, delete it when done.
+     */
+    static Path archive(SyntheticCbz.Format format, String pageSize,
+	    String method, int pages) throws IOException {
+	Path file = Files.createTempFile("cbztool-bench", ".cbz");
+	generator(format, pageSize, method, pages).write(file);
+	return file;
+    }
+
+    /**
+     * Delete a file or a directory tree.
+     */
+    static void delete(Path path) throws IOException {
+	if (Files.isDirectory(path)) {
+	    try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+		for (Path child : children) {
+		    delete(child);
+		}
+	    }
+	}
+	Files.deleteIfExists(path);
+    }
+
+}
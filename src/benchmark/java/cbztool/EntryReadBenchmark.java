@@ -0,0 +1,95 @@
+package cbztool;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cbztool.bench.SyntheticCbz;
+import cbztool.share.BufferPool;
+import cbztool.share.PooledBuffer;
+
+/**
+ * Read all pages of an archive, one operation is one archive of 10 pages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntryReadBenchmark {
+
+    @Param({ "JPEG", "PNG" })
+    public SyntheticCbz.Format format;
+
+    @Param({ Corpus.SMALL, Corpus.LARGE })
+    public String pageSize;
+
+    @Param({ "STORED", "DEFLATED" })
+    public String method;
+
+    private Path archive;
+    private BufferPool pool;
+
+    @Setup
+    public void setup() throws IOException {
+	archive = Corpus.archive(format, pageSize, method, 10);
+	pool = new BufferPool(4, 64L * 1024 * 1024);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	Files.deleteIfExists(archive);
+    }
+
+    private ZipSource stream() throws IOException {
+	return ZipSource.stream(new BufferedInputStream(Files
+		.newInputStream(archive)));
+    }
+
+    @Benchmark
+    public void streamBytes(Blackhole bh) throws IOException {
+	try (ZipSource source = stream()) {
+	    for (byte[] page : ZipIterator.bytes(source)) {
+		bh.consume(page);
+	    }
+	}
+    }
+
+    @Benchmark
+    public void streamPooled(Blackhole bh) throws IOException {
+	try (ZipSource source = stream()) {
+	    for (PooledBuffer page : ZipIterator.buffers(source, pool)) {
+		bh.consume(page.array());
+		page.release();
+	    }
+	}
+    }
+
+    @Benchmark
+    public void filePooled(Blackhole bh) throws IOException {
+	try (ZipSource source = ZipSource.file(archive.toString())) {
+	    for (PooledBuffer page : ZipIterator.buffers(source, pool)) {
+		bh.consume(page.array());
+		page.release();
+	    }
+	}
+    }
+
+}
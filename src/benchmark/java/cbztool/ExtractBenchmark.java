@@ -0,0 +1,69 @@
+package cbztool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cbztool.bench.SyntheticCbz;
+
+/**
+ * Extract an archive of 10 large JPEG pages with {@link UnZip} at different
+ * buffer sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractBenchmark {
+
+    @Param({ "2048", "65536", "1048576" })
+    public int bufferSize;
+
+    @Param({ "STORED", "DEFLATED" })
+    public String method;
+
+    private Path archive;
+    private Path output;
+
+    @Setup
+    public void setup() throws IOException {
+	Logger.getLogger("").setLevel(Level.WARNING);
+	archive = Corpus.archive(SyntheticCbz.Format.JPEG, Corpus.LARGE,
+		method, 10);
+	output = Files.createTempDirectory("cbztool-bench");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	Files.deleteIfExists(archive);
+	Corpus.delete(output);
+    }
+
+    @Benchmark
+    public List<String> extract() throws Exception {
+	UnZip unzip = new UnZip(archive.toString(),
+		UnZip.ALL(output.toString()));
+	unzip.setBufferSize(bufferSize);
+	return unzip.doInBackground();
+    }
+
+}
@@ -0,0 +1,69 @@
+package cbztool;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cbztool.bench.SyntheticCbz;
+import cbztool.share.BufferPool;
+import cbztool.share.ProcessException;
+
+import com.lowagie.text.BadElementException;
+import com.lowagie.text.Image;
+
+/**
+ * Create iText images from page bytes, with and without the rotation and
+ * scaling done by {@link PdfTask#prepare}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+
+    @Param({ "JPEG", "PNG" })
+    public SyntheticCbz.Format format;
+
+    @Param({ Corpus.SMALL, Corpus.LARGE })
+    public String pageSize;
+
+    @Param({ "false", "true" })
+    public boolean landscape;
+
+    private byte[] page;
+    private PdfTask task;
+    private BufferPool pool;
+
+    @Setup
+    public void setup() throws IOException {
+	SyntheticCbz cbz = Corpus.generator(format, pageSize, "DEFLATED", 1);
+	cbz.setLandscapeEvery(landscape ? 1 : 0);
+	page = cbz.page(0);
+	task = new PdfTask("unused.cbz", "unused.pdf");
+	pool = new BufferPool(0, 0);
+    }
+
+    @Benchmark
+    public Image getInstance() throws BadElementException, IOException {
+	return Image.getInstance(page);
+    }
+
+    @Benchmark
+    public Image prepare() throws ProcessException {
+	return task.prepare(pool.wrap(page, page.length)).getImage();
+    }
+
+}
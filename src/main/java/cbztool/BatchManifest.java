@@ -0,0 +1,338 @@
+package cbztool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers what a batch has converted, so later runs can skip archives whose
+ * output is still valid.
+ * 
+ * <p>
+ * Each converted archive is recorded with its size, modification time, a
+ * CRC32 of the content, the settings used and the output it produced. Records
+ * are appended to the manifest file one line at a time as the conversions
+ * finish, so a crash loses at most the line being written, and a partial line
+ * is ignored when the manifest is loaded. {@link #close()} rewrites the file
+ * with one line per archive and moves it into place atomically.
+ * </p>
+ */
+public class BatchManifest {
+
+    private static final Logger LOG = Logger.getLogger(BatchManifest.class
+	    .getName());
+
+    /** Name of the manifest file in the output directory. */
+    public static final String FILE_NAME = ".cbztool-manifest";
+
+    private static final String HEADER = "# cbztool manifest 1";
+    private static final int FIELDS = 7;
+
+    /**
+     * What is known about a converted archive.
+     */
+    static class Record {
+	final String source;
+	final long size;
+	final long modified;
+	final long crc;
+	final String settings;
+	final String output;
+	final long outputSize;
+
+	Record(String source, long size, long modified, long crc,
+		String settings, String output, long outputSize) {
+	    this.source = source;
+	    this.size = size;
+	    this.modified = modified;
+	    this.crc = crc;
+	    this.settings = settings;
+	    this.output = output;
+	    this.outputSize = outputSize;
+	}
+
+	String toLine() {
+	    return escape(source) + '\t' + size + '\t' + modified + '\t'
+		    + Long.toHexString(crc) + '\t' + escape(settings) + '\t'
+		    + escape(output) + '\t' + outputSize;
+	}
+
+	static Record parse(String line) {
+	    String[] f = line.split("\t", -1);
+	    if (f.length != FIELDS) {
+		return null;
+	    }
+	    try {
+		return new Record(unescape(f[0]), Long.parseLong(f[1]),
+			Long.parseLong(f[2]), Long.parseLong(f[3], 16),
+			unescape(f[4]), unescape(f[5]), Long.parseLong(f[6]));
+	    } catch (NumberFormatException e) {
+		return null;
+	    }
+	}
+    }
+
+    private final Path file;
+    private final Path outputDirectory;
+    private final Map<String, Record> records = new HashMap<String, Record>();
+    /**
+     * Hashes of the changed archives found by
+     * {@link #isUpToDate(String, Path, Path, String)}.
+     */
+    private final Map<String, Record> hashed = new HashMap<String, Record>();
+    private Writer journal;
+
+    /**
+     * Load the manifest from an output directory, an empty manifest is used
+     * if there is none.
+     * 
+     * @param outputDirectory
+     *            the directory the batch writes to.
+     * @throws IOException
+     *             if the manifest can't be read.
+     */
+    public BatchManifest(Path outputDirectory) throws IOException {
+	this.outputDirectory = outputDirectory;
+	this.file = outputDirectory.resolve(FILE_NAME);
+	if (Files.exists(file)) {
+	    load();
+	}
+    }
+
+    private void load() throws IOException {
+	int ignored = 0;
+	try (BufferedReader reader = Files.newBufferedReader(file,
+		StandardCharsets.UTF_8)) {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		if (line.isEmpty() || line.startsWith("#")) {
+		    continue;
+		}
+		Record record = Record.parse(line);
+		if (record == null) {
+		    ignored++;
+		} else {
+		    records.put(record.source, record);
+		}
+	    }
+	}
+	if (ignored > 0) {
+	    LOG.warning("Ignored " + ignored + " broken lines in " + file);
+	}
+    }
+
+    /**
+     * Check if an archive was converted with the same settings, and the
+     * output is still there. The content is hashed only if the size matches
+     * and the modification time has changed, the hash of a changed archive is
+     * kept for {@link #crc(String, Path, long, long)}.
+     * 
+     * @param key
+     *            identifies the archive within the batch.
+     * @param source
+     *            the archive.
+     * @param output
+     *            the output the archive is converted to.
+     * @param settings
+     *            the settings the archive would be converted with.
+     * @return <code>true</code> if the archive can be skipped.
+     * @throws IOException
+     *             if the archive can't be read.
+     */
+    public boolean isUpToDate(String key, Path source, Path output,
+	    String settings) throws IOException {
+	Record record;
+	synchronized (records) {
+	    record = records.get(key);
+	}
+	if (record == null || !record.settings.equals(settings)
+		|| !record.output.equals(relativeOutput(output))
+		|| !Files.isRegularFile(output)
+		|| Files.size(output) != record.outputSize
+		|| Files.size(source) != record.size) {
+	    return false;
+	}
+	long modified = Files.getLastModifiedTime(source).toMillis();
+	if (modified == record.modified) {
+	    return true;
+	}
+	long crc = crc(source);
+	if (crc != record.crc) {
+	    synchronized (records) {
+		hashed.put(key, new Record(key, record.size, modified, crc,
+			settings, record.output, record.outputSize));
+	    }
+	    return false;
+	}
+	// touched but not changed, remember the new time.
+	append(new Record(key, record.size, modified, crc, settings,
+		record.output, record.outputSize));
+	return true;
+    }
+
+    /**
+     * Record a converted archive, safe to call from several threads. The
+     * record is written to disk before this method returns.
+     * 
+     * <p>
+     * The size, modification time and CRC must all be read before the
+     * conversion starts. An archive changed while it is converted then no
+     * longer matches its record, and is converted again by the next run.
+     * </p>
+     * 
+     * @param key
+     *            identifies the archive within the batch.
+     * @param size
+     *            the size of the archive when it was converted.
+     * @param modified
+     *            the modification time of the archive when it was converted,
+     *            in milliseconds.
+     * @param crc
+     *            the CRC32 of the archive when it was converted, see
+     *            {@link #crc(Path)}.
+     * @param output
+     *            the output created.
+     * @param settings
+     *            the settings used.
+     * @throws IOException
+     *             if the record can't be written.
+     */
+    public void record(String key, long size, long modified, long crc,
+	    Path output, String settings) throws IOException {
+	append(new Record(key, size, modified, crc, settings,
+		relativeOutput(output), Files.size(output)));
+    }
+
+    private void append(Record record) throws IOException {
+	synchronized (records) {
+	    if (journal == null) {
+		boolean created = !Files.exists(file);
+		journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+			StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		if (created) {
+		    journal.write(HEADER + "\n");
+		}
+	    }
+	    // a crash can leave a partial line, start on a line of its own.
+	    journal.write("\n" + record.toLine() + "\n");
+	    journal.flush();
+	    records.put(record.source, record);
+	}
+    }
+
+    /**
+     * Rewrite the manifest with one line per archive, the new file replaces
+     * the old atomically.
+     * 
+     * @throws IOException
+     *             if the manifest can't be written.
+     */
+    public void close() throws IOException {
+	synchronized (records) {
+	    if (journal != null) {
+		journal.close();
+		journal = null;
+	    }
+	    Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+	    try (BufferedWriter writer = Files.newBufferedWriter(tmp,
+		    StandardCharsets.UTF_8)) {
+		writer.write(HEADER + "\n");
+		for (Record record : records.values()) {
+		    writer.write(record.toLine() + "\n");
+		}
+	    }
+	    try {
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	    } catch (AtomicMoveNotSupportedException e) {
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+	    }
+	}
+    }
+
+    /**
+     * Get the CRC32 of an archive about to be converted, the hash computed by
+     * {@link #isUpToDate(String, Path, Path, String)} is used if the archive
+     * still has the same size and modification time, so a changed archive is
+     * read once.
+     * 
+     * @param key
+     *            identifies the archive within the batch.
+     * @param source
+     *            the archive.
+     * @param size
+     *            the size of the archive.
+     * @param modified
+     *            the modification time of the archive, in milliseconds.
+     * @return CRC32 of the archive content.
+     * @throws IOException
+     *             if the archive can't be read.
+     */
+    public long crc(String key, Path source, long size, long modified)
+	    throws IOException {
+	Record known;
+	synchronized (records) {
+	    known = hashed.remove(key);
+	}
+	if (known != null && known.size == size && known.modified == modified) {
+	    return known.crc;
+	}
+	return crc(source);
+    }
+
+    /**
+     * @param file
+     *            the file to hash.
+     * @return CRC32 of the file content.
+     * @throws IOException
+     *             if the file can't be read.
+     */
+    public static long crc(Path file) throws IOException {
+	CRC32 crc = new CRC32();
+	byte[] buffer = new byte[1 << 16];
+	try (InputStream input = Files.newInputStream(file)) {
+	    int n;
+	    while ((n = input.read(buffer)) != -1) {
+		crc.update(buffer, 0, n);
+	    }
+	}
+	return crc.getValue();
+    }
+
+    private String relativeOutput(Path output) {
+	return outputDirectory.toAbsolutePath().normalize()
+		.relativize(output.toAbsolutePath().normalize()).toString();
+    }
+
+    private static String escape(String value) {
+	return value.replace("\\", "\\\\").replace("\t", "\\t")
+		.replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+	StringBuilder s = new StringBuilder(value.length());
+	for (int i = 0; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    if (c == '\\' && i + 1 < value.length()) {
+		char n = value.charAt(++i);
+		s.append(n == 't' ? '\t' : n == 'n' ? '\n' : n);
+	    } else {
+		s.append(c);
+	    }
+	}
+	return s.toString();
+    }
+
+}
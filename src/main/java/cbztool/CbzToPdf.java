@@ -1,26 +1,9 @@
 package cbztool;
 
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Iterator;
-import java.util.logging.Logger;
-import java.util.zip.ZipInputStream;
-
 import javax.swing.SwingWorker;
 
-import cbztool.share.InitializationException;
-import cbztool.share.ProcessException;
-import cbztool.share.Task;
-
-import com.lowagie.text.BadElementException;
-import com.lowagie.text.Document;
-import com.lowagie.text.DocumentException;
-import com.lowagie.text.Element;
-import com.lowagie.text.Rectangle;
-import com.lowagie.text.pdf.PdfWriter;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskRunner;
 
 /**
  * Convert a Comic Cbz to a PDF file.
@@ -37,14 +20,15 @@ import com.lowagie.text.pdf.PdfWriter;
  * </pre>
  * 
  * </p>
+ * 
+ * <p>
+ * Runs a {@link PdfTask} on the worker thread, use the task with a
+ * {@link TaskEngine} to convert without Swing.
+ * </p>
  */
-public class CbzToPdf extends SwingWorker<String, byte[]> implements
-	Task<byte[], Document, String> {
+public class CbzToPdf extends SwingWorker<String, byte[]> {
 
-    private final String cbzFile;
-    private final String pdfFile;
-    private final Rectangle pageSize;
-    private ZipInputStream zipContext;
+    private final PdfTask task;
 
     /**
      * Create a pdf from a comic cbz file, a zip file containing only images.
@@ -55,7 +39,7 @@ public class CbzToPdf extends SwingWorker<String, byte[]> implements
      *            the path to the PDF that will be created.
      */
     public CbzToPdf(String cbzFile, String pdfFile) {
-	this(cbzFile, pdfFile, 637.28F, 835.7F);
+	this(cbzFile, pdfFile, new PdfConfig());
     }
 
     /**
@@ -71,107 +55,56 @@ public class CbzToPdf extends SwingWorker<String, byte[]> implements
      *            PDF page height
      */
     public CbzToPdf(String cbzFile, String pdfFile, float w, float h) {
-	this.cbzFile = cbzFile;
-	this.pdfFile = pdfFile;
-	this.pageSize = new Rectangle(w, h);
-    }
-
-    /**
-     * Create PDF from CBZ file.
-     */
-    @Override
-    protected String doInBackground() throws Exception {
-
-	Document document = prepareContext();
-	Iterator<byte[]> images = iterate(document);
-	while (images.hasNext() && !isCancelled()) {
-	    process(images.next(), document);
-	    setProgress(getProgress() + 1);
-	}
-
-	endContext(document);
-	Logger.getLogger(getClass().getName())
-		.finest("Created pdf: " + pdfFile);
-	return pdfFile;
-    }
-
-    @Override
-    public Document prepareContext() throws InitializationException {
-	try {
-	    zipContext = new ZipInputStream(new FileInputStream(cbzFile));
-	} catch (FileNotFoundException e1) {
-	    throw new InitializationException("Unable to open zip archive: "
-		    + cbzFile, e1);
-	}
-	Document document = new Document(pageSize);
-	try {
-	    PdfWriter.getInstance(document, new BufferedOutputStream(
-		    new FileOutputStream(pdfFile)));
-	} catch (FileNotFoundException e) {
-	    throw new InitializationException("Unable to create output: "
-		    + pdfFile, e);
-	} catch (DocumentException e) {
-	    throw new InitializationException("Unable to initialize PdfWriter",
-		    e);
-	}
-	document.setMarginMirroring(true);
-	document.setMargins(0, 0, 0, 0);
-
-	document.open();
-	return document;
+	this(cbzFile, pdfFile, pageSize(w, h));
     }
 
     /**
-     * Add image to PDF document.
+     * Create a pdf from a comic cbz file, a zip file containing only images.
      * 
-     * @param value
-     *            the image path.
-     * @param context
-     *            the PDF document.
+     * @param cbzFile
+     *            the comic file path to create pdf from.
+     * @param pdfFile
+     *            the path to the PDF that will be created.
+     * @param config
+     *            the conversion settings.
      */
-    @Override
-    public String process(byte[] value, Document context)
-	    throws ProcessException {
-
-	try {
-	    com.lowagie.text.Image pdfImage = com.lowagie.text.Image
-		    .getInstance(value);
-	    pdfImage.setAlignment(Element.ALIGN_CENTER);
-
-	    if (pdfImage.getWidth() > pdfImage.getHeight()) {
-		pdfImage.setRotationDegrees(90);
-		pdfImage.rotate();
-	    }
+    public CbzToPdf(String cbzFile, String pdfFile, PdfConfig config) {
+	this.task = new PdfTask(cbzFile, pdfFile, config);
+    }
 
-	    pdfImage.scaleToFit(637.28f, 835.7f);
-	    context.add(pdfImage);
-	    context.newPage();
-	} catch (BadElementException e) {
-	    throw new ProcessException("Unable to add image to pdf", e);
-	} catch (IOException e) {
-	    throw new ProcessException("Unable to add image to pdf", e);
-	} catch (DocumentException e) {
-	    throw new ProcessException("Unable to add image to pdf", e);
-	}
-	return null;
+    private static PdfConfig pageSize(float w, float h) {
+	PdfConfig config = new PdfConfig();
+	config.setPageSize(w, h);
+	return config;
     }
 
     /**
-     * Clean up the task, close all open stream.
+     * @return the task doing the conversion.
      */
-    public void endContext(Document context) {
-	context.close();
-	try {
-	    zipContext.close();
-	} catch (IOException e) {
-	}
+    public PdfTask getTask() {
+	return task;
     }
 
     /**
-     * Iterator for retrieve the image bytes in the ZIP.
+     * Create PDF from CBZ file.
      */
-    public Iterator<byte[]> iterate(Document context) {
-	return ZipIterator.bytes(zipContext);
+    @Override
+    protected String doInBackground() throws Exception {
+	task.submit(TaskEngine.currentThread(),
+		new TaskRunner.Listener<String>() {
+		    private int pages;
+
+		    @Override
+		    public boolean isCancelled() {
+			return CbzToPdf.this.isCancelled();
+		    }
+
+		    @Override
+		    public void processed(String result) {
+			setProgress(Math.min(100, ++pages));
+		    }
+		}).join();
+	return task.getPdfFile();
     }
 
 }
@@ -0,0 +1,378 @@
+package cbztool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+import cbztool.share.OutputConfig;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskFuture;
+import cbztool.share.TaskRunner;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfSmartCopy;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+/**
+ * Convert one large Cbz to a PDF on several cores, by building contiguous
+ * chunks of pages as separate PDF files at once and merging them in order.
+ * 
+ * <p>
+ * A {@link PdfTask} adds its pages to the PDF from a single thread, so a
+ * single archive is bound by that thread however many workers decode the
+ * images. Here each chunk is a {@link PdfTask} for a page range, see
+ * {@link PdfConfig#setPageRange(int, int)}, running on its own thread, the
+ * decode workers and the in-flight byte limit of the settings are shared
+ * between the chunks. The chunks are then copied page by page into the
+ * output with {@link PdfCopy}, reading each chunk from its file instead of
+ * loading it, and removed.
+ * </p>
+ * 
+ * <p>
+ * The chunks read the archive by random access, in the order a
+ * {@link PdfTask} with the same settings reads it, so the result has the same
+ * pages in the same order: as they were packed, or in natural name order with
+ * {@link PdfConfig#setRandomAccess(boolean)} or a selection. When images are
+ * deduplicated the merge uses {@link PdfSmartCopy}, an image repeated in
+ * several chunks is then still stored once.
+ * </p>
+ * 
+ * <p>
+ * The conversion can be resumed. Each chunk is moved into place once it is
+ * complete, see {@link PdfTask}, and recorded in a journal next to the
+ * output, {@link #journalFile()}. A conversion that is stopped or fails keeps
+ * the completed chunks and the journal, and a later conversion of the same
+ * archive with the same settings only builds the missing chunks. The output
+ * is merged into a part file and moved into place, the chunks and the
+ * journal are removed once it is.
+ * </p>
+ * 
+ * <pre>
+ * TaskEngine engine = TaskEngine.platform(4);
+ * new ChunkedPdf(&quot;omnibus.cbz&quot;, &quot;omnibus.pdf&quot;, config, 4).convert(engine,
+ *      null);
+ * </pre>
+ */
+public class ChunkedPdf {
+
+    private static final Logger LOG = Logger.getLogger(ChunkedPdf.class
+	    .getName());
+
+    /** Fewest pages worth a chunk of its own. */
+    private static final int MIN_CHUNK_PAGES = 16;
+
+    private static final String JOURNAL_HEADER = "# cbztool chunks 1";
+
+    private final String cbzFile;
+    private final String pdfFile;
+    private final PdfConfig config;
+    private final int chunks;
+
+    /**
+     * @param cbzFile
+     *            the comic file or directory of page images.
+     * @param pdfFile
+     *            the path to the PDF that will be created.
+     * @param config
+     *            the conversion settings, the page range is ignored.
+     * @param chunks
+     *            number of chunks built at once, usually the number of
+     *            cores.
+     */
+    public ChunkedPdf(String cbzFile, String pdfFile, PdfConfig config,
+	    int chunks) {
+	this.cbzFile = cbzFile;
+	this.pdfFile = pdfFile;
+	this.config = config;
+	this.chunks = Math.max(1, chunks);
+    }
+
+    /**
+     * @param index
+     *            the chunk index.
+     * @return the file a chunk is built in, next to the output.
+     */
+    public File chunkFile(int index) {
+	return new File(pdfFile + ".chunk" + index);
+    }
+
+    /**
+     * @return the journal of the completed chunks, next to the output.
+     */
+    public File journalFile() {
+	return new File(pdfFile + ".journal");
+    }
+
+    /**
+     * Build the chunks and merge them, a failed or interrupted conversion
+     * leaves no partial output, only the completed chunks and their journal.
+     * 
+     * @param engine
+     *            the engine to build the chunks on, needs a thread per chunk
+     *            to build them all at once.
+     * @param listener
+     *            gets each page added to a chunk, may be <code>null</code>.
+     *            Called from the chunk threads, so pages of different chunks
+     *            are interleaved. Cancelling it stops all chunks.
+     * @return the number of pages.
+     * @throws CancellationException
+     *             if the listener cancelled the conversion.
+     * @throws Exception
+     *             if a chunk fails, it is the failure of the chunk, or if
+     *             the merge fails.
+     */
+    public int convert(TaskEngine engine,
+	    final TaskRunner.Listener<String> listener) throws Exception {
+	int pages = countPages();
+	int count = Math.max(1,
+		Math.min(chunks, (pages + MIN_CHUNK_PAGES - 1) / MIN_CHUNK_PAGES));
+	int size = (pages + count - 1) / Math.max(1, count);
+
+	TaskRunner.Listener<String> shared = listener == null ? null
+		: new TaskRunner.Listener<String>() {
+		    @Override
+		    public boolean isCancelled() {
+			return listener.isCancelled();
+		    }
+
+		    @Override
+		    public void processed(String result) {
+			synchronized (this) {
+			    listener.processed(result);
+			}
+		    }
+		};
+
+	String plan = plan(pages, count, size);
+	Set<Integer> completed = resume(plan, count);
+	final Writer journal = new OutputStreamWriter(new FileOutputStream(
+		journalFile(), true), StandardCharsets.UTF_8);
+	if (completed.isEmpty()) {
+	    journal.write(JOURNAL_HEADER + "\n" + plan + "\n");
+	    journal.flush();
+	}
+	int building = count - completed.size();
+
+	List<TaskFuture<String>> runs = new ArrayList<TaskFuture<String>>();
+	boolean done = false;
+	try {
+	    for (int i = 0; i < count; i++) {
+		if (completed.contains(i)) {
+		    continue;
+		}
+		PdfConfig chunk = new PdfConfig(config);
+		chunk.setPageRange(i * size, size);
+		chunk.setWorkers(Math.max(1, config.getWorkers() / building));
+		chunk.setWindow(2 * chunk.getWorkers());
+		if (config.getMaxInFlightBytes() > 0) {
+		    chunk.setMaxInFlightBytes(Math.max(1,
+			    config.getMaxInFlightBytes() / building));
+		}
+		final int index = i;
+		runs.add(new PdfTask(cbzFile, chunkFile(i).getPath(), chunk) {
+		    @Override
+		    public void endContext(Document context) {
+			super.endContext(context);
+			if (isCommitted()) {
+			    record(journal, index);
+			}
+		    }
+		}.submit(engine, shared));
+	    }
+	    if (!completed.isEmpty()) {
+		LOG.info(pdfFile + ": resuming, " + completed.size() + " of "
+			+ count + " chunks already built");
+	    }
+	    try {
+		for (TaskFuture<String> run : runs) {
+		    run.join();
+		}
+	    } catch (Exception e) {
+		if (!isCancelled(listener)) {
+		    throw e;
+		}
+		// a chunk failing while the JVM stops is part of the cancel.
+	    }
+	    if (isCancelled(listener)) {
+		// the chunks stopped early, don't merge partial chunks.
+		throw new CancellationException("Cancelled: " + cbzFile);
+	    }
+	    merge(count);
+	    done = true;
+	    LOG.fine(pdfFile + ": " + pages + " pages built in " + count
+		    + " chunks");
+	    return pages;
+	} finally {
+	    for (TaskFuture<String> run : runs) {
+		run.cancel(true);
+	    }
+	    for (TaskFuture<String> run : runs) {
+		run.awaitFinished();
+	    }
+	    journal.close();
+	    if (done) {
+		for (int i = 0; i < count; i++) {
+		    chunkFile(i).delete();
+		}
+		journalFile().delete();
+	    }
+	}
+    }
+
+    /**
+     * @return the line telling which conversion the journal is for, the
+     *         chunks can only be reused by the same conversion.
+     */
+    private String plan(int pages, int count, int size) {
+	File source = new File(cbzFile).getAbsoluteFile();
+	return "plan\t" + source.getPath() + "\t" + source.length() + "\t"
+		+ source.lastModified() + "\t" + config.getSettings() + "\t"
+		+ pages + "\t" + count + "\t" + size;
+    }
+
+    /**
+     * Read the journal of an earlier conversion, chunks of another conversion
+     * are removed.
+     * 
+     * @return indexes of the chunks already built.
+     */
+    private Set<Integer> resume(String plan, int count) throws IOException {
+	Set<Integer> completed = new TreeSet<Integer>();
+	File journal = journalFile();
+	if (journal.isFile()) {
+	    List<String> lines = Files.readAllLines(journal.toPath(),
+		    StandardCharsets.UTF_8);
+	    if (lines.size() >= 2 && lines.get(0).equals(JOURNAL_HEADER)
+		    && lines.get(1).equals(plan)) {
+		for (String line : lines.subList(2, lines.size())) {
+		    String[] fields = line.split("\t");
+		    // a partial last line is ignored, its chunk is built again.
+		    if (fields.length == 3 && fields[0].equals("chunk")) {
+			try {
+			    int index = Integer.parseInt(fields[1]);
+			    if (index < count
+				    && chunkFile(index).length() == Long
+					    .parseLong(fields[2])) {
+				completed.add(index);
+			    }
+			} catch (NumberFormatException e) {
+			    LOG.fine("Ignored journal line: " + line);
+			}
+		    }
+		}
+	    }
+	}
+	if (completed.isEmpty()) {
+	    journal.delete();
+	}
+	for (int i = 0; i < count; i++) {
+	    if (!completed.contains(i)) {
+		chunkFile(i).delete();
+	    }
+	}
+	return completed;
+    }
+
+    /**
+     * Record a completed chunk, called from the chunk threads.
+     */
+    private void record(Writer journal, int index) {
+	synchronized (journal) {
+	    try {
+		// a crash can leave a partial line, start on a line of its own.
+		journal.write("\nchunk\t" + index + "\t"
+			+ chunkFile(index).length() + "\n");
+		journal.flush();
+	    } catch (IOException e) {
+		LOG.warning("Unable to record chunk " + index + " of "
+			+ pdfFile + ": " + e.getMessage());
+	    }
+	}
+    }
+
+    private static boolean isCancelled(TaskRunner.Listener<?> listener) {
+	return listener != null && listener.isCancelled();
+    }
+
+    /**
+     * @return number of pages in the archive, only the selected pages if the
+     *         settings has a selection.
+     */
+    private int countPages() throws IOException {
+	OutputConfig<ZipEntry> selection = config.getSelection();
+	ZipSource source = new File(cbzFile).isDirectory() ? ZipSource
+		.directory(cbzFile) : ZipSource.file(cbzFile);
+	try {
+	    Iterator<ZipEntry> entries = source.entries();
+	    if (selection != null) {
+		entries = selection.select(entries);
+	    }
+	    int pages = 0;
+	    while (entries.hasNext()) {
+		if (!entries.next().isDirectory()) {
+		    pages++;
+		}
+	    }
+	    return pages;
+	} finally {
+	    source.close();
+	}
+    }
+
+    /**
+     * Copy the pages of the chunks in order into the output.
+     */
+    private void merge(int count) throws IOException, DocumentException {
+	File part = PdfTask.partFile(pdfFile);
+	try {
+	    merge(count, part);
+	    PdfTask.moveIntoPlace(part, new File(pdfFile));
+	} finally {
+	    part.delete();
+	}
+    }
+
+    private void merge(int count, File part) throws IOException,
+	    DocumentException {
+	Document document = new Document();
+	PdfCopy copy = config.getDedupImages() > 0 ? new PdfSmartCopy(
+		document, new BufferedOutputStream(new FileOutputStream(part),
+			1024 * 1024)) : new PdfCopy(document,
+		new BufferedOutputStream(new FileOutputStream(part),
+			1024 * 1024));
+	document.open();
+	try {
+	    for (int i = 0; i < count; i++) {
+		PdfReader reader = new PdfReader(new RandomAccessFileOrArray(
+			chunkFile(i).getPath()), null);
+		try {
+		    for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+			copy.addPage(copy.getImportedPage(reader, page));
+		    }
+		    copy.freeReader(reader);
+		} finally {
+		    reader.close();
+		}
+	    }
+	} finally {
+	    document.close();
+	}
+    }
+
+}
@@ -0,0 +1,159 @@
+package cbztool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import cbztool.share.NaturalOrder;
+
+/**
+ * The page images in a directory, read as if they were the entries of an
+ * archive, so an extracted comic converts the same way as a Cbz.
+ * 
+ * <p>
+ * The images directly in the directory are listed once when the source is
+ * created, in natural name order. An image is read through a memory mapped
+ * region of its file, the bytes are copied once from the mapping into the
+ * caller's buffer instead of through the heap buffers of a
+ * {@link java.io.FileInputStream}. Any image can be opened at any time, from
+ * several threads.
+ * </p>
+ */
+public class DirectorySource extends ZipSource {
+
+    private static final Comparator<String> ORDER = new NaturalOrder();
+
+    private final Path directory;
+    private final List<ZipEntry> entries;
+
+    /**
+     * @param directory
+     *            the directory holding the page images.
+     * @throws IOException
+     *             if the directory can't be listed.
+     */
+    public DirectorySource(String directory) throws IOException {
+	this.directory = Paths.get(directory);
+	List<ZipEntry> list = new ArrayList<ZipEntry>();
+	try (DirectoryStream<Path> stream = Files
+		.newDirectoryStream(this.directory)) {
+	    for (Path file : stream) {
+		BasicFileAttributes attributes = Files.readAttributes(file,
+			BasicFileAttributes.class);
+		String name = file.getFileName().toString();
+		if (attributes.isRegularFile() && ImageProbe.isImageName(name)) {
+		    ZipEntry entry = new ZipEntry(name);
+		    entry.setSize(attributes.size());
+		    entry.setTime(attributes.lastModifiedTime().toMillis());
+		    list.add(entry);
+		}
+	    }
+	}
+	Collections.sort(list, new Comparator<ZipEntry>() {
+	    @Override
+	    public int compare(ZipEntry a, ZipEntry b) {
+		return ORDER.compare(a.getName(), b.getName());
+	    }
+	});
+	this.entries = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return all images, in natural name order.
+     */
+    public List<ZipEntry> list() {
+	return entries;
+    }
+
+    @Override
+    public Iterator<ZipEntry> entries() {
+	return entries.iterator();
+    }
+
+    /**
+     * Map an image file.
+     * 
+     * @param entry
+     *            an entry from this source.
+     * @return the content of the image, read from the mapping.
+     */
+    @Override
+    public InputStream open(ZipEntry entry) throws IOException {
+	try (FileChannel channel = FileChannel.open(
+		directory.resolve(entry.getName()), StandardOpenOption.READ)) {
+	    long size = channel.size();
+	    if (size > Integer.MAX_VALUE) {
+		throw new IOException("Image too large: " + entry.getName());
+	    }
+	    // the mapping stays valid after the channel is closed.
+	    return new MappedInputStream(channel.map(
+		    FileChannel.MapMode.READ_ONLY, 0, size));
+	}
+    }
+
+    @Override
+    public void close() {
+	// nothing held open, each mapping is released with its stream.
+    }
+
+    /**
+     * Read a mapped region.
+     */
+    private static class MappedInputStream extends InputStream {
+	private ByteBuffer buffer;
+
+	MappedInputStream(MappedByteBuffer buffer) {
+	    this.buffer = buffer;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if (len == 0) {
+		return 0;
+	    }
+	    if (!buffer.hasRemaining()) {
+		return -1;
+	    }
+	    int count = Math.min(len, buffer.remaining());
+	    buffer.get(b, off, count);
+	    return count;
+	}
+
+	@Override
+	public long skip(long n) {
+	    int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+	    buffer.position(buffer.position() + count);
+	    return count;
+	}
+
+	@Override
+	public int available() {
+	    return buffer.remaining();
+	}
+
+	@Override
+	public void close() {
+	    buffer = ByteBuffer.allocate(0);
+	}
+    }
+
+}
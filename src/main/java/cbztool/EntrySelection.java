@@ -0,0 +1,338 @@
+package cbztool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+
+import cbztool.share.OutputConfig;
+
+/**
+ * Select entries of an archive by page number or by name, from the listing of
+ * the archive.
+ *
+ * <p>
+ * Pages are the image entries in the order the archive is read, numbered from
+ * 1, a {@link ZipFileSource} reads them in natural name order. Ranges are
+ * written <code>10-20</code>, <code>5</code>, <code>30-</code> for the pages
+ * from 30 to the end, and can be joined with commas, <code>1,3,5-7</code>.
+ * Names are matched with a glob, <code>*</code> and <code>?</code> don't cross
+ * a <code>/</code> and <code>**</code> does, a glob without <code>/</code> is
+ * matched against the last part of the name only. A regular expression is
+ * searched for in the whole name.
+ * </p>
+ *
+ * <p>
+ * The selection is evaluated by {@link #select(Iterator)} against the entries
+ * listed from the central directory, so rejected entries are never read or
+ * inflated, and the listing stops after the last page of the ranges. Pulling
+ * the cover from a large archive only reads the cover:
+ * </p>
+ *
+ * <pre>
+ * new UnZip(&quot;omnibus.cbz&quot;, EntrySelection.pages(&quot;cover/&quot;, &quot;1&quot;)).execute();
+ * </pre>
+ */
+public class EntrySelection extends OutputConfig<ZipEntry> {
+
+    /** Last page of a range open at the end. */
+    private static final int LAST = Integer.MAX_VALUE;
+
+    private final Pattern glob;
+    private final Pattern regex;
+    private final int[] ranges;
+    private final String description;
+
+    private EntrySelection(String outputDirectory, Pattern glob,
+	    Pattern regex, int[] ranges, String description) {
+	super(outputDirectory);
+	this.glob = glob;
+	this.regex = regex;
+	this.ranges = ranges;
+	this.description = description;
+    }
+
+    /**
+     * @param outputDirectory
+     *            the directory to extract to.
+     * @param ranges
+     *            the pages to select, for example <code>10-20</code>.
+     * @return selection of the pages in the ranges.
+     * @throws IllegalArgumentException
+     *             if the ranges can't be parsed.
+     */
+    public static EntrySelection pages(String outputDirectory, String ranges) {
+	return of(outputDirectory, ranges, null, null);
+    }
+
+    /**
+     * @param outputDirectory
+     *            the directory to extract to.
+     * @param glob
+     *            the names to select, for example <code>*.jpg</code>, matched
+     *            ignoring case.
+     * @return selection of the entries with a matching name.
+     */
+    public static EntrySelection glob(String outputDirectory, String glob) {
+	return of(outputDirectory, null, glob, null);
+    }
+
+    /**
+     * @param outputDirectory
+     *            the directory to extract to.
+     * @param regex
+     *            regular expression found in the names to select.
+     * @return selection of the entries with a matching name.
+     * @throws java.util.regex.PatternSyntaxException
+     *             if the expression is not valid.
+     */
+    public static EntrySelection regex(String outputDirectory, String regex) {
+	return of(outputDirectory, null, null, regex);
+    }
+
+    /**
+     * Combine a page range with name patterns, the pages are then counted
+     * among the entries with a matching name.
+     *
+     * @param outputDirectory
+     *            the directory to extract to.
+     * @param ranges
+     *            the pages to select, <code>null</code> for all.
+     * @param glob
+     *            glob the names must match, <code>null</code> for any name.
+     * @param regex
+     *            regular expression found in the names, <code>null</code> for
+     *            any name.
+     * @return the selection, <code>null</code> if all arguments are
+     *         <code>null</code>.
+     */
+    public static EntrySelection of(String outputDirectory, String ranges,
+	    String glob, String regex) {
+	if (ranges == null && glob == null && regex == null) {
+	    return null;
+	}
+	List<String> parts = new ArrayList<String>();
+	int[] parsed = null;
+	if (ranges != null) {
+	    parsed = parseRanges(ranges);
+	    parts.add("pages=" + ranges);
+	}
+	Pattern globPattern = null;
+	if (glob != null) {
+	    globPattern = Pattern.compile(globToRegex(glob),
+		    Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	    parts.add("glob=" + glob);
+	}
+	Pattern regexPattern = null;
+	if (regex != null) {
+	    regexPattern = Pattern.compile(regex);
+	    parts.add("regex=" + regex);
+	}
+
+	StringBuilder description = new StringBuilder();
+	for (String part : parts) {
+	    description.append(description.length() == 0 ? "" : ",").append(
+		    part);
+	}
+	return new EntrySelection(outputDirectory, globPattern, regexPattern,
+		parsed, description.toString());
+    }
+
+    /**
+     * @param ranges
+     *            ranges like <code>1,3,5-7,30-</code>.
+     * @return pairs of first and last page, from 1.
+     */
+    static int[] parseRanges(String ranges) {
+	String[] parts = ranges.split(",");
+	int[] parsed = new int[2 * parts.length];
+	for (int i = 0; i < parts.length; i++) {
+	    String part = parts[i].trim();
+	    int dash = part.indexOf('-');
+	    try {
+		if (dash < 0) {
+		    parsed[2 * i] = Integer.parseInt(part);
+		    parsed[2 * i + 1] = parsed[2 * i];
+		} else {
+		    parsed[2 * i] = dash == 0 ? 1 : Integer.parseInt(part
+			    .substring(0, dash).trim());
+		    String last = part.substring(dash + 1).trim();
+		    parsed[2 * i + 1] = last.isEmpty() ? LAST : Integer
+			    .parseInt(last);
+		}
+	    } catch (NumberFormatException e) {
+		throw new IllegalArgumentException("Not a page range: " + part,
+			e);
+	    }
+	    if (parsed[2 * i] < 1 || parsed[2 * i + 1] < parsed[2 * i]) {
+		throw new IllegalArgumentException("Not a page range: " + part);
+	    }
+	}
+	return parsed;
+    }
+
+    /**
+     * @param glob
+     *            a glob.
+     * @return a regular expression matching the whole name, or its last part
+     *         if the glob has no <code>/</code>.
+     */
+    static String globToRegex(String glob) {
+	StringBuilder regex = new StringBuilder(
+		glob.indexOf('/') < 0 ? "(?:.*/)?" : "");
+	int braces = 0;
+	for (int i = 0; i < glob.length(); i++) {
+	    char c = glob.charAt(i);
+	    switch (c) {
+	    case '*':
+		if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+		    regex.append(".*");
+		    i++;
+		} else {
+		    regex.append("[^/]*");
+		}
+		break;
+	    case '?':
+		regex.append("[^/]");
+		break;
+	    case '[':
+		int end = glob.indexOf(']', i + 1);
+		if (end < 0) {
+		    regex.append("\\[");
+		} else {
+		    String set = glob.substring(i + 1, end);
+		    if (set.startsWith("!")) {
+			set = "^" + set.substring(1);
+		    }
+		    regex.append('[').append(set.replace("\\", "\\\\"))
+			    .append(']');
+		    i = end;
+		}
+		break;
+	    case '{':
+		braces++;
+		regex.append("(?:");
+		break;
+	    case '}':
+		if (braces > 0) {
+		    braces--;
+		    regex.append(')');
+		} else {
+		    regex.append("\\}");
+		}
+		break;
+	    case ',':
+		regex.append(braces > 0 ? "|" : ",");
+		break;
+	    default:
+		regex.append(Pattern.quote(String.valueOf(c)));
+	    }
+	}
+	if (braces > 0) {
+	    throw new IllegalArgumentException("Unclosed { in glob: " + glob);
+	}
+	return regex.toString();
+    }
+
+    /**
+     * @return <code>true</code> for entries that are not directories and have
+     *         a matching name, the page ranges are only applied by
+     *         {@link #select(Iterator)}.
+     */
+    @Override
+    public boolean isAccepted(ZipEntry entity) {
+	String name = entity.getName();
+	return !entity.isDirectory()
+		&& (glob == null || glob.matcher(name).matches())
+		&& (regex == null || regex.matcher(name).find());
+    }
+
+    @Override
+    public boolean isSelective() {
+	return true;
+    }
+
+    /**
+     * @return the selected entries, the given iterator is not advanced past
+     *         the last page of the ranges.
+     */
+    @Override
+    public Iterator<ZipEntry> select(final Iterator<ZipEntry> entries) {
+	return new Iterator<ZipEntry>() {
+	    private ZipEntry next;
+	    private int page;
+
+	    @Override
+	    public boolean hasNext() {
+		while (next == null && !done() && entries.hasNext()) {
+		    ZipEntry entry = entries.next();
+		    if (!isAccepted(entry)) {
+			continue;
+		    }
+		    if (ranges == null) {
+			next = entry;
+		    } else if (ImageProbe.isImageName(entry.getName())
+			    && inRanges(++page)) {
+			next = entry;
+		    }
+		}
+		return next != null;
+	    }
+
+	    /**
+	     * @return <code>true</code> if all pages of the ranges are found.
+	     */
+	    private boolean done() {
+		if (ranges == null) {
+		    return false;
+		}
+		for (int i = 1; i < ranges.length; i += 2) {
+		    if (ranges[i] > page) {
+			return false;
+		    }
+		}
+		return true;
+	    }
+
+	    @Override
+	    public ZipEntry next() {
+		if (!hasNext()) {
+		    throw new NoSuchElementException();
+		}
+		ZipEntry entry = next;
+		next = null;
+		return entry;
+	    }
+
+	    @Override
+	    public void remove() {
+		throw new UnsupportedOperationException("Remove not supported");
+	    }
+	};
+    }
+
+    /**
+     * @param page
+     *            a page number, from 1.
+     * @return <code>true</code> if the page is in one of the ranges.
+     */
+    private boolean inRanges(int page) {
+	for (int i = 0; i < ranges.length; i += 2) {
+	    if (page >= ranges[i] && page <= ranges[i + 1]) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * @return the selection, like <code>pages=1-5,glob=*.jpg</code>.
+     */
+    @Override
+    public String toString() {
+	return description;
+    }
+
+}
@@ -0,0 +1,364 @@
+package cbztool;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+import cbztool.share.InitializationException;
+import cbztool.share.OutputConfig;
+import cbztool.share.ProcessException;
+import cbztool.share.StagedTask;
+import cbztool.share.Task;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskFuture;
+import cbztool.share.TaskMetrics;
+import cbztool.share.TaskRunner;
+import cbztool.share.Weigher;
+
+/**
+ * Extract a ZipFile to a directory, the task behind {@link UnZip}.
+ * 
+ * <p>
+ * The archive is read as a stream by default, use
+ * {@link #ExtractTask(String, OutputConfig, boolean)} to read it by random
+ * access, rejected entries are then never inflated. An output configuration
+ * that {@link OutputConfig#isSelective() selects} the entries, like an
+ * {@link EntrySelection}, also reads the archive by random access and only
+ * the selected entries are read. With
+ * {@link #setThreads(int)} several entries are extracted at once, STORED
+ * entries are then copied straight from the archive file with
+ * {@link FileChannel#transferTo}.
+ * </p>
+ * 
+ * <pre>
+ * ExtractTask task = new ExtractTask(&quot;myZip.zip&quot;, UnZip.ALL(&quot;folder/&quot;));
+ * task.submit(TaskEngine.platform(1), listener).join();
+ * </pre>
+ */
+public class ExtractTask implements
+		StagedTask<ZipEntry, String, ZipSource, String> {
+
+	private static final Logger LOG = Logger.getLogger(ExtractTask.class
+			.getName());
+	private final String zipFile;
+	private static final int BUFFER_SIZE = 2048;
+	private static final int CONCURRENT_BUFFER_SIZE = 256 * 1024;
+	private final OutputConfig<ZipEntry> outputConfig;
+	private final boolean randomAccess;
+	private int bufferSize = BUFFER_SIZE;
+	private int threads = 1;
+	private TaskMetrics metrics;
+	private ZipSource source;
+
+	/**
+	 * Weighs the entries by their uncompressed size, for {@link TaskMetrics}.
+	 * Streamed entries written with a data descriptor weigh 0, their size is
+	 * not known before they are read.
+	 */
+	private static final Weigher<ZipEntry> WEIGHER = new Weigher<ZipEntry>() {
+		@Override
+		public long weigh(ZipEntry value) {
+			return Math.max(0, value.getSize());
+		}
+	};
+
+	/**
+	 * Extract a zip file to a directory.
+	 * 
+	 * @param sourceFile
+	 *            the file to extract
+	 * @param outputConfig
+	 *            the output directory for this task.
+	 */
+	public ExtractTask(String sourceFile, OutputConfig<ZipEntry> outputConfig) {
+		this(sourceFile, outputConfig, false);
+	}
+
+	/**
+	 * Extract a zip file to a directory.
+	 * 
+	 * @param sourceFile
+	 *            the file to extract
+	 * @param outputConfig
+	 *            the output directory for this task.
+	 * @param randomAccess
+	 *            <code>true</code> to read the archive with a
+	 *            {@link ZipFileSource}.
+	 */
+	public ExtractTask(String sourceFile, OutputConfig<ZipEntry> outputConfig,
+			boolean randomAccess) {
+		assert sourceFile != null;
+		assert outputConfig != null;
+		this.zipFile = sourceFile;
+		this.outputConfig = outputConfig;
+		this.randomAccess = randomAccess;
+	}
+
+	/**
+	 * @param bufferSize
+	 *            size of the buffer used when copying an entry to disk,
+	 *            defaults to 2048 bytes.
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @param threads
+	 *            number of entries to extract at once, more than one thread
+	 *            reads the archive by random access and copies entries with a
+	 *            buffer of at least 256 KB.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param metrics
+	 *            the metrics to record the extraction in, <code>null</code> to
+	 *            not record.
+	 */
+	public void setMetrics(TaskMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Run the extraction, with more than one thread the entries are extracted
+	 * on a {@link cbztool.share.OrderedPipeline}.
+	 * 
+	 * @param engine
+	 *            the engine to run the extraction on.
+	 * @param listener
+	 *            receives the path of each extracted entry, <code>null</code>
+	 *            for rejected entries. May be <code>null</code>.
+	 * @return the running extraction.
+	 */
+	public TaskFuture<String> submit(TaskEngine engine,
+			TaskRunner.Listener<String> listener) {
+		if (threads > 1) {
+			StagedTask<ZipEntry, String, ZipSource, String> task = this;
+			if (metrics != null) {
+				task = metrics.wrap(task, WEIGHER);
+			}
+			return engine.submit(task, threads, 2 * threads, listener);
+		}
+		Task<ZipEntry, ZipSource, String> task = this;
+		if (metrics != null) {
+			task = metrics.wrap(task, WEIGHER);
+		}
+		return engine.submit(task, listener);
+	}
+
+	/**
+	 * Extract a ZipEntry to a directory.
+	 * 
+	 * @param entry
+	 *            the entry to extract.
+	 * @param zipStream
+	 *            the stream to extract the entry from.
+	 * @param directory
+	 *            the directory to extract the entry to.
+	 * @throws IOException
+	 */
+	protected String extract(ZipEntry entry, InputStream zipStream,
+			String directory) throws IOException {
+		int size = threads > 1 ? Math.max(bufferSize, CONCURRENT_BUFFER_SIZE)
+				: bufferSize;
+		byte data[] = new byte[size];
+
+		File output = outputFile(entry, directory);
+		RandomAccessFile dest = new RandomAccessFile(output, "rw");
+		try {
+			if (entry.getSize() > 0) {
+				// allocate the file at once instead of growing it.
+				dest.setLength(entry.getSize());
+			}
+
+			long written = 0;
+			int count;
+			while ((count = zipStream.read(data, 0, size)) != -1) {
+				dest.write(data, 0, count);
+				written += count;
+			}
+			dest.setLength(written);
+		} finally {
+			dest.close();
+		}
+
+		return output.getAbsolutePath();
+	}
+
+	/**
+	 * Copy a STORED entry straight from the archive file to a directory.
+	 * 
+	 * @param entry
+	 *            the STORED entry to extract.
+	 * @param source
+	 *            the archive.
+	 * @param directory
+	 *            the directory to extract the entry to.
+	 * @return the extracted file, <code>null</code> if the entry position is
+	 *         unknown.
+	 * @throws IOException
+	 */
+	protected String transfer(ZipEntry entry, ZipFileSource source,
+			String directory) throws IOException {
+		long offset = source.dataOffset(entry);
+		if (offset < 0) {
+			return null;
+		}
+
+		File output = outputFile(entry, directory);
+		FileChannel dest = FileChannel.open(output.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			FileChannel archive = source.channel();
+			long size = entry.getCompressedSize();
+			long written = 0;
+			while (written < size) {
+				written += archive.transferTo(offset + written, size
+						- written, dest);
+			}
+		} finally {
+			dest.close();
+		}
+
+		return output.getAbsolutePath();
+	}
+
+	/**
+	 * @return the file to extract an entry to, parent directories are
+	 *         created.
+	 * @throws IOException
+	 *             if the entry name points outside the directory.
+	 */
+	private File outputFile(ZipEntry entry, String directory)
+			throws IOException {
+		File root = new File(directory).getCanonicalFile();
+		File output = new File(root, entry.getName());
+		if (!output.getCanonicalPath().startsWith(
+				root.getPath() + File.separator)) {
+			throw new IOException("Entry outside of output directory: "
+					+ entry.getName());
+		}
+		output.getParentFile().mkdirs();
+		return output;
+	}
+
+	/**
+	 * Open the zip archive and prepares the output directory.
+	 */
+	public ZipSource prepareContext() throws InitializationException {
+		try {
+			outputConfig.initOutputDirectory(outputConfig.getOutputDirectory());
+		} catch (IOException e1) {
+			throw new InitializationException("Unable to unzip to: " + zipFile,
+					e1);
+		}
+		try {
+			if (randomAccess || threads > 1
+					|| outputConfig.isSelective()) {
+				source = ZipSource.file(zipFile);
+			} else {
+				source = ZipSource.stream(new BufferedInputStream(
+						new FileInputStream(zipFile)));
+			}
+			return source;
+		} catch (FileNotFoundException e) {
+			throw new InitializationException("File not found: " + zipFile, e);
+		} catch (IOException e) {
+			throw new InitializationException("Unable to open zip archive: "
+					+ zipFile, e);
+		}
+	}
+
+	/**
+	 * Unzip a ZipEntry.
+	 */
+	public String process(ZipEntry entry, ZipSource zipStream)
+			throws ProcessException {
+
+		if (!outputConfig.isAccepted(entry)) {
+			return null;
+		}
+
+		String outputDirectory = outputConfig.getOutputDirectory();
+		if (LOG.isLoggable(Level.FINEST)) {
+			LOG.fine(String.format("extracting %s to %s", entry.getName(),
+					outputDirectory));
+		}
+
+		try {
+			if (entry.isDirectory()) {
+				File created = outputFile(entry, outputDirectory);
+				created.mkdirs();
+				return created.getAbsolutePath();
+			}
+			if (entry.getMethod() == ZipEntry.STORED
+					&& zipStream instanceof ZipFileSource) {
+				String path = transfer(entry, (ZipFileSource) zipStream,
+						outputDirectory);
+				if (path != null) {
+					return path;
+				}
+			}
+			InputStream input = zipStream.open(entry);
+			try {
+				return extract(entry, input, outputDirectory);
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			throw new ProcessException("IOException processing: "
+					+ entry.getName(), e);
+		}
+	}
+
+	/**
+	 * Extract an entry, safe to call from several threads when the archive is
+	 * read by random access.
+	 */
+	@Override
+	public String prepare(ZipEntry entry) throws ProcessException {
+		return process(entry, source);
+	}
+
+	/**
+	 * @return the extracted path from {@link #prepare(ZipEntry)}.
+	 */
+	@Override
+	public String complete(String unzipPath, ZipSource context) {
+		return unzipPath;
+	}
+
+	/**
+	 * Close the zip archive, the context created.
+	 */
+	public void endContext(ZipSource context) {
+		try {
+			context.close();
+		} catch (IOException e) {
+			LOG.severe("Unable to close context\n" + e.getMessage());
+		}
+	}
+
+	/**
+	 * Iterator for the ZipEntry found in the zip archive, as selected by the
+	 * output configuration.
+	 */
+	public Iterator<ZipEntry> iterate(ZipSource source) {
+		return outputConfig.select(source.entries());
+	}
+
+}
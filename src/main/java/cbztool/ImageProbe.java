@@ -0,0 +1,222 @@
+package cbztool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * The format and dimensions of an image, read from its header without
+ * decoding the image.
+ * 
+ * <p>
+ * JPEG dimensions are in the SOF segment, found by skipping the segments
+ * before it, PNG dimensions in the IHDR chunk and GIF dimensions in the
+ * logical screen descriptor. Other formats are not probed, callers then fall
+ * back to a decoder.
+ * </p>
+ */
+public final class ImageProbe {
+
+    /** Image formats that can be probed. */
+    public enum Format {
+	/** JPEG, baseline or progressive. */
+	JPEG,
+	/** PNG. */
+	PNG,
+	/** GIF. */
+	GIF
+    }
+
+    /** Bytes read first, enough for most headers. */
+    private static final int FIRST_READ = 4096;
+
+    /** Bytes read at most to find a header. */
+    static final int MAX_HEADER = 64 * 1024;
+
+    /** Extensions of the page images found in comics. */
+    private static final String[] IMAGE_EXTENSIONS = { ".jpg", ".jpeg",
+	    ".jpe", ".png", ".gif", ".bmp", ".webp" };
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G',
+	    '\r', '\n', 0x1a, '\n' };
+
+    private final Format format;
+    private final int width;
+    private final int height;
+
+    /**
+     * @param name
+     *            a file or entry name.
+     * @return <code>true</code> if the name has the extension of a page
+     *         image.
+     */
+    public static boolean isImageName(String name) {
+	String lower = name.toLowerCase(Locale.ROOT);
+	for (String extension : IMAGE_EXTENSIONS) {
+	    if (lower.endsWith(extension)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    private ImageProbe(Format format, int width, int height) {
+	this.format = format;
+	this.width = width;
+	this.height = height;
+    }
+
+    /**
+     * Read the dimensions from the start of an image, only the bytes up to
+     * the header are looked at.
+     * 
+     * @param data
+     *            the encoded image, or its first bytes.
+     * @param length
+     *            number of bytes used in <code>data</code>.
+     * @return the probed image, <code>null</code> if the format is not
+     *         supported or the header is not within <code>length</code>.
+     */
+    public static ImageProbe probe(byte[] data, int length) {
+	if (length >= 24 && startsWith(data, PNG_SIGNATURE)
+		&& data[12] == 'I' && data[13] == 'H' && data[14] == 'D'
+		&& data[15] == 'R') {
+	    return valid(Format.PNG, int32(data, 16), int32(data, 20));
+	}
+	if (length >= 10 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F') {
+	    return valid(Format.GIF, (data[6] & 0xff) | (data[7] & 0xff) << 8,
+		    (data[8] & 0xff) | (data[9] & 0xff) << 8);
+	}
+	if (length >= 4 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+	    return jpeg(data, length);
+	}
+	return null;
+    }
+
+    /**
+     * Read the dimensions from an image stream, reading no more of it than
+     * needed to find the header.
+     * 
+     * @param in
+     *            the encoded image, not closed.
+     * @return the probed image, <code>null</code> if the format is not
+     *         supported or the header is not in the first 64 KB.
+     * @throws IOException
+     *             if the stream can't be read.
+     */
+    public static ImageProbe probe(InputStream in) throws IOException {
+	byte[] data = new byte[MAX_HEADER];
+	int length = 0;
+	int want = FIRST_READ;
+	while (true) {
+	    while (length < want) {
+		int count = in.read(data, length, want - length);
+		if (count < 0) {
+		    return probe(data, length);
+		}
+		length += count;
+	    }
+	    ImageProbe probe = probe(data, length);
+	    if (probe != null || length == MAX_HEADER) {
+		return probe;
+	    }
+	    // a JPEG with large EXIF or ICC segments before the frame.
+	    want = MAX_HEADER;
+	}
+    }
+
+    /**
+     * Walk the JPEG segments until a start of frame.
+     */
+    private static ImageProbe jpeg(byte[] data, int length) {
+	int i = 2;
+	while (i + 3 < length) {
+	    if ((data[i] & 0xff) != 0xff) {
+		return null;
+	    }
+	    int marker = data[i + 1] & 0xff;
+	    if (marker == 0xff) {
+		// fill byte before a marker.
+		i++;
+		continue;
+	    }
+	    if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) {
+		// markers without a segment.
+		i += 2;
+		continue;
+	    }
+	    if (marker == 0xd9 || marker == 0xda) {
+		// end of image or start of scan before any frame.
+		return null;
+	    }
+	    int segment = int16(data, i + 2);
+	    if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4
+		    && marker != 0xc8 && marker != 0xcc) {
+		if (i + 9 > length) {
+		    return null;
+		}
+		return valid(Format.JPEG, int16(data, i + 7), int16(data, i + 5));
+	    }
+	    i += 2 + segment;
+	}
+	return null;
+    }
+
+    private static ImageProbe valid(Format format, int width, int height) {
+	return width > 0 && height > 0 ? new ImageProbe(format, width, height)
+		: null;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+	for (int i = 0; i < prefix.length; i++) {
+	    if (data[i] != prefix[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static int int16(byte[] data, int offset) {
+	return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+    }
+
+    private static int int32(byte[] data, int offset) {
+	return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+		| (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * @return the image format.
+     */
+    public Format getFormat() {
+	return format;
+    }
+
+    /**
+     * @return width in pixels.
+     */
+    public int getWidth() {
+	return width;
+    }
+
+    /**
+     * @return height in pixels.
+     */
+    public int getHeight() {
+	return height;
+    }
+
+    /**
+     * @return <code>true</code> if the image is wider than high, such pages
+     *         are rotated onto the PDF page.
+     */
+    public boolean isLandscape() {
+	return width > height;
+    }
+
+    @Override
+    public String toString() {
+	return format + " " + width + "x" + height;
+    }
+
+}
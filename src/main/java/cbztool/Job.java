@@ -0,0 +1,273 @@
+package cbztool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cbztool.share.JsonWriter;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskMetrics;
+import cbztool.share.TaskRunner;
+
+/**
+ * A conversion or extraction queued in a {@link JobService}.
+ * 
+ * <p>
+ * Jobs with a higher priority run first, jobs with the same priority run in
+ * the order they were submitted. A job runs a {@link PdfTask} or an
+ * {@link ExtractTask} on the thread executing it.
+ * </p>
+ */
+public class Job implements Runnable, Comparable<Job> {
+
+    /** What a job does. */
+    public enum Type {
+	/** Convert a CBZ to a PDF. */
+	PDF,
+	/** Extract an archive to a directory. */
+	UNZIP
+    }
+
+    /** Where a job is in its life. */
+    public enum State {
+	QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+	/**
+	 * @return <code>true</code> if the job will not change anymore.
+	 */
+	public boolean isFinished() {
+	    return this != QUEUED && this != RUNNING;
+	}
+    }
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final long id = SEQUENCE.incrementAndGet();
+    private final Type type;
+    private final String input;
+    private final String output;
+    private final int priority;
+    private final PdfConfig config;
+    private int threads = 1;
+    private TaskMetrics metrics;
+
+    private final long submitted = System.nanoTime();
+    private volatile long started;
+    private volatile long finished;
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelled;
+    private volatile String error;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final List<String> outputs = new ArrayList<String>();
+
+    /**
+     * Convert a CBZ to a PDF.
+     * 
+     * @param input
+     *            the CBZ file.
+     * @param output
+     *            the PDF file.
+     * @param priority
+     *            higher runs first.
+     * @param config
+     *            the conversion settings.
+     */
+    public Job(String input, String output, int priority, PdfConfig config) {
+	this(Type.PDF, input, output, priority, config);
+    }
+
+    /**
+     * Extract an archive.
+     * 
+     * @param input
+     *            the archive.
+     * @param output
+     *            the directory to extract to.
+     * @param priority
+     *            higher runs first.
+     * @param threads
+     *            number of entries extracted at once.
+     */
+    public Job(String input, String output, int priority, int threads) {
+	this(Type.UNZIP, input, output, priority, null);
+	this.threads = Math.max(1, threads);
+    }
+
+    private Job(Type type, String input, String output, int priority,
+	    PdfConfig config) {
+	assert input != null && output != null;
+	this.type = type;
+	this.input = input;
+	this.output = output;
+	this.priority = priority;
+	this.config = config;
+    }
+
+    /**
+     * @param metrics
+     *            records the task run by this job, may be <code>null</code>.
+     */
+    void setMetrics(TaskMetrics metrics) {
+	this.metrics = metrics;
+    }
+
+    @Override
+    public int compareTo(Job other) {
+	if (priority != other.priority) {
+	    return priority > other.priority ? -1 : 1;
+	}
+	return id < other.id ? -1 : (id == other.id ? 0 : 1);
+    }
+
+    /**
+     * Run the task, the outcome is kept in the job.
+     */
+    @Override
+    public void run() {
+	if (cancelled) {
+	    dequeued();
+	    return;
+	}
+	state = State.RUNNING;
+	started = System.nanoTime();
+	TaskRunner.Listener<String> listener = new TaskRunner.Listener<String>() {
+	    @Override
+	    public boolean isCancelled() {
+		return cancelled;
+	    }
+
+	    @Override
+	    public void processed(String result) {
+		processed.incrementAndGet();
+		if (result != null) {
+		    synchronized (outputs) {
+			outputs.add(result);
+		    }
+		}
+	    }
+	};
+
+	try {
+	    if (type == Type.PDF) {
+		File pdf = new File(output).getAbsoluteFile();
+		pdf.getParentFile().mkdirs();
+		if (metrics != null) {
+		    config.setMetrics(metrics);
+		}
+		// a cancelled or failed task leaves no partial PDF.
+		new PdfTask(input, pdf.getPath(), config).submit(
+			TaskEngine.currentThread(), listener).join();
+		if (!cancelled) {
+		    synchronized (outputs) {
+			outputs.add(pdf.getPath());
+		    }
+		}
+	    } else {
+		ExtractTask task = new ExtractTask(input, UnZip.ALL(output));
+		task.setThreads(threads);
+		task.setMetrics(metrics);
+		task.submit(TaskEngine.currentThread(), listener).join();
+	    }
+	    finish(cancelled ? State.CANCELLED : State.DONE);
+	} catch (Exception e) {
+	    error = String.valueOf(e.getMessage());
+	    finish(State.FAILED);
+	}
+    }
+
+    private void finish(State end) {
+	finished = System.nanoTime();
+	state = end;
+    }
+
+    /**
+     * Ask the job to stop, a queued job will not start and a running job
+     * stops before the next page or entry.
+     */
+    public void cancel() {
+	cancelled = true;
+    }
+
+    /**
+     * Mark a job that was removed from the queue before it started.
+     */
+    void dequeued() {
+	started = System.nanoTime();
+	finish(State.CANCELLED);
+    }
+
+    /**
+     * @return the job id.
+     */
+    public long getId() {
+	return id;
+    }
+
+    /**
+     * @return the job state.
+     */
+    public State getState() {
+	return state;
+    }
+
+    /**
+     * @return number of pages or entries processed.
+     */
+    public int getProcessed() {
+	return processed.get();
+    }
+
+    /**
+     * @return nanoseconds from submitted to started, or until now.
+     */
+    public long getWaitNanos() {
+	long start = started;
+	return (start == 0 ? System.nanoTime() : start) - submitted;
+    }
+
+    /**
+     * @return nanoseconds from started to finished, or until now.
+     */
+    public long getRunNanos() {
+	long start = started;
+	if (start == 0) {
+	    return 0;
+	}
+	long end = finished;
+	return (end == 0 ? System.nanoTime() : end) - start;
+    }
+
+    /**
+     * Write the job status as a JSON object.
+     * 
+     * @param json
+     *            the writer.
+     */
+    public void write(JsonWriter json) {
+	json.beginObject();
+	json.name("id").value(id);
+	json.name("type").value(type.name().toLowerCase(Locale.ROOT));
+	json.name("state").value(state.name().toLowerCase(Locale.ROOT));
+	json.name("priority").value(priority);
+	json.name("input").value(input);
+	json.name("output").value(output);
+	json.name("processed").value(getProcessed());
+	json.name("waitMillis").value(getWaitNanos() / 1e6);
+	json.name("runMillis").value(getRunNanos() / 1e6);
+	if (error != null) {
+	    json.name("error").value(error);
+	}
+	json.name("outputs").beginArray();
+	synchronized (outputs) {
+	    for (String path : outputs) {
+		json.value(path);
+	    }
+	}
+	json.endArray();
+	json.endObject();
+    }
+
+}
@@ -0,0 +1,464 @@
+package cbztool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import cbztool.share.JsonWriter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serve a {@link JobService} over HTTP on the loopback interface, so other
+ * programs can convert files without starting a JVM for each file.
+ * 
+ * <p>
+ * Parameters are given in the query string or as a form body, all answers are
+ * JSON.
+ * </p>
+ * 
+ * <pre>
+ * POST   /jobs?type=pdf&amp;input=in.cbz&amp;output=out.pdf[&amp;priority=N][&amp;dpi=N][&amp;quality=Q][&amp;memory=MB]
+ * POST   /jobs?type=unzip&amp;input=in.cbz&amp;output=dir[&amp;priority=N][&amp;threads=N]
+ * GET    /jobs          status of all known jobs
+ * GET    /jobs/{id}     status of a job, with the output paths
+ * DELETE /jobs/{id}     cancel a job
+ * GET    /stats         throughput, queue depth and latencies
+ * GET    /pages?archive=in.cbz        pages of an archive, with their sizes
+ * GET    /pages?archive=in.cbz&amp;n=N    the image of page N, from 0
+ * </pre>
+ * 
+ * <p>
+ * Pages are read through a {@link PageServer}, so a page is one positional
+ * read and recently read pages are answered from memory.
+ * </p>
+ * 
+ * <p>
+ * Jobs read and write any path the user can, so only local programs that
+ * were given the token may use the server. Every request must send
+ * <code>Authorization: Bearer</code> with {@link #getToken()}, created anew
+ * each time the server is created. A browser page can't set that header on a
+ * cross-origin request, and requests naming another host or coming from
+ * another origin are refused, so a web page can't reach the server through
+ * the browser. Jobs can't read the standard input or write to the standard
+ * output of the server.
+ * </p>
+ */
+public class JobServer {
+
+    private static final Logger LOG = Logger.getLogger(JobServer.class
+	    .getName());
+
+    /** Bytes of recently read pages kept in memory. */
+    private static final long PAGE_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private final JobService service;
+    private final PageServer pages = new PageServer(PAGE_CACHE_BYTES);
+    private final HttpServer server;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final String token;
+
+    /**
+     * @param port
+     *            the port to listen on, 0 for any free port.
+     * @param service
+     *            the service running the jobs.
+     * @throws IOException
+     *             if the port can't be opened.
+     */
+    public JobServer(int port, JobService service) throws IOException {
+	this.service = service;
+	this.token = newToken();
+	this.server = HttpServer.create(new InetSocketAddress(
+		InetAddress.getLoopbackAddress(), port), 0);
+	server.createContext("/jobs", new Guarded() {
+	    @Override
+	    void serve(HttpExchange exchange) throws IOException {
+		answer(exchange, jobs(exchange));
+	    }
+	});
+	server.createContext("/stats", new Guarded() {
+	    @Override
+	    void serve(HttpExchange exchange) throws IOException {
+		JsonWriter json = new JsonWriter();
+		JobServer.this.service.writeStats(json);
+		answer(exchange, new Answer(200, json));
+	    }
+	});
+	server.createContext("/pages", new Guarded() {
+	    @Override
+	    void serve(HttpExchange exchange) throws IOException {
+		pages(exchange);
+	    }
+	});
+    }
+
+    /**
+     * @return the token requests must send, printed when the server starts.
+     */
+    public String getToken() {
+	return token;
+    }
+
+    private static String newToken() {
+	byte[] bytes = new byte[16];
+	new SecureRandom().nextBytes(bytes);
+	StringBuilder hex = new StringBuilder();
+	for (byte b : bytes) {
+	    hex.append(String.format("%02x", b & 0xff));
+	}
+	return hex.toString();
+    }
+
+    /**
+     * A handler that only serves requests for this server, from local
+     * programs holding the token.
+     */
+    private abstract class Guarded implements HttpHandler {
+
+	@Override
+	public final void handle(HttpExchange exchange) throws IOException {
+	    Answer refused = refuse(exchange);
+	    if (refused != null) {
+		if (refused.status == 401) {
+		    exchange.getResponseHeaders().set("WWW-Authenticate",
+			    "Bearer");
+		}
+		answer(exchange, refused);
+		return;
+	    }
+	    try {
+		serve(exchange);
+	    } catch (IllegalArgumentException e) {
+		// a malformed escape or number in the parameters.
+		LOG.log(Level.FINE, "Bad request " + exchange.getRequestURI(),
+			e);
+		answer(exchange, error(400, "Bad request: " + e.getMessage()));
+	    } catch (RuntimeException e) {
+		LOG.log(Level.WARNING, "Unable to serve "
+			+ exchange.getRequestURI(), e);
+		answer(exchange, error(500, "Internal error: " + e));
+	    }
+	}
+
+	abstract void serve(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * @return why a request is refused, <code>null</code> if it may be
+     *         served.
+     */
+    private Answer refuse(HttpExchange exchange) {
+	// a rebound DNS name reaches the server with its own name as host.
+	String host = exchange.getRequestHeaders().getFirst("Host");
+	if (host == null || !isLocal(host)) {
+	    return error(403, "Unknown host: " + host);
+	}
+	String origin = exchange.getRequestHeaders().getFirst("Origin");
+	if (origin != null && !isLocalOrigin(origin)) {
+	    return error(403, "Cross-origin request from " + origin);
+	}
+	String authorization = exchange.getRequestHeaders().getFirst(
+		"Authorization");
+	String expected = "Bearer " + token;
+	if (authorization == null
+		|| !MessageDigest.isEqual(
+			authorization.getBytes(StandardCharsets.UTF_8),
+			expected.getBytes(StandardCharsets.UTF_8))) {
+	    return error(401, "Missing or wrong token");
+	}
+	return null;
+    }
+
+    /**
+     * @return <code>true</code> for pages served by this server.
+     */
+    private boolean isLocalOrigin(String origin) {
+	String scheme = "http://";
+	return origin.regionMatches(true, 0, scheme, 0, scheme.length())
+		&& isLocal(origin.substring(scheme.length()));
+    }
+
+    /**
+     * @return <code>true</code> for <code>127.0.0.1:port</code> and
+     *         <code>localhost:port</code>.
+     */
+    private boolean isLocal(String host) {
+	String lower = host.toLowerCase(Locale.ROOT);
+	return lower.equals("127.0.0.1:" + getPort())
+		|| lower.equals("localhost:" + getPort());
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public int getPort() {
+	return server.getAddress().getPort();
+    }
+
+    /**
+     * Start answering requests.
+     */
+    public void start() {
+	server.start();
+	LOG.info("Listening on http://" + server.getAddress().getHostString()
+		+ ":" + getPort() + "/");
+    }
+
+    /**
+     * Stop the server, jobs already queued keep running in the service.
+     */
+    public void stop() {
+	server.stop(0);
+	stopped.countDown();
+    }
+
+    /**
+     * Wait until the server is stopped.
+     * 
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public void awaitStop() throws InterruptedException {
+	stopped.await();
+    }
+
+    /**
+     * A status code and a JSON body.
+     */
+    private static class Answer {
+	private final int status;
+	private final String body;
+
+	Answer(int status, JsonWriter json) {
+	    this.status = status;
+	    this.body = json.toString();
+	}
+    }
+
+    private static Answer error(int status, String message) {
+	return new Answer(status, new JsonWriter().beginObject().name("error")
+		.value(message).endObject());
+    }
+
+    private Answer jobs(HttpExchange exchange) throws IOException {
+	String method = exchange.getRequestMethod();
+	String path = exchange.getRequestURI().getPath();
+	if (!path.equals("/jobs") && !path.startsWith("/jobs/")) {
+	    return error(404, "Not found: " + path);
+	}
+	String rest = path.length() > "/jobs".length() ? path
+		.substring("/jobs/".length()) : "";
+
+	if (rest.isEmpty()) {
+	    if (method.equals("POST")) {
+		return create(parameters(exchange));
+	    }
+	    if (method.equals("GET")) {
+		JsonWriter json = new JsonWriter().beginArray();
+		for (Job job : service.list()) {
+		    job.write(json);
+		}
+		return new Answer(200, json.endArray());
+	    }
+	    return error(405, "Use GET or POST on /jobs");
+	}
+
+	long id;
+	try {
+	    id = Long.parseLong(rest);
+	} catch (NumberFormatException e) {
+	    return error(404, "No job " + rest);
+	}
+	Job job;
+	if (method.equals("GET")) {
+	    job = service.get(id);
+	} else if (method.equals("DELETE")) {
+	    job = service.cancel(id);
+	} else {
+	    return error(405, "Use GET or DELETE on /jobs/" + id);
+	}
+	if (job == null) {
+	    return error(404, "No job " + id);
+	}
+	JsonWriter json = new JsonWriter();
+	job.write(json);
+	return new Answer(200, json);
+    }
+
+    /**
+     * Queue a job from the request parameters.
+     */
+    private Answer create(Map<String, String> parameters) {
+	String type = parameters.get("type");
+	String input = parameters.get("input");
+	String output = parameters.get("output");
+	if (input == null || output == null) {
+	    return error(400, "input and output are required");
+	}
+	if (input.equals(PdfTask.STANDARD_STREAM)
+		|| output.equals(PdfTask.STANDARD_STREAM)) {
+	    return error(400, "input and output must be files");
+	}
+	try {
+	    int priority = Integer.parseInt(value(parameters, "priority", "0"));
+	    Job job;
+	    if ("pdf".equals(type)) {
+		PdfConfig config = new PdfConfig();
+		config.setDpi(Integer.parseInt(value(parameters, "dpi", "0")));
+		config.setJpegQuality(Float.parseFloat(value(parameters,
+			"quality", String.valueOf(config.getJpegQuality()))));
+		config.setMaxInFlightBytes(Long.parseLong(value(parameters,
+			"memory", "0")) * 1024 * 1024);
+		job = new Job(input, output, priority, config);
+	    } else if ("unzip".equals(type)) {
+		job = new Job(input, output, priority, Integer.parseInt(value(
+			parameters, "threads", "1")));
+	    } else {
+		return error(400, "type must be pdf or unzip");
+	    }
+	    service.submit(job);
+	    JsonWriter json = new JsonWriter();
+	    job.write(json);
+	    return new Answer(201, json);
+	} catch (NumberFormatException e) {
+	    return error(400, "Not a number: " + e.getMessage());
+	}
+    }
+
+    /**
+     * Answer the index of an archive as JSON, or the image of a page.
+     */
+    private void pages(HttpExchange exchange) throws IOException {
+	if (!exchange.getRequestMethod().equals("GET")) {
+	    answer(exchange, error(405, "Use GET on /pages"));
+	    return;
+	}
+	Map<String, String> parameters = parameters(exchange);
+	String archive = parameters.get("archive");
+	if (archive == null) {
+	    answer(exchange, error(400, "archive is required"));
+	    return;
+	}
+	try {
+	    String n = parameters.get("n");
+	    if (n != null) {
+		PageIndex index = pages.getIndex(archive);
+		int page = Integer.parseInt(n);
+		byte[] image = pages.getPage(archive, page);
+		answer(exchange, 200, contentType(index.getPage(page)
+			.getName()), image);
+		return;
+	    }
+	    JsonWriter json = new JsonWriter().beginArray();
+	    for (PageIndex.Page page : pages.getIndex(archive).getPages()) {
+		json.beginObject().name("name").value(page.getName())
+			.name("size").value(page.getSize()).name("width")
+			.value(page.getWidth()).name("height")
+			.value(page.getHeight()).endObject();
+	    }
+	    answer(exchange, new Answer(200, json.endArray()));
+	} catch (NumberFormatException e) {
+	    answer(exchange, error(400, "Not a number: " + e.getMessage()));
+	} catch (IndexOutOfBoundsException e) {
+	    answer(exchange, error(404, e.getMessage()));
+	} catch (IOException e) {
+	    LOG.log(Level.FINE, "Unable to read " + archive, e);
+	    answer(exchange, error(404, "Unable to read " + archive + ": "
+		    + e.getMessage()));
+	}
+    }
+
+    private static String contentType(String name) {
+	String lower = name.toLowerCase(Locale.ROOT);
+	if (lower.endsWith(".png")) {
+	    return "image/png";
+	} else if (lower.endsWith(".gif")) {
+	    return "image/gif";
+	} else if (lower.endsWith(".webp")) {
+	    return "image/webp";
+	} else if (lower.endsWith(".bmp")) {
+	    return "image/bmp";
+	}
+	return "image/jpeg";
+    }
+
+    private static String value(Map<String, String> parameters, String name,
+	    String defaultValue) {
+	String value = parameters.get(name);
+	return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @return the parameters from the query string and a form body.
+     */
+    private static Map<String, String> parameters(HttpExchange exchange)
+	    throws IOException {
+	Map<String, String> parameters = new HashMap<String, String>();
+	decode(exchange.getRequestURI().getRawQuery(), parameters);
+
+	ByteArrayOutputStream body = new ByteArrayOutputStream();
+	InputStream in = exchange.getRequestBody();
+	byte[] buffer = new byte[4096];
+	int count;
+	while ((count = in.read(buffer)) != -1) {
+	    body.write(buffer, 0, count);
+	}
+	decode(new String(body.toByteArray(), StandardCharsets.UTF_8),
+		parameters);
+	return parameters;
+    }
+
+    private static void decode(String query, Map<String, String> parameters)
+	    throws IOException {
+	if (query == null || query.isEmpty()) {
+	    return;
+	}
+	for (String pair : query.split("&")) {
+	    int split = pair.indexOf('=');
+	    if (split > 0) {
+		parameters.put(URLDecoder.decode(pair.substring(0, split),
+			"UTF-8"), URLDecoder.decode(pair.substring(split + 1)
+			.trim(), "UTF-8"));
+	    }
+	}
+    }
+
+    private static void answer(HttpExchange exchange, Answer answer)
+	    throws IOException {
+	answer(exchange, answer.status, "application/json; charset=utf-8",
+		(answer.body + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void answer(HttpExchange exchange, int status,
+	    String contentType, byte[] body) throws IOException {
+	exchange.getResponseHeaders().set("Content-Type", contentType);
+	try {
+	    exchange.sendResponseHeaders(status, body.length);
+	    OutputStream out = exchange.getResponseBody();
+	    out.write(body);
+	    out.close();
+	} catch (IOException e) {
+	    LOG.log(Level.FINE, "Unable to answer request", e);
+	    throw e;
+	} finally {
+	    exchange.close();
+	}
+    }
+
+}
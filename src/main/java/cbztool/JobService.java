@@ -0,0 +1,200 @@
+package cbztool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import cbztool.share.JsonWriter;
+import cbztool.share.TaskMetrics;
+
+/**
+ * Run conversion and extraction {@link Job}s in one JVM, highest priority
+ * first and at most <code>concurrency</code> at a time.
+ * 
+ * <p>
+ * The service keeps the status of the last {@link #MAX_FINISHED} finished jobs,
+ * and numbers for sizing it: jobs and pages per second, the queue depth, the
+ * time jobs wait in the queue and the time they run, and the
+ * {@link TaskMetrics} of all tasks run.
+ * </p>
+ */
+public class JobService {
+
+    private static final Logger LOG = Logger.getLogger(JobService.class
+	    .getName());
+
+    /** Number of finished jobs kept for status requests. */
+    public static final int MAX_FINISHED = 1000;
+
+    private final int concurrency;
+    private final ThreadPoolExecutor pool;
+    private final Map<Long, Job> jobs = new LinkedHashMap<Long, Job>();
+    private final TaskMetrics metrics = new TaskMetrics();
+    private final TaskMetrics.Stage waiting = new TaskMetrics.Stage();
+    private final TaskMetrics.Stage running = new TaskMetrics.Stage();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final long started = System.nanoTime();
+
+    /**
+     * @param concurrency
+     *            number of jobs running at once.
+     */
+    public JobService(int concurrency) {
+	this.concurrency = Math.max(1, concurrency);
+	this.pool = new ThreadPoolExecutor(this.concurrency, this.concurrency,
+		0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>()) {
+	    @Override
+	    protected void afterExecute(Runnable r, Throwable t) {
+		finished((Job) r);
+	    }
+	};
+    }
+
+    /**
+     * Queue a job.
+     * 
+     * @param job
+     *            the job to run.
+     * @return the job.
+     */
+    public Job submit(Job job) {
+	job.setMetrics(metrics);
+	synchronized (jobs) {
+	    jobs.put(job.getId(), job);
+	}
+	pool.execute(job);
+	LOG.fine("Queued job " + job.getId());
+	return job;
+    }
+
+    /**
+     * @param id
+     *            the job id.
+     * @return the job, <code>null</code> if unknown or forgotten.
+     */
+    public Job get(long id) {
+	synchronized (jobs) {
+	    return jobs.get(id);
+	}
+    }
+
+    /**
+     * @return the known jobs, oldest first.
+     */
+    public List<Job> list() {
+	synchronized (jobs) {
+	    return new ArrayList<Job>(jobs.values());
+	}
+    }
+
+    /**
+     * Cancel a job, see {@link Job#cancel()}.
+     * 
+     * @param id
+     *            the job id.
+     * @return the job, <code>null</code> if unknown.
+     */
+    public Job cancel(long id) {
+	Job job = get(id);
+	if (job == null) {
+	    return null;
+	}
+	job.cancel();
+	if (pool.remove(job)) {
+	    job.dequeued();
+	    finished(job);
+	}
+	return job;
+    }
+
+    /**
+     * Record a finished job and forget the oldest finished jobs.
+     */
+    private void finished(Job job) {
+	switch (job.getState()) {
+	case DONE:
+	    done.incrementAndGet();
+	    break;
+	case FAILED:
+	    failed.incrementAndGet();
+	    break;
+	default:
+	    cancelled.incrementAndGet();
+	}
+	pages.addAndGet(job.getProcessed());
+	waiting.record(job.getWaitNanos());
+	running.record(job.getRunNanos());
+
+	synchronized (jobs) {
+	    int finished = 0;
+	    for (Job known : jobs.values()) {
+		if (known.getState().isFinished()) {
+		    finished++;
+		}
+	    }
+	    Iterator<Job> oldest = jobs.values().iterator();
+	    while (finished > MAX_FINISHED && oldest.hasNext()) {
+		if (oldest.next().getState().isFinished()) {
+		    oldest.remove();
+		    finished--;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Write the service numbers as a JSON object.
+     * 
+     * @param json
+     *            the writer.
+     */
+    public void writeStats(JsonWriter json) {
+	double seconds = (System.nanoTime() - started) / 1e9;
+	long finished = done.get() + failed.get() + cancelled.get();
+	json.beginObject();
+	json.name("uptimeSeconds").value(seconds);
+	json.name("concurrency").value(concurrency);
+	json.name("queued").value(pool.getQueue().size());
+	json.name("running").value(pool.getActiveCount());
+	json.name("done").value(done.get());
+	json.name("failed").value(failed.get());
+	json.name("cancelled").value(cancelled.get());
+	json.name("jobsPerSecond").value(finished / seconds);
+	json.name("pagesPerSecond").value(pages.get() / seconds);
+	json.name("waitLatency");
+	waiting.write(json);
+	json.name("runLatency");
+	running.write(json);
+	json.name("tasks");
+	metrics.write(json);
+	json.endObject();
+    }
+
+    /**
+     * Stop the service, queued jobs are not started and running jobs are
+     * cancelled.
+     * 
+     * @param timeout
+     *            the longest time to wait for running jobs, in seconds.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public void shutdown(long timeout) throws InterruptedException {
+	for (Job job : list()) {
+	    job.cancel();
+	}
+	pool.shutdown();
+	pool.awaitTermination(timeout, TimeUnit.SECONDS);
+    }
+
+}
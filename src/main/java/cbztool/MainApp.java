@@ -1,11 +1,30 @@
 package cbztool;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
 
+import cbztool.bench.MacroBenchmark;
 import cbztool.share.Delegator;
+import cbztool.share.OutputConfig;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskFuture;
+import cbztool.share.TaskMetrics;
+import cbztool.share.TaskRunner;
 
 /**
  * Execute tools from terminal without any UI.
@@ -40,35 +59,746 @@ public final class MainApp {
 
 	@Override
 	public boolean accept(String[] args) {
-	    return args.length == 3 && args[OPT].equals("-pdf");
+	    return args.length >= 3 && args[OPT].equals("-pdf")
+		    && hasOptions(args, 3, concat(concat(PDF_OPTIONS, "-chunks"),
+			    SELECT_OPTIONS));
 	}
 
 	@Override
 	public String getDescription() {
-	    return "-pdf <cbzFile> <pdfFile>  - convert CBZ to a PDF";
+	    return "-pdf <cbzFile> <pdfFile> [-dpi N] [-quality Q] [-memory MB]"
+		    + " [-metrics F] [-chunks N] [-pages R] [-glob G] [-regex E]"
+		    + "  - convert CBZ or a directory of images to a PDF, - for"
+		    + " the standard input or output, N chunks built at once,"
+		    + " only the selected pages";
 	}
 
 	@Override
 	public void handle(String[] args) throws Exception {
+	    boolean stdin = args[CBZ_FILE].equals(PdfTask.STANDARD_STREAM);
+	    boolean stdout = args[PDF_FILE].equals(PdfTask.STANDARD_STREAM);
 	    File inputCbz = new File(args[CBZ_FILE]);
 
-	    if (!inputCbz.isFile() || !inputCbz.exists()) {
+	    if (!stdin && !inputCbz.isFile() && !inputCbz.isDirectory()) {
 		printError("CBZ file not found:" + args[CBZ_FILE], this);
 	    }
 
 	    File outputPdf = new File(args[PDF_FILE]);
-	    if (!inputCbz.isFile()) {
+	    if (!stdout && outputPdf.isDirectory()) {
 		printError("Not a valid pdf output file:" + args[PDF_FILE],
 			this);
 	    }
 
-	    final CbzToPdf cbzPdf = new CbzToPdf(inputCbz.getAbsolutePath(),
-		    outputPdf.getAbsolutePath());
+	    PdfConfig config = pdfConfig(args, 3);
+	    config.setSelection(selection(args, 3, outputPdf.getAbsoluteFile()
+		    .getParent()));
+	    int chunks = Integer.parseInt(option(args, 3, "-chunks", "1"));
+	    if (chunks > 1 && (stdin || stdout)) {
+		printError("-chunks needs an input and output file, not -", this);
+	    }
+	    if (chunks > 1) {
+		try {
+		    convertChunked(inputCbz, outputPdf, config, chunks);
+		} catch (CancellationException e) {
+		    throw new Exception("Cancelled: " + args[CBZ_FILE], e);
+		} finally {
+		    writeMetrics(config, option(args, 3, "-metrics", null));
+		}
+		return;
+	    }
+
+	    PdfTask task = new PdfTask(stdin ? args[CBZ_FILE]
+		    : inputCbz.getAbsolutePath(), stdout ? args[PDF_FILE]
+		    : outputPdf.getAbsolutePath(), config);
+
+	    TaskEngine engine = TaskEngine.platform(1);
+	    TaskFuture<String> run = task.submit(engine,
+		    MainApp.<String> progress("pages"));
+	    // a cancelled task removes its part file, see PdfTask.
+	    Thread cancel = cancelOnExit(run);
+	    try {
+		run.join();
+	    } catch (CancellationException e) {
+		throw new Exception("Cancelled: " + args[CBZ_FILE], e);
+	    } finally {
+		endProgress();
+		try {
+		    Runtime.getRuntime().removeShutdownHook(cancel);
+		} catch (IllegalStateException e) {
+		    // already shutting down.
+		}
+		engine.shutdown();
+		String metrics = option(args, 3, "-metrics", null);
+		if (stdout && "-".equals(metrics)) {
+		    // the standard output holds the PDF.
+		    System.err.println(config.getMetrics().toJson());
+		} else {
+		    writeMetrics(config, metrics);
+		}
+	    }
+	}
+
+    }
+
+    /**
+     * Convert a CBZ in chunks built at once, see {@link ChunkedPdf}. The
+     * conversion is cancelled when the JVM is stopped, the completed chunks
+     * are kept for the next run.
+     */
+    private static void convertChunked(File inputCbz, File outputPdf,
+	    PdfConfig config, int chunks) throws Exception {
+	final AtomicBoolean cancelled = new AtomicBoolean();
+	final CountDownLatch finished = new CountDownLatch(1);
+	final TaskRunner.Listener<String> progress = progress("pages");
+	Thread hook = new Thread(new Runnable() {
+	    @Override
+	    public void run() {
+		cancelled.set(true);
+		try {
+		    finished.await();
+		} catch (InterruptedException e) {
+		    // exiting anyway.
+		}
+	    }
+	}, "cancel");
+	Runtime.getRuntime().addShutdownHook(hook);
+
+	TaskEngine engine = TaskEngine.platform(chunks);
+	try {
+	    new ChunkedPdf(inputCbz.getAbsolutePath(),
+		    outputPdf.getAbsolutePath(), config, chunks).convert(engine,
+		    new TaskRunner.Listener<String>() {
+			@Override
+			public boolean isCancelled() {
+			    return cancelled.get();
+			}
+
+			@Override
+			public void processed(String result) {
+			    progress.processed(result);
+			}
+		    });
+	} finally {
+	    endProgress();
+	    finished.countDown();
+	    try {
+		Runtime.getRuntime().removeShutdownHook(hook);
+	    } catch (IllegalStateException e) {
+		// already shutting down.
+	    }
+	    engine.shutdown();
+	}
+    }
+
+    /**
+     * A Delegator that repacks a CBZ file, storing the images and deflating
+     * only the entries that shrink.
+     */
+    private static class DelegateRepack implements Delegator {
+	private static final int OPT = 0;
+	private static final int CBZ_FILE = 1;
+	private static final int OUTPUT_FILE = 2;
+
+	@Override
+	public boolean accept(String[] args) {
+	    return args.length >= 3 && args[OPT].equals("-repack")
+		    && hasOptions(args, 3, "-j", "-level");
+	}
+
+	@Override
+	public String getDescription() {
+	    return "-repack <cbzFile> <outputCbz> [-j N] [-level L]  - repack a"
+		    + " CBZ in page order, compressing on N threads";
+	}
+
+	@Override
+	public void handle(String[] args) throws Exception {
+	    File inputCbz = new File(args[CBZ_FILE]);
+	    if (!inputCbz.isFile()) {
+		printError("CBZ file not found:" + args[CBZ_FILE], this);
+	    }
+	    File output = new File(args[OUTPUT_FILE]);
+	    if (output.getCanonicalFile().equals(inputCbz.getCanonicalFile())) {
+		printError("Output must not be the input file:"
+			+ args[OUTPUT_FILE], this);
+	    }
+
+	    RepackTask task = new RepackTask(inputCbz.getAbsolutePath(),
+		    output.getAbsolutePath());
+	    String workers = option(args, 3, "-j", null);
+	    if (workers != null) {
+		task.setWorkers(Integer.parseInt(workers));
+	    }
+	    task.setLevel(Integer.parseInt(option(args, 3, "-level", "-1")));
+
+	    TaskEngine engine = TaskEngine.platform(1);
+	    TaskFuture<String> run = task.submit(engine,
+		    MainApp.<String> progress("entries"));
+	    Thread cancel = cancelOnExit(run);
+	    try {
+		run.join();
+	    } catch (CancellationException e) {
+		throw new Exception("Cancelled: " + args[CBZ_FILE], e);
+	    } finally {
+		endProgress();
+		try {
+		    Runtime.getRuntime().removeShutdownHook(cancel);
+		} catch (IllegalStateException e) {
+		    // already shutting down.
+		}
+		engine.shutdown();
+	    }
+	    System.out.println(task.getStored() + " entries stored, "
+		    + task.getDeflated() + " deflated: " + output.length()
+		    + " bytes (was " + inputCbz.length() + ")");
+	}
+
+    }
+
+    /**
+     * A Delegator that extracts a CBZ file, or some of its entries.
+     */
+    private static class DelegateUnzip implements Delegator {
+	private static final int OPT = 0;
+	private static final int CBZ_FILE = 1;
+	private static final int OUTPUT_DIR = 2;
+
+	@Override
+	public boolean accept(String[] args) {
+	    return args.length >= 3 && args[OPT].equals("-unzip")
+		    && hasOptions(args, 3, concat(SELECT_OPTIONS, "-j"));
+	}
+
+	@Override
+	public String getDescription() {
+	    return "-unzip <cbzFile> <outputDir> [-pages R] [-glob G]"
+		    + " [-regex E] [-j N]  - extract a CBZ, or only the"
+		    + " selected pages, on N threads";
+	}
+
+	@Override
+	public void handle(String[] args) throws Exception {
+	    File inputCbz = new File(args[CBZ_FILE]);
+	    if (!inputCbz.isFile()) {
+		printError("CBZ file not found:" + args[CBZ_FILE], this);
+	    }
+	    File output = new File(args[OUTPUT_DIR]);
+	    if (output.isFile()) {
+		printError("Not a valid output directory:" + args[OUTPUT_DIR],
+			this);
+	    }
+
+	    OutputConfig<ZipEntry> selection = selection(args, 3,
+		    output.getAbsolutePath());
+	    ExtractTask task = new ExtractTask(inputCbz.getAbsolutePath(),
+		    selection != null ? selection : UnZip.ALL(output
+			    .getAbsolutePath()));
+	    task.setThreads(Integer.parseInt(option(args, 3, "-j", "1")));
+
+	    TaskEngine engine = TaskEngine.platform(1);
+	    final TaskRunner.Listener<String> progress = progress("entries");
+	    final AtomicInteger extracted = new AtomicInteger();
+	    TaskFuture<String> run = task.submit(engine,
+		    new TaskRunner.Listener<String>() {
+			@Override
+			public boolean isCancelled() {
+			    return false;
+			}
+
+			@Override
+			public void processed(String path) {
+			    if (path != null) {
+				extracted.incrementAndGet();
+				progress.processed(path);
+			    }
+			}
+		    });
+	    Thread cancel = cancelOnExit(run);
+	    try {
+		run.join();
+	    } catch (CancellationException e) {
+		throw new Exception("Cancelled: " + args[CBZ_FILE], e);
+	    } finally {
+		endProgress();
+		try {
+		    Runtime.getRuntime().removeShutdownHook(cancel);
+		} catch (IllegalStateException e) {
+		    // already shutting down.
+		}
+		engine.shutdown();
+	    }
+	    System.out.println(extracted.get() + " entries extracted to "
+		    + output.getAbsolutePath());
+	}
+
+    }
+
+    /**
+     * A Delegator that creates page thumbnails in a cache directory.
+     */
+    private static class DelegateThumbnails implements Delegator {
+	private static final int OPT = 0;
+	private static final int CBZ_FILE = 1;
+	private static final int CACHE_DIR = 2;
+
+	@Override
+	public boolean accept(String[] args) {
+	    return args.length >= 3 && args[OPT].equals("-thumbs")
+		    && hasOptions(args, 3, "-size", "-pages", "-cache");
+	}
+
+	@Override
+	public String getDescription() {
+	    return "-thumbs <cbzFile> <cacheDir> [-size PX] [-pages N]"
+		    + " [-cache MB]  - print paths to cached page thumbnails";
+	}
+
+	@Override
+	public void handle(String[] args) throws Exception {
+	    if (!new File(args[CBZ_FILE]).isFile()) {
+		printError("CBZ file not found:" + args[CBZ_FILE], this);
+	    }
+	    ThumbnailCache cache = new ThumbnailCache(
+		    Paths.get(args[CACHE_DIR]), Long.parseLong(option(args, 3,
+			    "-cache", "256")) * 1024 * 1024);
+	    ThumbnailTask task = new ThumbnailTask(args[CBZ_FILE], cache);
+	    task.setSize(Integer.parseInt(option(args, 3, "-size", "256")));
+	    task.setPages(Integer.parseInt(option(args, 3, "-pages", "0")));
+
+	    TaskEngine engine = TaskEngine.platform(1);
+	    try {
+		task.submit(engine, new TaskRunner.Listener<String>() {
+		    @Override
+		    public boolean isCancelled() {
+			return false;
+		    }
+
+		    @Override
+		    public void processed(String thumbnail) {
+			System.out.println(thumbnail);
+		    }
+		}).join();
+	    } finally {
+		engine.shutdown();
+	    }
+	}
+
+    }
+
+    /**
+     * A Delegator that writes the page index sidecar of a CBZ file.
+     */
+    private static class DelegateIndex implements Delegator {
+	private static final int OPT = 0;
+	private static final int CBZ_FILE = 1;
+
+	@Override
+	public boolean accept(String[] args) {
+	    return args.length == 2 && args[OPT].equals("-index");
+	}
+
+	@Override
+	public String getDescription() {
+	    return "-index <cbzFile>  - index the pages of a CBZ for random"
+		    + " access, in <cbzFile>" + PageIndex.SUFFIX;
+	}
+
+	@Override
+	public void handle(String[] args) throws Exception {
+	    Path archive = Paths.get(args[CBZ_FILE]);
+	    if (!Files.isRegularFile(archive)) {
+		printError("CBZ file not found:" + args[CBZ_FILE], this);
+	    }
+	    PageIndex index = PageIndex.load(archive);
+	    for (int i = 0; i < index.size(); i++) {
+		PageIndex.Page page = index.getPage(i);
+		System.out.println(i + "\t" + page.getName() + "\t"
+			+ page.getWidth() + "x" + page.getHeight() + "\t"
+			+ page.getSize());
+	    }
+	    System.out.println(PagePlan.of(index, null));
+	}
+
+    }
+
+    /**
+     * A Delegator that converts all CBZ files in a directory tree into PDF
+     * files, without starting a JVM for each file.
+     */
+    private static class DelegatePdfBatch implements Delegator {
+	private static final int OPT = 0;
+	private static final int INPUT_DIR = 1;
+	private static final int OUTPUT_DIR = 2;
+
+	@Override
+	public boolean accept(String[] args) {
+	    return args.length >= 3 && args[OPT].equals("-pdf-batch")
+		    && hasOptions(args, 3, concat(PDF_OPTIONS, "-j"));
+	}
+
+	@Override
+	public String getDescription() {
+	    return "-pdf-batch <inputDir> <outputDir> [-j N] [-dpi N] [-quality Q]"
+		    + " [-memory MB] [-metrics F]  - convert all CBZ files below inputDir,"
+		    + " N at a time";
+	}
+
+	@Override
+	public void handle(String[] args) throws Exception {
+	    Path input = Paths.get(args[INPUT_DIR]);
+	    if (!Files.exists(input)) {
+		printError("Input not found:" + args[INPUT_DIR], this);
+	    }
+
+	    int jobs = Integer.parseInt(option(args, 3, "-j",
+		    String.valueOf(Runtime.getRuntime().availableProcessors())));
+	    PdfConfig config = pdfConfig(args, 3);
+	    PdfBatch batch = new PdfBatch(input, Paths.get(args[OUTPUT_DIR]),
+		    jobs, config);
+	    PdfBatch.Summary summary = batch.run();
+	    writeMetrics(config, option(args, 3, "-metrics", null));
+
+	    for (Map.Entry<Path, String> failed : summary.getFailed()
+		    .entrySet()) {
+		System.err.println("FAILED " + failed.getKey() + ": "
+			+ failed.getValue());
+	    }
+	    System.out.println(summary);
+	    if (!summary.getFailed().isEmpty()) {
+		throw new Exception(summary.getFailed().size() + " of "
+			+ (summary.getFailed().size() + summary.getConverted()
+				.size()) + " archives failed");
+	    }
+	}
+
+    }
+
+    /**
+     * @param unit
+     *            what is counted.
+     * @return a listener printing the number of processed values, on the
+     *         console only.
+     */
+    private static <P> TaskRunner.Listener<P> progress(final String unit) {
+	final boolean console = System.console() != null;
+	return new TaskRunner.Listener<P>() {
+	    private int count;
+
+	    @Override
+	    public boolean isCancelled() {
+		return false;
+	    }
+
+	    @Override
+	    public void processed(P result) {
+		count++;
+		if (console) {
+		    System.err.print("\r" + count + " " + unit);
+		}
+	    }
+	};
+    }
+
+    /** End the progress line, if any. */
+    private static void endProgress() {
+	if (System.console() != null) {
+	    System.err.println();
+	}
+    }
+
+    /**
+     * Cancel a running task when the JVM is stopped, for example by Ctrl-C,
+     * and wait for it to end, so it can remove its partial output.
+     * 
+     * @param run
+     *            the running task.
+     * @return the registered shutdown hook.
+     */
+    private static Thread cancelOnExit(final TaskFuture<?> run) {
+	Thread hook = new Thread(new Runnable() {
+	    @Override
+	    public void run() {
+		if (run.cancel(true)) {
+		    try {
+			run.awaitFinished();
+		    } catch (InterruptedException e) {
+			// exiting anyway.
+		    }
+		}
+	    }
+	}, "cancel");
+	Runtime.getRuntime().addShutdownHook(hook);
+	return hook;
+    }
+
+    /**
+     * A Delegator that converts CBZ files as they arrive in a directory, until
+     * stopped.
+     */
+    private static class DelegateWatch implements Delegator {
+	private static final int OPT = 0;
+	private static final int INPUT_DIR = 1;
+	private static final int OUTPUT_DIR = 2;
+
+	@Override
+	public boolean accept(String[] args) {
+	    return args.length >= 3 && args[OPT].equals("-watch")
+		    && hasOptions(args, 3, concat(PDF_OPTIONS, "-j", "-quiet"));
+	}
+
+	@Override
+	public String getDescription() {
+	    return "-watch <inputDir> <outputDir> [-j N] [-quiet MS] [-dpi N]"
+		    + " [-quality Q] [-memory MB]  - convert CBZ files arriving"
+		    + " below inputDir once unchanged for MS milliseconds";
+	}
+
+	@Override
+	public void handle(String[] args) throws Exception {
+	    Path input = Paths.get(args[INPUT_DIR]);
+	    if (!Files.isDirectory(input)) {
+		printError("Input directory not found:" + args[INPUT_DIR], this);
+	    }
+
+	    int jobs = Integer.parseInt(option(args, 3, "-j",
+		    String.valueOf(Runtime.getRuntime().availableProcessors())));
+	    long quiet = Long.parseLong(option(args, 3, "-quiet", "2000"));
+	    final PdfWatcher watcher = new PdfWatcher(new PdfBatch(input,
+		    Paths.get(args[OUTPUT_DIR]), jobs, pdfConfig(args, 3)), quiet);
+	    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+		@Override
+		public void run() {
+		    watcher.stop();
+		    try {
+			// let running conversions finish and the manifest close.
+			watcher.awaitTermination(1, TimeUnit.MINUTES);
+		    } catch (InterruptedException e) {
+			// exiting anyway.
+		    }
+		}
+	    }, "stop"));
+	    watcher.run();
+	}
+
+    }
 
-	    // execute this on current thread.
-	    cbzPdf.doInBackground();
+    /**
+     * A Delegator that runs a local conversion service until stopped.
+     */
+    private static class DelegateServe implements Delegator {
+	private static final int OPT = 0;
+	private static final int PORT = 1;
+
+	@Override
+	public boolean accept(String[] args) {
+	    return args.length >= 2 && args[OPT].equals("-serve")
+		    && hasOptions(args, 2, "-j");
 	}
 
+	@Override
+	public String getDescription() {
+	    return "-serve <port> [-j N]  - convert and extract files sent to"
+		    + " http://127.0.0.1:port/jobs, N at a time";
+	}
+
+	@Override
+	public void handle(String[] args) throws Exception {
+	    int jobs = Integer.parseInt(option(args, 2, "-j",
+		    String.valueOf(Runtime.getRuntime().availableProcessors())));
+	    final JobService service = new JobService(jobs);
+	    final JobServer server = new JobServer(
+		    Integer.parseInt(args[PORT]), service);
+	    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+		@Override
+		public void run() {
+		    server.stop();
+		    try {
+			service.shutdown(10);
+		    } catch (InterruptedException e) {
+			// exiting anyway.
+		    }
+		}
+	    }, "stop"));
+	    server.start();
+	    System.out.println("Listening on http://127.0.0.1:"
+		    + server.getPort() + "/");
+	    System.out.println("Token: " + server.getToken());
+	    server.awaitStop();
+	}
+
+    }
+
+    /**
+     * A Delegator that benchmarks conversions and extractions over a generated
+     * corpus.
+     */
+    private static class DelegateBench implements Delegator {
+	private static final int OPT = 0;
+	private static final int WORK_DIR = 1;
+
+	@Override
+	public boolean accept(String[] args) {
+	    return args.length >= 2
+		    && args[OPT].equals("-bench")
+		    && hasOptions(args, 2, concat(PDF_OPTIONS, "-seed",
+			    "-archives", "-pages", "-format", "-method",
+			    "-warmup", "-runs", "-report"));
+	}
+
+	@Override
+	public String getDescription() {
+	    return "-bench <workDir> [-seed S] [-archives N] [-pages N]"
+		    + " [-format jpeg|png|mixed] [-method stored|deflated|mixed]"
+		    + " [-warmup N] [-runs N] [-report F]  - benchmark -pdf and"
+		    + " -unzip on a generated corpus";
+	}
+
+	@Override
+	public void handle(String[] args) throws Exception {
+	    MacroBenchmark bench = new MacroBenchmark(Paths.get(args[WORK_DIR]));
+	    bench.setSeed(Long.parseLong(option(args, 2, "-seed", "42")));
+	    bench.setArchives(Integer.parseInt(option(args, 2, "-archives",
+		    "8")));
+	    bench.setMaxPages(Integer.parseInt(option(args, 2, "-pages", "40")));
+	    bench.setFormat(option(args, 2, "-format", MacroBenchmark.MIXED));
+	    bench.setMethod(option(args, 2, "-method", MacroBenchmark.MIXED));
+	    bench.setWarmup(Integer.parseInt(option(args, 2, "-warmup", "1")));
+	    bench.setRuns(Integer.parseInt(option(args, 2, "-runs", "3")));
+	    bench.setConfig(pdfConfig(args, 2));
+
+	    String json = bench.run();
+	    String target = option(args, 2, "-report", "-");
+	    if (target.equals("-")) {
+		System.out.println(json);
+	    } else {
+		Files.write(Paths.get(target),
+			(json + "\n").getBytes(StandardCharsets.UTF_8));
+	    }
+	}
+
+    }
+
+    /** Options that change how a PDF is created. */
+    private static final String[] PDF_OPTIONS = { "-dpi", "-quality",
+	    "-memory", "-metrics" };
+
+    /** Options selecting entries, see {@link #selection}. */
+    private static final String[] SELECT_OPTIONS = { "-pages", "-glob",
+	    "-regex" };
+
+    /**
+     * Create the PDF settings from the options.
+     * 
+     * @param args
+     *            the arguments.
+     * @param from
+     *            index of the first option.
+     * @return the settings.
+     */
+    private static PdfConfig pdfConfig(String[] args, int from) {
+	PdfConfig config = new PdfConfig();
+	config.setDpi(Integer.parseInt(option(args, from, "-dpi", "0")));
+	config.setJpegQuality(Float.parseFloat(option(args, from, "-quality",
+		String.valueOf(config.getJpegQuality()))));
+	config.setMaxInFlightBytes(Long.parseLong(option(args, from,
+		"-memory", "0")) * 1024 * 1024);
+	if (option(args, from, "-metrics", null) != null) {
+	    config.setMetrics(new TaskMetrics());
+	}
+	return config;
+    }
+
+    /**
+     * Read the options selecting entries.
+     * 
+     * @param args
+     *            the command line.
+     * @param from
+     *            index of the first option.
+     * @param outputDirectory
+     *            the directory to extract to.
+     * @return the selection, <code>null</code> if no entries are selected.
+     */
+    private static EntrySelection selection(String[] args, int from,
+	    String outputDirectory) {
+	return EntrySelection.of(outputDirectory,
+		option(args, from, "-pages", null),
+		option(args, from, "-glob", null),
+		option(args, from, "-regex", null));
+    }
+
+    /**
+     * Write the metrics recorded by a run as JSON.
+     * 
+     * @param config
+     *            the settings holding the metrics.
+     * @param target
+     *            the file to write to, <code>-</code> for standard output,
+     *            <code>null</code> to not write the metrics.
+     */
+    private static void writeMetrics(PdfConfig config, String target)
+	    throws IOException {
+	if (target == null || config.getMetrics() == null) {
+	    return;
+	}
+	String json = config.getMetrics().toJson();
+	if (target.equals("-")) {
+	    System.out.println(json);
+	} else {
+	    Files.write(Paths.get(target),
+		    (json + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+    }
+
+    private static String[] concat(String[] options, String... more) {
+	String[] all = Arrays.copyOf(options, options.length + more.length);
+	System.arraycopy(more, 0, all, options.length, more.length);
+	return all;
+    }
+
+    /**
+     * Check that the arguments from an index are pairs of known option names
+     * and values.
+     * 
+     * @param args
+     *            the arguments.
+     * @param from
+     *            index of the first option.
+     * @param names
+     *            the known option names.
+     * @return <code>true</code> if all options are known.
+     */
+    private static boolean hasOptions(String[] args, int from, String... names) {
+	if ((args.length - from) % 2 != 0) {
+	    return false;
+	}
+	for (int i = from; i < args.length; i += 2) {
+	    if (!Arrays.asList(names).contains(args[i])) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * @param args
+     *            the arguments.
+     * @param from
+     *            index of the first option.
+     * @param name
+     *            the option name.
+     * @param defaultValue
+     *            the value if the option isn't given.
+     * @return the value given after the option name.
+     */
+    private static String option(String[] args, int from, String name,
+	    String defaultValue) {
+	for (int i = from; i + 1 < args.length; i += 2) {
+	    if (args[i].equals(name)) {
+		return args[i + 1];
+	    }
+	}
+	return defaultValue;
     }
 
     /** Delegators that handles the inputs for this application. */
@@ -78,6 +808,14 @@ public final class MainApp {
     static {
 	DELEGATORS = new ArrayList<Delegator>();
 	DELEGATORS.add(new DelegateCbzToPdf());
+	DELEGATORS.add(new DelegateUnzip());
+	DELEGATORS.add(new DelegateRepack());
+	DELEGATORS.add(new DelegateThumbnails());
+	DELEGATORS.add(new DelegateIndex());
+	DELEGATORS.add(new DelegatePdfBatch());
+	DELEGATORS.add(new DelegateWatch());
+	DELEGATORS.add(new DelegateServe());
+	DELEGATORS.add(new DelegateBench());
     }
 
     /**
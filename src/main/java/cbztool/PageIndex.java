@@ -0,0 +1,485 @@
+package cbztool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import cbztool.share.NaturalOrder;
+
+/**
+ * The pages of a Cbz with the position of their data in the archive, so any
+ * page can be read with one positional read instead of streaming through the
+ * pages before it.
+ * 
+ * <p>
+ * The index is kept in a sidecar file next to the archive, see
+ * {@link #sidecar(Path)}. It records for each page, in natural name order,
+ * the local header and data offsets, compressed and uncompressed size,
+ * compression method, CRC and image dimensions. The sidecar also records the
+ * archive size and modification time, {@link #load(Path)} rebuilds an index
+ * that no longer matches its archive.
+ * </p>
+ */
+public class PageIndex {
+
+    private static final Logger LOG = Logger.getLogger(PageIndex.class
+	    .getName());
+
+    /** Suffix added to the archive name for the sidecar file. */
+    public static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x43425a49; // CBZI
+    private static final int VERSION = 1;
+
+    /**
+     * Bytes of a page read first to find the image dimensions, up to
+     * {@link ImageProbe#MAX_HEADER} are read if the header is further in.
+     */
+    private static final int FIRST_HEADER_BYTES = 4096;
+
+    /**
+     * A page in the archive.
+     */
+    public static class Page {
+	private final String name;
+	private final int method;
+	private final long crc;
+	private final long localHeaderOffset;
+	private final long dataOffset;
+	private final long compressedSize;
+	private final long size;
+	private final int width;
+	private final int height;
+
+	Page(String name, int method, long crc, long localHeaderOffset,
+		long dataOffset, long compressedSize, long size, int width,
+		int height) {
+	    this.name = name;
+	    this.method = method;
+	    this.crc = crc;
+	    this.localHeaderOffset = localHeaderOffset;
+	    this.dataOffset = dataOffset;
+	    this.compressedSize = compressedSize;
+	    this.size = size;
+	    this.width = width;
+	    this.height = height;
+	}
+
+	/**
+	 * @return the entry name.
+	 */
+	public String getName() {
+	    return name;
+	}
+
+	/**
+	 * @return the compression method, STORED or DEFLATED.
+	 */
+	public int getMethod() {
+	    return method;
+	}
+
+	/**
+	 * @return position of the local file header in the archive.
+	 */
+	public long getLocalHeaderOffset() {
+	    return localHeaderOffset;
+	}
+
+	/**
+	 * @return position of the first byte of data in the archive.
+	 */
+	public long getDataOffset() {
+	    return dataOffset;
+	}
+
+	/**
+	 * @return size of the data in the archive.
+	 */
+	public long getCompressedSize() {
+	    return compressedSize;
+	}
+
+	/**
+	 * @return size of the uncompressed data.
+	 */
+	public long getSize() {
+	    return size;
+	}
+
+	/**
+	 * @return image width in pixels, 0 if not known.
+	 */
+	public int getWidth() {
+	    return width;
+	}
+
+	/**
+	 * @return image height in pixels, 0 if not known.
+	 */
+	public int getHeight() {
+	    return height;
+	}
+    }
+
+    private final long archiveSize;
+    private final long archiveModified;
+    private final List<Page> pages;
+
+    private PageIndex(long archiveSize, long archiveModified, List<Page> pages) {
+	this.archiveSize = archiveSize;
+	this.archiveModified = archiveModified;
+	this.pages = Collections.unmodifiableList(pages);
+    }
+
+    /**
+     * @param archive
+     *            the archive.
+     * @return the sidecar file of the archive.
+     */
+    public static Path sidecar(Path archive) {
+	return archive.resolveSibling(archive.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Load the index of an archive from its sidecar, or build it and write the
+     * sidecar if it is missing or out of date. The index is still returned if
+     * the sidecar can't be written.
+     * 
+     * @param archive
+     *            the archive.
+     * @return the index.
+     * @throws IOException
+     *             if the archive can't be read.
+     */
+    public static PageIndex load(Path archive) throws IOException {
+	long size = Files.size(archive);
+	long modified = Files.getLastModifiedTime(archive).toMillis();
+	Path sidecar = sidecar(archive);
+	try {
+	    PageIndex index = read(sidecar);
+	    if (index.archiveSize == size && index.archiveModified == modified) {
+		return index;
+	    }
+	} catch (NoSuchFileException e) {
+	    // not indexed yet.
+	} catch (IOException e) {
+	    LOG.log(Level.FINE, "Rebuilding broken index: " + sidecar, e);
+	}
+	PageIndex index = build(archive);
+	try {
+	    index.write(sidecar);
+	} catch (IOException e) {
+	    LOG.log(Level.FINE, "Unable to write index: " + sidecar, e);
+	}
+	return index;
+    }
+
+    /**
+     * Build the index of an archive from its central directory.
+     * 
+     * @param archive
+     *            the archive.
+     * @return the index.
+     * @throws IOException
+     *             if the archive can't be read or is not supported by
+     *             {@link ZipDirectory}.
+     */
+    public static PageIndex build(Path archive) throws IOException {
+	long size = Files.size(archive);
+	long modified = Files.getLastModifiedTime(archive).toMillis();
+	try (FileChannel channel = FileChannel.open(archive,
+		StandardOpenOption.READ)) {
+	    List<ZipDirectory.Entry> entries = new ArrayList<ZipDirectory.Entry>();
+	    for (ZipDirectory.Entry entry : ZipDirectory.read(channel)
+		    .entries()) {
+		if (ImageProbe.isImageName(entry.getName())) {
+		    entries.add(entry);
+		}
+	    }
+	    final NaturalOrder order = new NaturalOrder();
+	    Collections.sort(entries, new Comparator<ZipDirectory.Entry>() {
+		@Override
+		public int compare(ZipDirectory.Entry a, ZipDirectory.Entry b) {
+		    return order.compare(a.getName(), b.getName());
+		}
+	    });
+
+	    List<Page> pages = new ArrayList<Page>(entries.size());
+	    for (ZipDirectory.Entry entry : entries) {
+		long dataOffset = ZipDirectory.dataOffset(channel, entry);
+		Page page = new Page(entry.getName(), entry.getMethod(),
+			entry.getCrc(), entry.getLocalHeaderOffset(),
+			dataOffset, entry.getCompressedSize(), entry.getSize(),
+			0, 0);
+		int[] dimensions = dimensions(channel, page);
+		pages.add(new Page(page.name, page.method, page.crc,
+			page.localHeaderOffset, dataOffset,
+			page.compressedSize, page.size, dimensions[0],
+			dimensions[1]));
+	    }
+	    return new PageIndex(size, modified, pages);
+	}
+    }
+
+    /**
+     * @return width and height from the image header, 0 if the image can't be
+     *         read.
+     */
+    private static int[] dimensions(FileChannel channel, Page page) {
+	int[] dimensions = new int[2];
+	try {
+	    byte[] header = read(channel, page, FIRST_HEADER_BYTES);
+	    ImageProbe probe = ImageProbe.probe(header, header.length);
+	    if (probe == null && header.length < page.size) {
+		header = read(channel, page, ImageProbe.MAX_HEADER);
+		probe = ImageProbe.probe(header, header.length);
+	    }
+	    if (probe != null) {
+		dimensions[0] = probe.getWidth();
+		dimensions[1] = probe.getHeight();
+		return dimensions;
+	    }
+
+	    // not a format known to ImageProbe.
+	    ImageInputStream input = ImageIO
+		    .createImageInputStream(new ByteArrayInputStream(header));
+	    Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+	    if (readers.hasNext()) {
+		ImageReader reader = readers.next();
+		try {
+		    reader.setInput(input, true, true);
+		    dimensions[0] = reader.getWidth(0);
+		    dimensions[1] = reader.getHeight(0);
+		} finally {
+		    reader.dispose();
+		    input.close();
+		}
+	    }
+	} catch (IOException e) {
+	    LOG.log(Level.FINE, "No dimensions for " + page.getName(), e);
+	}
+	return dimensions;
+    }
+
+    /**
+     * Read the index from a sidecar file.
+     * 
+     * @param sidecar
+     *            the sidecar file.
+     * @return the index.
+     * @throws IOException
+     *             if the file can't be read or is not an index.
+     */
+    public static PageIndex read(Path sidecar) throws IOException {
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+		Files.newInputStream(sidecar)))) {
+	    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+		throw new IOException("Not a page index: " + sidecar);
+	    }
+	    long size = in.readLong();
+	    long modified = in.readLong();
+	    int count = in.readInt();
+	    if (count < 0) {
+		throw new IOException("Broken page index: " + sidecar);
+	    }
+	    List<Page> pages = new ArrayList<Page>(Math.min(count, 0xffff));
+	    for (int i = 0; i < count; i++) {
+		pages.add(new Page(in.readUTF(), in.readUnsignedByte(),
+			in.readInt() & 0xffffffffL, in.readLong(), in
+				.readLong(), in.readLong(), in.readLong(), in
+				.readInt(), in.readInt()));
+	    }
+	    return new PageIndex(size, modified, pages);
+	} catch (EOFException e) {
+	    throw new IOException("Truncated page index: " + sidecar, e);
+	}
+    }
+
+    /**
+     * Write the index to a sidecar file, atomically.
+     * 
+     * @param sidecar
+     *            the sidecar file.
+     * @throws IOException
+     *             if the file can't be written.
+     */
+    public void write(Path sidecar) throws IOException {
+	Path temp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+	try (DataOutputStream out = new DataOutputStream(
+		new BufferedOutputStream(Files.newOutputStream(temp)))) {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(archiveSize);
+	    out.writeLong(archiveModified);
+	    out.writeInt(pages.size());
+	    for (Page page : pages) {
+		out.writeUTF(page.name);
+		out.writeByte(page.method);
+		out.writeInt((int) page.crc);
+		out.writeLong(page.localHeaderOffset);
+		out.writeLong(page.dataOffset);
+		out.writeLong(page.compressedSize);
+		out.writeLong(page.size);
+		out.writeInt(page.width);
+		out.writeInt(page.height);
+	    }
+	}
+	try {
+	    Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING,
+		    StandardCopyOption.ATOMIC_MOVE);
+	} catch (AtomicMoveNotSupportedException e) {
+	    Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+
+    /**
+     * @param archive
+     *            the archive.
+     * @return <code>true</code> if the archive has the size and modification
+     *         time it had when indexed.
+     * @throws IOException
+     *             if the archive attributes can't be read.
+     */
+    public boolean matches(Path archive) throws IOException {
+	return Files.size(archive) == archiveSize
+		&& Files.getLastModifiedTime(archive).toMillis() == archiveModified;
+    }
+
+    /**
+     * @return number of pages.
+     */
+    public int size() {
+	return pages.size();
+    }
+
+    /**
+     * @param n
+     *            the page index, from 0 in natural name order.
+     * @return the page.
+     */
+    public Page getPage(int n) {
+	return pages.get(n);
+    }
+
+    /**
+     * @return all pages, in natural name order.
+     */
+    public List<Page> getPages() {
+	return pages;
+    }
+
+    /**
+     * Read a page with one positional read, safe to call from several
+     * threads.
+     * 
+     * @param channel
+     *            the archive.
+     * @param n
+     *            the page index.
+     * @return the page content.
+     * @throws IOException
+     *             if the page can't be read or its CRC does not match.
+     */
+    public byte[] read(FileChannel channel, int n) throws IOException {
+	Page page = pages.get(n);
+	if (page.size > Integer.MAX_VALUE - 8) {
+	    throw new IOException("Page too large: " + page.name);
+	}
+	byte[] data = read(channel, page, (int) page.size);
+	CRC32 crc = new CRC32();
+	crc.update(data, 0, data.length);
+	if (crc.getValue() != page.crc) {
+	    throw new IOException("CRC mismatch, archive changed? " + page.name);
+	}
+	return data;
+    }
+
+    /**
+     * Read the first bytes of a page.
+     * 
+     * @param channel
+     *            the archive.
+     * @param page
+     *            the page.
+     * @param limit
+     *            the maximum number of bytes to return.
+     * @return the first <code>limit</code> bytes, or the whole page if it is
+     *         smaller.
+     */
+    private static byte[] read(FileChannel channel, Page page, int limit)
+	    throws IOException {
+	int length = (int) Math.min(limit, page.size);
+	long compressed = page.compressedSize;
+	if (page.method == ZipEntry.STORED) {
+	    compressed = length;
+	} else if (length < page.size) {
+	    // deflate grows incompressible data by a few bytes per block.
+	    compressed = Math.min(compressed, length + length / 64 + 1024);
+	}
+	ByteBuffer buffer = ByteBuffer.allocate((int) compressed);
+	while (buffer.hasRemaining()) {
+	    if (channel.read(buffer, page.dataOffset + buffer.position()) < 0) {
+		throw new EOFException("Unexpected end of zip file");
+	    }
+	}
+	if (page.method == ZipEntry.STORED) {
+	    return buffer.array();
+	}
+	if (page.method != ZipEntry.DEFLATED) {
+	    throw new IOException("Unsupported method " + page.method + ": "
+		    + page.name);
+	}
+
+	byte[] data = new byte[length];
+	Inflater inflater = new Inflater(true);
+	try {
+	    inflater.setInput(buffer.array(), 0, buffer.capacity());
+	    int inflated = 0;
+	    while (inflated < length && !inflater.finished()) {
+		int count = inflater.inflate(data, inflated, length - inflated);
+		if (count == 0 && (inflater.needsInput()
+			|| inflater.needsDictionary())) {
+		    break;
+		}
+		inflated += count;
+	    }
+	    if (inflated < length) {
+		throw new IOException("Truncated page: " + page.name);
+	    }
+	} catch (DataFormatException e) {
+	    throw new IOException("Broken page: " + page.name, e);
+	} finally {
+	    inflater.end();
+	}
+	return data;
+    }
+
+}
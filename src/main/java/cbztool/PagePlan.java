@@ -0,0 +1,148 @@
+package cbztool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * What converting the pages of an archive will take, found from the image
+ * headers before any page is decoded: the number of pages, how many are
+ * rotated, the total pixels to decode and how many pages are resampled.
+ * 
+ * <pre>
+ * PagePlan plan = PagePlan.of(PageIndex.load(archive), resampler);
+ * System.out.println(plan.getResampled() + &quot; of &quot; + plan.getPages()
+ *      + &quot; pages are resampled&quot;);
+ * </pre>
+ */
+public class PagePlan {
+
+    private int pages;
+    private int unknown;
+    private int landscape;
+    private int resampled;
+    private long pixels;
+    private long maxPixels;
+
+    private PagePlan() {
+    }
+
+    /**
+     * Plan from the headers of the entries of an archive, only the first
+     * bytes of each entry are inflated.
+     * 
+     * @param source
+     *            the archive.
+     * @param resampler
+     *            the resampler used for the conversion, <code>null</code> if
+     *            pages are not resampled.
+     * @return the plan.
+     * @throws IOException
+     *             if an entry can't be read.
+     */
+    public static PagePlan of(ZipFileSource source, PageResampler resampler)
+	    throws IOException {
+	PagePlan plan = new PagePlan();
+	for (ZipEntry entry : source.list()) {
+	    if (entry.isDirectory()) {
+		continue;
+	    }
+	    InputStream in = source.open(entry);
+	    try {
+		ImageProbe probe = ImageProbe.probe(in);
+		plan.add(probe == null ? 0 : probe.getWidth(), probe == null ? 0
+			: probe.getHeight(), resampler);
+	    } finally {
+		in.close();
+	    }
+	}
+	return plan;
+    }
+
+    /**
+     * Plan from a page index, without reading the archive.
+     * 
+     * @param index
+     *            the index of the archive.
+     * @param resampler
+     *            the resampler used for the conversion, <code>null</code> if
+     *            pages are not resampled.
+     * @return the plan.
+     */
+    public static PagePlan of(PageIndex index, PageResampler resampler) {
+	PagePlan plan = new PagePlan();
+	for (PageIndex.Page page : index.getPages()) {
+	    plan.add(page.getWidth(), page.getHeight(), resampler);
+	}
+	return plan;
+    }
+
+    private void add(int width, int height, PageResampler resampler) {
+	pages++;
+	if (width <= 0 || height <= 0) {
+	    unknown++;
+	    return;
+	}
+	long size = (long) width * height;
+	pixels += size;
+	maxPixels = Math.max(maxPixels, size);
+	if (width > height) {
+	    landscape++;
+	}
+	if (resampler != null && resampler.needsResample(width, height)) {
+	    resampled++;
+	}
+    }
+
+    /**
+     * @return number of pages.
+     */
+    public int getPages() {
+	return pages;
+    }
+
+    /**
+     * @return number of pages whose size could not be read from the header.
+     */
+    public int getUnknown() {
+	return unknown;
+    }
+
+    /**
+     * @return number of pages wider than high, rotated onto the PDF page.
+     */
+    public int getLandscape() {
+	return landscape;
+    }
+
+    /**
+     * @return number of pages larger than the resampler target.
+     */
+    public int getResampled() {
+	return resampled;
+    }
+
+    /**
+     * @return total pixels of the pages of known size.
+     */
+    public long getPixels() {
+	return pixels;
+    }
+
+    /**
+     * @return pixels of the largest page, a decoded page needs about four
+     *         bytes per pixel.
+     */
+    public long getMaxPixels() {
+	return maxPixels;
+    }
+
+    @Override
+    public String toString() {
+	return String.format("%d pages, %d landscape, %d to resample,"
+		+ " %.1f Mpx in total, largest %.1f Mpx%s", pages, landscape,
+		resampled, pixels / 1e6, maxPixels / 1e6,
+		unknown > 0 ? ", " + unknown + " of unknown size" : "");
+    }
+
+}
@@ -0,0 +1,236 @@
+package cbztool;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Downscale page images to a target resolution for the PDF page, so scans are
+ * not embedded at a higher resolution than the page can show.
+ * 
+ * <p>
+ * A page larger than the page size at the target DPI is decoded, scaled down
+ * and encoded as JPEG at the configured quality. Pages that already fit, and
+ * pages where the result would not be smaller, are passed through unchanged.
+ * The size of JPEG, PNG and GIF pages is read from the header with
+ * {@link ImageProbe}, pages that fit are never handed to a decoder. Safe to
+ * use from several threads, the counters are summed over all pages.
+ * </p>
+ */
+public class PageResampler {
+
+    private final int maxWidth;
+    private final int maxHeight;
+    private final float quality;
+
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong resampled = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    /**
+     * @param pageWidth
+     *            PDF page width in points.
+     * @param pageHeight
+     *            PDF page height in points.
+     * @param dpi
+     *            the target resolution.
+     * @param quality
+     *            JPEG quality from 0 to 1.
+     */
+    public PageResampler(float pageWidth, float pageHeight, int dpi,
+	    float quality) {
+	this.maxWidth = (int) Math.ceil(pageWidth / 72 * dpi);
+	this.maxHeight = (int) Math.ceil(pageHeight / 72 * dpi);
+	this.quality = quality;
+    }
+
+    /**
+     * Resample a page if it is larger than the target.
+     * 
+     * @param data
+     *            the encoded image.
+     * @param length
+     *            number of bytes used in <code>data</code>.
+     * @return the resampled JPEG, or <code>null</code> if the page should be
+     *         used as it is.
+     * @throws IOException
+     *             if the image can't be decoded or encoded.
+     */
+    public byte[] resample(byte[] data, int length) throws IOException {
+	long start = System.nanoTime();
+	pages.incrementAndGet();
+	bytesIn.addAndGet(length);
+	byte[] result = null;
+	try {
+	    result = scale(data, length);
+	    return result;
+	} finally {
+	    bytesOut.addAndGet(result == null ? length : result.length);
+	    if (result != null) {
+		resampled.incrementAndGet();
+	    }
+	    nanos.addAndGet(System.nanoTime() - start);
+	}
+    }
+
+    /**
+     * @param width
+     *            image width in pixels.
+     * @param height
+     *            image height in pixels.
+     * @return <code>true</code> if an image of this size is larger than the
+     *         target and is resampled.
+     */
+    public boolean needsResample(int width, int height) {
+	return scale(width, height) < 1;
+    }
+
+    /**
+     * @return the scale that fits an image in the target.
+     */
+    private double scale(int w, int h) {
+	// landscape pages are rotated onto the page.
+	int boxW = w > h ? maxHeight : maxWidth;
+	int boxH = w > h ? maxWidth : maxHeight;
+	return Math.min((double) boxW / w, (double) boxH / h);
+    }
+
+    private byte[] scale(byte[] data, int length) throws IOException {
+	ImageProbe probe = ImageProbe.probe(data, length);
+	if (probe != null
+		&& !needsResample(probe.getWidth(), probe.getHeight())) {
+	    // fits already, no decoder needed.
+	    return null;
+	}
+	ImageInputStream input = ImageIO
+		.createImageInputStream(new ByteArrayInputStream(data, 0,
+			length));
+	Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+	if (!readers.hasNext()) {
+	    return null;
+	}
+	ImageReader reader = readers.next();
+	BufferedImage image;
+	try {
+	    reader.setInput(input, true, true);
+	    int w = reader.getWidth(0);
+	    int h = reader.getHeight(0);
+	    double scale = scale(w, h);
+	    if (scale >= 1) {
+		return null;
+	    }
+	    image = reader.read(0);
+	    image = downscale(image, Math.max(1, (int) Math.round(w * scale)),
+		    Math.max(1, (int) Math.round(h * scale)));
+	} finally {
+	    reader.dispose();
+	    input.close();
+	}
+
+	byte[] jpeg = encode(image, quality);
+	return jpeg.length < length ? jpeg : null;
+    }
+
+    /**
+     * Scale in steps of at most one half, a single bilinear step from a much
+     * larger image skips pixels and gives a noisy result.
+     */
+    static BufferedImage downscale(BufferedImage image, int width, int height) {
+	int type = image.getType() == BufferedImage.TYPE_BYTE_GRAY
+		? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+	BufferedImage current = image;
+	int w = image.getWidth();
+	int h = image.getHeight();
+	do {
+	    w = Math.max(width, w / 2);
+	    h = Math.max(height, h / 2);
+	    BufferedImage next = new BufferedImage(w, h, type);
+	    Graphics2D g = next.createGraphics();
+	    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+		    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+	    g.drawImage(current, 0, 0, w, h, Color.WHITE, null);
+	    g.dispose();
+	    current = next;
+	} while (w != width || h != height);
+	return current;
+    }
+
+    /**
+     * @return the image encoded as JPEG at a quality from 0 to 1.
+     */
+    static byte[] encode(BufferedImage image, float quality)
+	    throws IOException {
+	ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+		.next();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	ImageOutputStream output = ImageIO.createImageOutputStream(bytes);
+	try {
+	    ImageWriteParam param = writer.getDefaultWriteParam();
+	    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+	    param.setCompressionQuality(quality);
+	    writer.setOutput(output);
+	    writer.write(null, new IIOImage(image, null, null), param);
+	} finally {
+	    writer.dispose();
+	    output.close();
+	}
+	return bytes.toByteArray();
+    }
+
+    /**
+     * @return number of pages seen.
+     */
+    public long getPages() {
+	return pages.get();
+    }
+
+    /**
+     * @return number of pages that was resampled.
+     */
+    public long getResampled() {
+	return resampled.get();
+    }
+
+    /**
+     * @return bytes saved over all pages.
+     */
+    public long getBytesSaved() {
+	return bytesIn.get() - bytesOut.get();
+    }
+
+    /**
+     * @return average time spent per page, in milliseconds.
+     */
+    public double getMillisPerPage() {
+	long n = pages.get();
+	return n == 0 ? 0 : nanos.get() / 1e6 / n;
+    }
+
+    @Override
+    public String toString() {
+	long in = bytesIn.get();
+	return String.format(
+		"resampled %d of %d pages to %dx%d, saved %d of %d bytes"
+			+ " (%.1f%%), %.1f ms per page", resampled.get(),
+		pages.get(), maxWidth, maxHeight, getBytesSaved(), in,
+		in == 0 ? 0.0 : 100.0 * getBytesSaved() / in,
+		getMillisPerPage());
+    }
+
+}
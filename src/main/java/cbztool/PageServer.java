@@ -0,0 +1,130 @@
+package cbztool;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import cbztool.share.LruCache;
+import cbztool.share.Weigher;
+
+/**
+ * Random access to the pages of Cbz archives, for readers turning pages back
+ * and forth.
+ * 
+ * <p>
+ * Each archive is indexed once, see {@link PageIndex}, and a page is then
+ * read with one positional read. The indexes of recently used archives and
+ * the recently read pages are kept in memory, pages under a byte budget, so
+ * going back to a page does not read the archive again. Safe to use from
+ * several threads.
+ * </p>
+ * 
+ * <pre>
+ * PageServer server = new PageServer(64L &lt;&lt; 20);
+ * byte[] page = server.getPage(&quot;comic.cbz&quot;, 12);
+ * </pre>
+ */
+public class PageServer {
+
+    private static final int MAX_INDEXES = 64;
+    private static final int MAX_PAGES = 1024;
+
+    private static final Weigher<byte[]> WEIGHER = new Weigher<byte[]>() {
+	@Override
+	public long weigh(byte[] value) {
+	    return value.length;
+	}
+    };
+
+    private final LruCache<Path, PageIndex> indexes = new LruCache<Path, PageIndex>(
+	    MAX_INDEXES);
+    private final LruCache<String, byte[]> pages;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxBytes
+     *            the maximum number of bytes of pages kept in memory.
+     */
+    public PageServer(long maxBytes) {
+	this.pages = new LruCache<String, byte[]>(MAX_PAGES, WEIGHER,
+		Math.max(0, maxBytes));
+    }
+
+    /**
+     * Get the index of an archive, from memory, the sidecar file or by
+     * reading the archive.
+     * 
+     * @param archive
+     *            the archive.
+     * @return the index.
+     * @throws IOException
+     *             if the archive can't be read.
+     */
+    public PageIndex getIndex(String archive) throws IOException {
+	Path path = Paths.get(archive).toAbsolutePath().normalize();
+	PageIndex index;
+	synchronized (this) {
+	    index = indexes.get(path);
+	}
+	if (index == null || !index.matches(path)) {
+	    index = PageIndex.load(path);
+	    synchronized (this) {
+		indexes.put(path, index);
+	    }
+	}
+	return index;
+    }
+
+    /**
+     * Read a page.
+     * 
+     * @param archive
+     *            the archive.
+     * @param n
+     *            the page index, from 0 in natural name order.
+     * @return the page content, shared with other callers and must not be
+     *         changed.
+     * @throws IOException
+     *             if the page can't be read.
+     * @throws IndexOutOfBoundsException
+     *             if there is no such page.
+     */
+    public byte[] getPage(String archive, int n) throws IOException {
+	PageIndex index = getIndex(archive);
+	if (n < 0 || n >= index.size()) {
+	    throw new IndexOutOfBoundsException("No page " + n + " in "
+		    + archive + ", it has " + index.size());
+	}
+	Path path = Paths.get(archive).toAbsolutePath().normalize();
+	String key = path + "\u0000" + index.getPage(n).getName();
+	synchronized (this) {
+	    byte[] page = pages.get(key);
+	    if (page != null) {
+		hits++;
+		return page;
+	    }
+	    misses++;
+	}
+	byte[] page;
+	try (FileChannel channel = FileChannel.open(path,
+		StandardOpenOption.READ)) {
+	    page = index.read(channel, n);
+	}
+	synchronized (this) {
+	    pages.put(key, page);
+	}
+	return page;
+    }
+
+    @Override
+    public synchronized String toString() {
+	return String.format("%d indexes, %d pages, %d bytes, %d hits,"
+		+ " %d misses", indexes.size(), pages.size(), pages.getBytes(),
+		hits, misses);
+    }
+
+}
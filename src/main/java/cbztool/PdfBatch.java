@@ -0,0 +1,351 @@
+package cbztool;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import cbztool.share.AdaptiveScheduler;
+import cbztool.share.TaskEngine;
+
+/**
+ * Convert all CBZ files found in a directory tree to PDF files, in one JVM.
+ * 
+ * <p>
+ * The archives are converted concurrently, the PDF for
+ * <code>in/a/comic.cbz</code> is written to <code>out/a/comic.cbz.pdf</code>.
+ * Each archive is read and its PDF written on a thread of the I/O pool of an
+ * {@link AdaptiveScheduler}, the pages of all archives are decoded on its
+ * shared compute pool. Both pools are resized while the batch runs, the
+ * number of jobs is only where the I/O pool starts. An archive that fails to
+ * convert is reported in the {@link Summary} and does not stop the other
+ * conversions.
+ * </p>
+ * 
+ * <p>
+ * Converted archives are recorded in a {@link BatchManifest} in the output
+ * directory, archives that have not changed since the last run are skipped.
+ * </p>
+ * 
+ * <pre>
+ * PdfBatch batch = new PdfBatch(Paths.get(&quot;comics&quot;), Paths.get(&quot;pdf&quot;), 4);
+ * PdfBatch.Summary summary = batch.run();
+ * </pre>
+ */
+public class PdfBatch {
+
+    private static final Logger LOG = Logger.getLogger(PdfBatch.class
+	    .getName());
+
+    /**
+     * Result of a batch run.
+     */
+    public static class Summary {
+	private final List<Path> converted = new ArrayList<Path>();
+	private final List<Path> skipped = new ArrayList<Path>();
+	private final Map<Path, String> failed = new LinkedHashMap<Path, String>();
+	private long millis;
+
+	/**
+	 * @return the archives that was converted.
+	 */
+	public List<Path> getConverted() {
+	    return Collections.unmodifiableList(converted);
+	}
+
+	/**
+	 * @return the archives that was up to date.
+	 */
+	public List<Path> getSkipped() {
+	    return Collections.unmodifiableList(skipped);
+	}
+
+	/**
+	 * @return the archives that failed, with the error message.
+	 */
+	public Map<Path, String> getFailed() {
+	    return Collections.unmodifiableMap(failed);
+	}
+
+	/**
+	 * @return wall time for the batch.
+	 */
+	public long getMillis() {
+	    return millis;
+	}
+
+	@Override
+	public String toString() {
+	    return String.format(
+		    "%d converted, %d skipped, %d failed in %.1f s",
+		    converted.size(), skipped.size(), failed.size(),
+		    millis / 1000.0);
+	}
+    }
+
+    private final Path input;
+    private final Path output;
+    private final int jobs;
+    private final PdfConfig config;
+    private volatile PdfConfig taskConfig;
+    private volatile TaskEngine engine = TaskEngine.currentThread();
+
+    /**
+     * @param input
+     *            directory to search for CBZ files, or a single CBZ file.
+     * @param output
+     *            directory to write the PDF files to.
+     * @param jobs
+     *            number of archives to convert at once.
+     */
+    public PdfBatch(Path input, Path output, int jobs) {
+	this(input, output, jobs, new PdfConfig());
+    }
+
+    /**
+     * @param input
+     *            directory to search for CBZ files, or a single CBZ file.
+     * @param output
+     *            directory to write the PDF files to.
+     * @param jobs
+     *            number of archives to convert at once to start with.
+     * @param config
+     *            settings for the PDF files, not changed by the batch. With
+     *            a scheduler the archives are converted with a copy that has
+     *            a worker per processor.
+     */
+    public PdfBatch(Path input, Path output, int jobs, PdfConfig config) {
+	this.input = input;
+	this.output = output;
+	this.jobs = Math.max(1, jobs);
+	this.config = config;
+	this.taskConfig = config;
+    }
+
+    /**
+     * Find the CBZ files below the input.
+     * 
+     * @return the CBZ files in the order they were found.
+     * @throws IOException
+     *             if the input can't be read.
+     */
+    public List<Path> findArchives() throws IOException {
+	return findArchives(input);
+    }
+
+    /**
+     * Find the CBZ files below a directory.
+     * 
+     * @param root
+     *            directory to search, or a single CBZ file.
+     * @return the CBZ files in the order they were found.
+     * @throws IOException
+     *             if the directory can't be read.
+     */
+    static List<Path> findArchives(Path root) throws IOException {
+	final List<Path> archives = new ArrayList<Path>();
+	Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+	    @Override
+	    public FileVisitResult visitFile(Path file,
+		    BasicFileAttributes attrs) {
+		if (attrs.isRegularFile() && isArchive(file)) {
+		    archives.add(file);
+		}
+		return FileVisitResult.CONTINUE;
+	    }
+
+	    @Override
+	    public FileVisitResult visitFileFailed(Path file, IOException e) {
+		LOG.warning("Unable to read " + file + ": " + e.getMessage());
+		return FileVisitResult.CONTINUE;
+	    }
+	});
+	return archives;
+    }
+
+    /**
+     * @param file
+     *            a file.
+     * @return <code>true</code> if the file name ends with .cbz.
+     */
+    static boolean isArchive(Path file) {
+	return file.getFileName().toString().toLowerCase(Locale.ROOT)
+		.endsWith(".cbz");
+    }
+
+    /**
+     * @param archive
+     *            an archive below the input.
+     * @return the PDF to write for the archive.
+     */
+    public Path outputFor(Path archive) {
+	return output.resolve(keyFor(archive) + ".pdf");
+    }
+
+    /**
+     * @return the path of the archive relative to the input.
+     */
+    private String keyFor(Path archive) {
+	Path base = Files.isDirectory(input) ? input : input.getParent();
+	Path relative = base == null ? archive.getFileName() : base
+		.relativize(archive);
+	return relative.toString();
+    }
+
+    /**
+     * Convert all archives, blocks until all conversions are done.
+     * 
+     * @return the result of the batch.
+     * @throws IOException
+     *             if the input can't be searched.
+     * @throws InterruptedException
+     *             if interrupted while waiting for the conversions.
+     */
+    public Summary run() throws IOException, InterruptedException {
+	long start = System.currentTimeMillis();
+	List<Path> archives = findArchives();
+
+	Files.createDirectories(output);
+	final BatchManifest manifest = new BatchManifest(output);
+
+	AdaptiveScheduler scheduler = new AdaptiveScheduler(jobs);
+	scheduler.start();
+	useScheduler(scheduler);
+	Map<Path, Future<Boolean>> results = new LinkedHashMap<Path, Future<Boolean>>();
+	for (final Path archive : archives) {
+	    FutureTask<Boolean> result = new FutureTask<Boolean>(
+		    new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+			    return update(archive, manifest);
+			}
+		    });
+	    results.put(archive, result);
+	    scheduler.getIo().execute(result);
+	}
+
+	Summary summary = new Summary();
+	try {
+	    for (Map.Entry<Path, Future<Boolean>> result : results.entrySet()) {
+		try {
+		    if (result.getValue().get()) {
+			summary.converted.add(result.getKey());
+		    } else {
+			summary.skipped.add(result.getKey());
+		    }
+		} catch (ExecutionException e) {
+		    Throwable cause = e.getCause();
+		    summary.failed.put(result.getKey(),
+			    String.valueOf(cause.getMessage()));
+		    LOG.log(Level.WARNING,
+			    "Unable to convert " + result.getKey(), cause);
+		}
+	    }
+	} finally {
+	    scheduler.shutdown();
+	    useScheduler(null);
+	    manifest.close();
+	}
+	LOG.fine("Scheduler " + scheduler);
+	summary.millis = System.currentTimeMillis() - start;
+	return summary;
+    }
+
+    /**
+     * Prepare the pages of the archives converted by {@link #update} on the
+     * compute pool of a scheduler.
+     * 
+     * @param scheduler
+     *            the scheduler, <code>null</code> to prepare the pages on
+     *            threads of each conversion's own.
+     */
+    void useScheduler(AdaptiveScheduler scheduler) {
+	if (scheduler == null) {
+	    taskConfig = config;
+	    engine = TaskEngine.currentThread();
+	    return;
+	}
+	// the pages of all archives share the compute pool, the window of each
+	// archive is sized for all processors.
+	PdfConfig shared = new PdfConfig(config);
+	shared.setWorkers(Runtime.getRuntime().availableProcessors());
+	taskConfig = shared;
+	engine = scheduler.engine();
+    }
+
+    /**
+     * Convert an archive unless the manifest tells its PDF is up to date.
+     * 
+     * @param archive
+     *            an archive below the input.
+     * @param manifest
+     *            the manifest of the output directory.
+     * @return <code>true</code> if converted, <code>false</code> if skipped.
+     * @throws Exception
+     *             if the archive could not be converted.
+     */
+    boolean update(Path archive, BatchManifest manifest) throws Exception {
+	Path pdf = outputFor(archive);
+	String key = keyFor(archive);
+	if (manifest.isUpToDate(key, archive, pdf, config.getSettings())) {
+	    return false;
+	}
+	// what the archive was when read, a change during the conversion is
+	// then seen by the next run.
+	long size = Files.size(archive);
+	long modified = Files.getLastModifiedTime(archive).toMillis();
+	long crc = manifest.crc(key, archive, size, modified);
+	convert(archive, pdf, taskConfig, engine);
+	manifest.record(key, size, modified, crc, pdf, config.getSettings());
+	LOG.info(archive + " -> " + pdf);
+	return true;
+    }
+
+    /**
+     * @return the directory searched for CBZ files.
+     */
+    Path getInput() {
+	return input;
+    }
+
+    /**
+     * @return number of archives converted at once, where the batch starts.
+     */
+    int getJobs() {
+	return jobs;
+    }
+
+    /**
+     * @return the directory the PDF files are written to.
+     */
+    Path getOutput() {
+	return output;
+    }
+
+    /**
+     * Convert one archive on the current thread, the PDF is only moved into
+     * place once complete, see {@link PdfTask}.
+     */
+    private static Path convert(Path archive, Path pdf, PdfConfig config,
+	    TaskEngine engine) throws Exception {
+	Files.createDirectories(pdf.toAbsolutePath().getParent());
+	PdfTask task = new PdfTask(archive.toString(), pdf.toString(), config);
+	task.submit(engine, null).join();
+	return pdf;
+    }
+
+}
@@ -0,0 +1,295 @@
+package cbztool;
+
+import java.util.zip.ZipEntry;
+
+import cbztool.share.OutputConfig;
+import cbztool.share.TaskMetrics;
+
+/**
+ * Settings for converting a CBZ into a PDF.
+ */
+public class PdfConfig {
+
+    /** Default PDF page width. */
+    public static final float PAGE_WIDTH = 637.28F;
+
+    /** Default PDF page height. */
+    public static final float PAGE_HEIGHT = 835.7F;
+
+    private float pageWidth = PAGE_WIDTH;
+    private float pageHeight = PAGE_HEIGHT;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int window;
+    private boolean randomAccess;
+    private int dpi;
+    private float jpegQuality = 0.85F;
+    private TaskMetrics metrics;
+    private long maxInFlightBytes;
+    private int dedupImages = 4096;
+    private int firstPage;
+    private int pageCount;
+    private OutputConfig<ZipEntry> selection;
+
+    /**
+     * Default settings.
+     */
+    public PdfConfig() {
+    }
+
+    /**
+     * @param other
+     *            the settings to copy, the copy shares the metrics.
+     */
+    public PdfConfig(PdfConfig other) {
+	this.pageWidth = other.pageWidth;
+	this.pageHeight = other.pageHeight;
+	this.workers = other.workers;
+	this.window = other.window;
+	this.randomAccess = other.randomAccess;
+	this.dpi = other.dpi;
+	this.jpegQuality = other.jpegQuality;
+	this.metrics = other.metrics;
+	this.maxInFlightBytes = other.maxInFlightBytes;
+	this.dedupImages = other.dedupImages;
+	this.firstPage = other.firstPage;
+	this.pageCount = other.pageCount;
+	this.selection = other.selection;
+    }
+
+    /**
+     * @return PDF page width.
+     */
+    public float getPageWidth() {
+	return pageWidth;
+    }
+
+    /**
+     * @return PDF page height.
+     */
+    public float getPageHeight() {
+	return pageHeight;
+    }
+
+    /**
+     * @param w
+     *            PDF page width
+     * @param h
+     *            PDF page height
+     */
+    public void setPageSize(float w, float h) {
+	this.pageWidth = w;
+	this.pageHeight = h;
+    }
+
+    /**
+     * @return number of threads decoding images, defaults to the number of
+     *         available processors.
+     */
+    public int getWorkers() {
+	return workers;
+    }
+
+    /**
+     * @param workers
+     *            number of threads decoding images.
+     */
+    public void setWorkers(int workers) {
+	this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * @return the maximum number of pages read but not yet written to the PDF,
+     *         defaults to twice the number of workers.
+     */
+    public int getWindow() {
+	return window > 0 ? window : 2 * workers;
+    }
+
+    /**
+     * @param window
+     *            the maximum number of pages read but not yet written to the
+     *            PDF, bounds the memory used by a conversion.
+     */
+    public void setWindow(int window) {
+	this.window = window;
+    }
+
+    /**
+     * @return the maximum number of bytes of pages read but not yet written
+     *         to the PDF, 0 if only bounded by {@link #getWindow()}.
+     */
+    public long getMaxInFlightBytes() {
+	return maxInFlightBytes;
+    }
+
+    /**
+     * @param maxInFlightBytes
+     *            the maximum number of bytes of pages read but not yet
+     *            written to the PDF, 0 for no limit. With a limit each page
+     *            is flushed to the PDF file as soon as it is added, so the
+     *            heap needed does not grow with the number of pages.
+     */
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+	this.maxInFlightBytes = Math.max(0, maxInFlightBytes);
+    }
+
+    /**
+     * @return the number of distinct images remembered to find repeated
+     *         pages, 0 if every page embeds its own image.
+     */
+    public int getDedupImages() {
+	return dedupImages;
+    }
+
+    /**
+     * @param dedupImages
+     *            the number of distinct images remembered to find repeated
+     *            pages, defaults to 4096. A repeated image is embedded once
+     *            and referenced by the later pages, only a hash of each image
+     *            is kept. 0 to embed every page.
+     */
+    public void setDedupImages(int dedupImages) {
+	this.dedupImages = Math.max(0, dedupImages);
+    }
+
+    /**
+     * @return index of the first page converted, from 0.
+     */
+    public int getFirstPage() {
+	return firstPage;
+    }
+
+    /**
+     * @return number of pages converted, 0 for all pages from
+     *         {@link #getFirstPage()}.
+     */
+    public int getPageCount() {
+	return pageCount;
+    }
+
+    /**
+     * Convert a range of the pages, the entries of the archive are counted in
+     * the order they are read, see {@link #setRandomAccess(boolean)}.
+     * 
+     * @param firstPage
+     *            index of the first page, from 0.
+     * @param pageCount
+     *            number of pages, 0 for all pages from the first.
+     */
+    public void setPageRange(int firstPage, int pageCount) {
+	this.firstPage = Math.max(0, firstPage);
+	this.pageCount = Math.max(0, pageCount);
+    }
+
+    /**
+     * @return the entries converted, <code>null</code> for all pages.
+     */
+    public OutputConfig<ZipEntry> getSelection() {
+	return selection;
+    }
+
+    /**
+     * Convert only some of the entries, see {@link EntrySelection}. The
+     * selection is made from the listing of the archive, so an archive file
+     * is then read by random access in natural name order and the entries
+     * left out are never read. A page range from
+     * {@link #setPageRange(int, int)} counts the selected entries.
+     * 
+     * @param selection
+     *            the entries to convert, <code>null</code> for all pages.
+     */
+    public void setSelection(OutputConfig<ZipEntry> selection) {
+	this.selection = selection;
+    }
+
+    /**
+     * @return <code>true</code> if the archive is read by random access, see
+     *         {@link ZipFileSource}.
+     */
+    public boolean isRandomAccess() {
+	return randomAccess;
+    }
+
+    /**
+     * @param randomAccess
+     *            <code>true</code> to read the archive by random access, pages
+     *            are then added in natural name order instead of the order
+     *            they were packed.
+     */
+    public void setRandomAccess(boolean randomAccess) {
+	this.randomAccess = randomAccess;
+    }
+
+    /**
+     * @return the target resolution for page images, 0 if the images are
+     *         embedded as they are.
+     */
+    public int getDpi() {
+	return dpi;
+    }
+
+    /**
+     * @param dpi
+     *            the target resolution for page images on a page of
+     *            {@link #getPageWidth()} x {@link #getPageHeight()} points,
+     *            larger images are scaled down, see {@link PageResampler}. 0
+     *            to embed the images as they are.
+     */
+    public void setDpi(int dpi) {
+	this.dpi = Math.max(0, dpi);
+    }
+
+    /**
+     * @return JPEG quality for resampled pages.
+     */
+    public float getJpegQuality() {
+	return jpegQuality;
+    }
+
+    /**
+     * @param jpegQuality
+     *            JPEG quality for resampled pages, from 0 to 1, defaults to
+     *            0.85.
+     */
+    public void setJpegQuality(float jpegQuality) {
+	this.jpegQuality = Math.max(0, Math.min(1, jpegQuality));
+    }
+
+    /**
+     * @return the metrics recording the conversions, <code>null</code> if not
+     *         recorded.
+     */
+    public TaskMetrics getMetrics() {
+	return metrics;
+    }
+
+    /**
+     * @param metrics
+     *            the metrics to record the conversions in, shared by all
+     *            conversions using these settings. <code>null</code> to not
+     *            record.
+     */
+    public void setMetrics(TaskMetrics metrics) {
+	this.metrics = metrics;
+    }
+
+    /**
+     * @return the settings that change the PDF content, used to tell if a PDF
+     *         was created with other settings.
+     */
+    public String getSettings() {
+	String settings = "page=" + pageWidth + "x" + pageHeight + ",order="
+		+ (randomAccess ? "natural" : "archive");
+	if (dpi > 0) {
+	    settings += ",dpi=" + dpi + ",quality=" + jpegQuality;
+	}
+	if (firstPage > 0 || pageCount > 0) {
+	    settings += ",pages=" + firstPage + "+" + pageCount;
+	}
+	if (selection != null) {
+	    settings += ",select=" + selection;
+	}
+	return settings;
+    }
+
+}
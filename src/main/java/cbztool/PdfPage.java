@@ -0,0 +1,60 @@
+package cbztool;
+
+import java.nio.ByteBuffer;
+
+import cbztool.share.PooledBuffer;
+import cbztool.share.Releasable;
+
+import com.lowagie.text.Image;
+
+/**
+ * A page prepared by {@link PdfTask}, ready to be added to the PDF.
+ */
+public class PdfPage implements Releasable {
+
+    private Image image;
+    private final PooledBuffer buffer;
+    private final ByteBuffer digest;
+
+    /**
+     * @param image
+     *            the image to add to the page.
+     * @param buffer
+     *            the buffer the image is read from, released when the page
+     *            is written, may be <code>null</code>.
+     * @param digest
+     *            hash of the image bytes, <code>null</code> if images are not
+     *            deduplicated.
+     */
+    PdfPage(Image image, PooledBuffer buffer, ByteBuffer digest) {
+	this.image = image;
+	this.buffer = buffer;
+	this.digest = digest;
+    }
+
+    /**
+     * @return the image to add to the page.
+     */
+    public Image getImage() {
+	return image;
+    }
+
+    /**
+     * @return hash of the image bytes, equal for identical images.
+     */
+    ByteBuffer getDigest() {
+	return digest;
+    }
+
+    /**
+     * Release the image and the buffer it was read from.
+     */
+    @Override
+    public void release() {
+	image = null;
+	if (buffer != null) {
+	    buffer.release();
+	}
+    }
+
+}
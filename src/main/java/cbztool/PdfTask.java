@@ -0,0 +1,560 @@
+package cbztool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+import cbztool.share.BufferPool;
+import cbztool.share.InitializationException;
+import cbztool.share.LruCache;
+import cbztool.share.PooledBuffer;
+import cbztool.share.ProcessException;
+import cbztool.share.StagedTask;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskFuture;
+import cbztool.share.TaskRunner;
+import cbztool.share.Weigher;
+
+import com.lowagie.text.BadElementException;
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.Element;
+import com.lowagie.text.Image;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.PdfIndirectReference;
+import com.lowagie.text.pdf.PdfWriter;
+
+/**
+ * Convert a Comic Cbz to a PDF file, the task behind {@link CbzToPdf}.
+ * 
+ * <p>
+ * Example:
+ * 
+ * <pre>
+ * TaskEngine engine = TaskEngine.platform(1);
+ * PdfTask task = new PdfTask(&quot;coolcomic.cbz&quot;, &quot;coolpdf.pdf&quot;);
+ * task.submit(engine, null).join();
+ * </pre>
+ * 
+ * </p>
+ * 
+ * <p>
+ * The images are decoded on {@link PdfConfig#getWorkers()} threads while one
+ * thread reads the archive and the thread running the task adds the pages to
+ * the PDF in archive order.
+ * </p>
+ * 
+ * <p>
+ * The archive can also be a directory of page images, see
+ * {@link DirectorySource}.
+ * </p>
+ * 
+ * <p>
+ * Either path can be {@link #STANDARD_STREAM}, the archive is then streamed
+ * from the standard input and the PDF written to the standard output, nothing
+ * is staged on disk. The standard input is always read as a stream, in
+ * archive order.
+ * </p>
+ * 
+ * <p>
+ * A PDF file is written to {@link #partFile(String)} and moved into place
+ * once the last page is added and the document is closed, so the PDF path
+ * only ever holds a complete PDF. A failed or cancelled conversion removes
+ * the part file and leaves an earlier PDF at the path as it was. An archive
+ * that can't be read to its end, truncated or with a damaged entry, fails the
+ * conversion, see {@link ZipReadException}.
+ * </p>
+ */
+public class PdfTask implements
+	StagedTask<PooledBuffer, PdfPage, Document, String> {
+
+    private static final Logger LOG = Logger.getLogger(PdfTask.class
+	    .getName());
+
+    /** Path standing for the standard input or output. */
+    public static final String STANDARD_STREAM = "-";
+
+    /** Buffer size for the archive read and the PDF written. */
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
+    /** Maximum number of bytes kept in the buffer pool between pages. */
+    private static final long POOL_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Weighs the pages read from the archive, for
+     * {@link cbztool.share.TaskMetrics}.
+     */
+    private static final Weigher<PooledBuffer> WEIGHER = new Weigher<PooledBuffer>() {
+	@Override
+	public long weigh(PooledBuffer value) {
+	    return value.length();
+	}
+    };
+
+    private final String cbzFile;
+    private final String pdfFile;
+    private final Rectangle pageSize;
+    private final PdfConfig config;
+    private final BufferPool bufferPool;
+    private final PageResampler resampler;
+    private ZipSource zipContext;
+    private PdfWriter writer;
+    private LruCache<ByteBuffer, PdfIndirectReference> images;
+    private int duplicates;
+    private File partFile;
+    private final AtomicInteger pagesRead = new AtomicInteger();
+    private final AtomicInteger pagesAdded = new AtomicInteger();
+    private volatile boolean allRead;
+    private volatile boolean readFailed;
+    private boolean committed;
+
+    /**
+     * Create a pdf from a comic cbz file, a zip file containing only images.
+     * 
+     * @param cbzFile
+     *            the comic file path to create pdf from.
+     * @param pdfFile
+     *            the path to the PDF that will be created.
+     */
+    public PdfTask(String cbzFile, String pdfFile) {
+	this(cbzFile, pdfFile, new PdfConfig());
+    }
+
+    /**
+     * Create a pdf from a comic cbz file, a zip file containing only images.
+     * 
+     * @param cbzFile
+     *            the comic file path to create pdf from, a directory of page
+     *            images, or {@link #STANDARD_STREAM} to read the archive from
+     *            the standard input.
+     * @param pdfFile
+     *            the path to the PDF that will be created,
+     *            {@link #STANDARD_STREAM} to write it to the standard output.
+     * @param config
+     *            the conversion settings.
+     */
+    public PdfTask(String cbzFile, String pdfFile, PdfConfig config) {
+	assert config != null;
+	this.cbzFile = cbzFile;
+	this.pdfFile = pdfFile;
+	this.config = config;
+	this.pageSize = new Rectangle(config.getPageWidth(),
+		config.getPageHeight());
+	this.bufferPool = new BufferPool(config.getWindow()
+		+ config.getWorkers(),
+		config.getMaxInFlightBytes() > 0 ? Math.min(POOL_BYTES,
+			config.getMaxInFlightBytes()) : POOL_BYTES);
+	this.resampler = config.getDpi() > 0 ? new PageResampler(
+		config.getPageWidth(), config.getPageHeight(), config.getDpi(),
+		config.getJpegQuality()) : null;
+    }
+
+    /**
+     * Run the conversion.
+     * 
+     * @param engine
+     *            the engine to run the conversion on.
+     * @param listener
+     *            follows the conversion, may be <code>null</code>.
+     * @return the running conversion.
+     */
+    public TaskFuture<String> submit(TaskEngine engine,
+	    TaskRunner.Listener<String> listener) {
+	StagedTask<PooledBuffer, PdfPage, Document, String> task = this;
+	if (config.getMetrics() != null) {
+	    task = config.getMetrics().wrap(task, WEIGHER);
+	}
+	return engine.submit(task, config.getWorkers(), config.getWindow(),
+		WEIGHER, config.getMaxInFlightBytes(), listener);
+    }
+
+    /**
+     * @return the path to the PDF that will be created, {@link #STANDARD_STREAM}
+     *         for the standard output.
+     */
+    public String getPdfFile() {
+	return pdfFile;
+    }
+
+    @Override
+    public Document prepareContext() throws InitializationException {
+	try {
+	    if (STANDARD_STREAM.equals(cbzFile)) {
+		zipContext = ZipSource.stream(new BufferedInputStream(
+			System.in, STREAM_BUFFER_SIZE));
+	    } else if (new File(cbzFile).isDirectory()) {
+		zipContext = ZipSource.directory(cbzFile);
+	    } else if (config.getSelection() != null) {
+		// selected from the central directory, the rest is never read.
+		zipContext = ZipSource.file(cbzFile);
+	    } else if (config.isRandomAccess()) {
+		ZipFileSource file = ZipSource.file(cbzFile);
+		zipContext = file;
+		// the plan reads the header of every page, only made for the
+		// log and once per archive, not for each chunk of it.
+		if (LOG.isLoggable(Level.FINE) && config.getFirstPage() == 0
+			&& config.getPageCount() == 0) {
+		    try {
+			LOG.fine(cbzFile + ": " + PagePlan.of(file, resampler));
+		    } catch (IOException e) {
+			// the broken page fails the conversion when it is read.
+			LOG.log(Level.FINE, "No plan for " + cbzFile, e);
+		    }
+		}
+	    } else if (config.getFirstPage() > 0 || config.getPageCount() > 0) {
+		// the pages before the range are skipped without inflating
+		// them, in the same order as the stream.
+		zipContext = ZipSource.packed(cbzFile);
+	    } else {
+		zipContext = ZipSource.stream(new BufferedInputStream(
+			new FileInputStream(cbzFile)));
+	    }
+	} catch (IOException e1) {
+	    throw new InitializationException("Unable to open zip archive: "
+		    + cbzFile, e1);
+	}
+	Document document = new Document(pageSize);
+	try {
+	    OutputStream out;
+	    if (STANDARD_STREAM.equals(pdfFile)) {
+		out = Channels.newOutputStream(new FileOutputStream(
+			FileDescriptor.out).getChannel());
+	    } else {
+		partFile = partFile(pdfFile);
+		out = new FileOutputStream(partFile);
+	    }
+	    writer = PdfWriter.getInstance(document, new BufferedOutputStream(
+		    out, STREAM_BUFFER_SIZE));
+	} catch (FileNotFoundException e) {
+	    closeQuietly(zipContext);
+	    throw new InitializationException("Unable to create output: "
+		    + pdfFile, e);
+	} catch (DocumentException e) {
+	    closeQuietly(zipContext);
+	    throw new InitializationException("Unable to initialize PdfWriter",
+		    e);
+	}
+	if (config.getDedupImages() > 0) {
+	    images = new LruCache<ByteBuffer, PdfIndirectReference>(
+		    config.getDedupImages());
+	}
+	document.setMarginMirroring(true);
+	document.setMargins(0, 0, 0, 0);
+
+	document.open();
+	return document;
+    }
+
+    /**
+     * Add image to PDF document.
+     * 
+     * @param value
+     *            the image bytes, released when the page is added.
+     * @param context
+     *            the PDF document.
+     */
+    @Override
+    public String process(PooledBuffer value, Document context)
+	    throws ProcessException {
+	return complete(prepare(value), context);
+    }
+
+    /**
+     * Decode an image and rotate and scale it to fit a page, safe to call from
+     * several threads.
+     * 
+     * <p>
+     * If a target DPI is configured, pages larger than the target are first
+     * resampled by a {@link PageResampler}.
+     * </p>
+     * 
+     * <p>
+     * iText embeds the whole array of a JPEG, so the image is created from an
+     * array of exact size. Without a resampler the pages of known size are
+     * read into such arrays, see {@link #iterate(Document)}, the pool only
+     * holds the input of the resampler and pages of unknown size. If the
+     * pooled array is larger the content is copied and the pooled array is
+     * released at once.
+     * </p>
+     * 
+     * <p>
+     * When images are deduplicated the page also gets a SHA-1 hash of the
+     * bytes that are embedded.
+     * </p>
+     * 
+     * @param value
+     *            the image bytes.
+     * @return the page ready to be added to the PDF.
+     */
+    @Override
+    public PdfPage prepare(PooledBuffer value) throws ProcessException {
+	try {
+	    byte[] data = resampler == null ? null : resampler.resample(
+		    value.array(), value.length());
+	    if (data == null) {
+		data = value.bytes();
+	    }
+	    PooledBuffer retained = value;
+	    if (data != value.array()) {
+		value.release();
+		retained = null;
+	    }
+
+	    Image pdfImage = Image.getInstance(data);
+	    pdfImage.setAlignment(Element.ALIGN_CENTER);
+
+	    if (pdfImage.getWidth() > pdfImage.getHeight()) {
+		pdfImage.setRotationDegrees(90);
+		pdfImage.rotate();
+	    }
+
+	    pdfImage.scaleToFit(pageSize.getWidth(), pageSize.getHeight());
+	    return new PdfPage(pdfImage, retained,
+		    config.getDedupImages() > 0 ? digest(data) : null);
+	} catch (BadElementException e) {
+	    value.release();
+	    throw new ProcessException("Unable to add image to pdf", e);
+	} catch (IOException e) {
+	    value.release();
+	    throw new ProcessException("Unable to add image to pdf", e);
+	}
+    }
+
+    /**
+     * @return SHA-1 hash of the image bytes.
+     */
+    private static ByteBuffer digest(byte[] data) throws ProcessException {
+	try {
+	    return ByteBuffer.wrap(MessageDigest.getInstance("SHA-1").digest(
+		    data));
+	} catch (NoSuchAlgorithmException e) {
+	    throw new ProcessException("SHA-1 not available", e);
+	}
+    }
+
+    /**
+     * @return the resampler, <code>null</code> if pages are not resampled.
+     */
+    public PageResampler getResampler() {
+	return resampler;
+    }
+
+    /**
+     * Add a prepared image as a new page in the PDF document, and release the
+     * buffer the image was read from.
+     * 
+     * <p>
+     * An image already embedded for an earlier page, with the same hash, is
+     * not embedded again, the page refers to the earlier image object. The
+     * first copy of each image is written at once so its object can be
+     * referenced.
+     * </p>
+     * 
+     * <p>
+     * With {@link PdfConfig#getMaxInFlightBytes()} the page is flushed to the
+     * PDF file at once.
+     * </p>
+     * 
+     * @param value
+     *            the page to add.
+     * @param context
+     *            the PDF document.
+     */
+    @Override
+    public String complete(PdfPage value, Document context)
+	    throws ProcessException {
+	try {
+	    Image image = value.getImage();
+	    if (images != null) {
+		PdfIndirectReference embedded = images.get(value.getDigest());
+		if (embedded != null) {
+		    image.setDirectReference(embedded);
+		    duplicates++;
+		} else {
+		    embedded = writer.getPdfIndirectReference();
+		    writer.addDirectImageSimple(image, embedded);
+		    images.put(value.getDigest(), embedded);
+		}
+	    }
+	    context.add(image);
+	    context.newPage();
+	    if (config.getMaxInFlightBytes() > 0) {
+		writer.flush();
+	    }
+	    pagesAdded.incrementAndGet();
+	} catch (DocumentException e) {
+	    throw new ProcessException("Unable to add image to pdf", e);
+	} finally {
+	    value.release();
+	}
+	return null;
+    }
+
+    /**
+     * Clean up the task, close all open stream. The PDF is moved into place
+     * only if every page read was added.
+     * 
+     * @throws IllegalStateException
+     *             if the complete PDF can't be moved into place.
+     */
+    public void endContext(Document context) {
+	boolean closed = false;
+	try {
+	    context.close();
+	    closed = true;
+	} finally {
+	    closeQuietly(zipContext);
+	    if (partFile != null) {
+		commit(closed && allRead && !readFailed
+			&& pagesAdded.get() == pagesRead.get());
+	    }
+	}
+	LOG.finest("Created pdf: " + pdfFile);
+	if (resampler != null) {
+	    LOG.info(pdfFile + ": " + resampler);
+	}
+	if (duplicates > 0) {
+	    LOG.info(pdfFile + ": " + duplicates
+		    + " repeated images referenced instead of embedded");
+	}
+    }
+
+    /**
+     * Move the part file into place, or remove it.
+     */
+    private void commit(boolean complete) {
+	if (!complete) {
+	    partFile.delete();
+	    return;
+	}
+	try {
+	    moveIntoPlace(partFile, new File(pdfFile));
+	    committed = true;
+	} catch (IOException e) {
+	    partFile.delete();
+	    throw new IllegalStateException("Unable to create " + pdfFile, e);
+	}
+    }
+
+    /**
+     * @return <code>true</code> once the complete PDF is moved into place.
+     */
+    boolean isCommitted() {
+	return committed;
+    }
+
+    /**
+     * @param file
+     *            an output file.
+     * @return the file the output is written to until it is complete.
+     */
+    public static File partFile(String file) {
+	return new File(file + ".part");
+    }
+
+    /**
+     * Replace a file atomically where the file system allows it, so the
+     * target is either the old or the new file, never a partial file.
+     * 
+     * @param from
+     *            the complete file, next to the target.
+     * @param to
+     *            the target.
+     * @throws IOException
+     *             if the file can't be moved.
+     */
+    static void moveIntoPlace(File from, File to) throws IOException {
+	try {
+	    Files.move(from.toPath(), to.toPath(),
+		    StandardCopyOption.REPLACE_EXISTING,
+		    StandardCopyOption.ATOMIC_MOVE);
+	} catch (AtomicMoveNotSupportedException e) {
+	    Files.move(from.toPath(), to.toPath(),
+		    StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+
+    private static void closeQuietly(ZipSource source) {
+	try {
+	    source.close();
+	} catch (IOException e) {
+	}
+    }
+
+    /**
+     * @return number of pages that referred to an image already embedded.
+     */
+    public int getDuplicates() {
+	return duplicates;
+    }
+
+    /**
+     * Iterator for retrieve the image bytes in the ZIP. Without a resampler
+     * pages of known size are read into arrays of exact size, which iText
+     * embeds as they are.
+     */
+    public Iterator<PooledBuffer> iterate(Document context) {
+	Iterator<ZipEntry> entries = zipContext.entries();
+	if (config.getSelection() != null) {
+	    entries = config.getSelection().select(entries);
+	}
+	final Iterator<PooledBuffer> pages = ZipIterator.buffers(zipContext,
+		entries, bufferPool, config.getFirstPage(),
+		config.getPageCount(), resampler == null);
+	// counts the pages and read failures, so a PDF that misses pages is not
+	// moved into place.
+	return new Iterator<PooledBuffer>() {
+	    @Override
+	    public boolean hasNext() {
+		boolean more;
+		try {
+		    more = pages.hasNext();
+		} catch (RuntimeException e) {
+		    readFailed = true;
+		    throw e;
+		}
+		if (!more) {
+		    allRead = true;
+		}
+		return more;
+	    }
+
+	    @Override
+	    public PooledBuffer next() {
+		PooledBuffer page;
+		try {
+		    page = pages.next();
+		} catch (RuntimeException e) {
+		    readFailed = true;
+		    throw e;
+		}
+		pagesRead.incrementAndGet();
+		return page;
+	    }
+
+	    @Override
+	    public void remove() {
+		throw new UnsupportedOperationException("Remove not supported");
+	    }
+	};
+    }
+
+}
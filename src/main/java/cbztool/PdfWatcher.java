@@ -0,0 +1,298 @@
+package cbztool;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import cbztool.share.AdaptiveScheduler;
+import cbztool.share.OrderedPipeline;
+
+/**
+ * Convert CBZ files as they arrive in a directory tree.
+ * 
+ * <p>
+ * The input is watched with a {@link WatchService}. A new or changed archive
+ * is converted once its size and modification time have not changed for the
+ * quiet period, so files still being copied are left alone. The archives
+ * are converted on an {@link AdaptiveScheduler}, like a {@link PdfBatch}
+ * does, starting with <code>jobs</code> archives at once. The output and the
+ * {@link BatchManifest} are the same as for a {@link PdfBatch}, on start the
+ * whole input is checked against the manifest so archives that arrived while
+ * the watcher was down are converted, and unchanged archives are never
+ * converted again.
+ * </p>
+ * 
+ * <pre>
+ * PdfWatcher watcher = new PdfWatcher(new PdfBatch(inbox, pdf, 2), 2000);
+ * watcher.run(); // until stop() is called from another thread
+ * </pre>
+ */
+public class PdfWatcher {
+
+    private static final Logger LOG = Logger.getLogger(PdfWatcher.class
+	    .getName());
+
+    /**
+     * Size and modification time of an archive when it was last seen.
+     */
+    private static class Candidate {
+	private long size = -1;
+	private long modified = -1;
+	private long stableSince;
+    }
+
+    private final PdfBatch batch;
+    private final Path input;
+    private final long quietMillis;
+    private final int jobs;
+    private final Map<Path, Candidate> pending = new HashMap<Path, Candidate>();
+    private final Set<Path> converting = new HashSet<Path>();
+    private volatile WatchService watcher;
+    private volatile boolean stopped;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * @param batch
+     *            converts the archives, its input directory is watched and
+     *            its number of jobs is where the I/O pool starts.
+     * @param quietMillis
+     *            how long an archive must stay unchanged before it is
+     *            converted.
+     */
+    public PdfWatcher(PdfBatch batch, long quietMillis) {
+	this.batch = batch;
+	this.input = batch.getInput();
+	this.jobs = batch.getJobs();
+	this.quietMillis = Math.max(0, quietMillis);
+    }
+
+    /**
+     * Watch the input and convert archives until {@link #stop()} is called.
+     * 
+     * @throws IOException
+     *             if the input can't be watched or the manifest can't be
+     *             read.
+     * @throws InterruptedException
+     *             if interrupted while waiting for changes.
+     */
+    public void run() throws IOException, InterruptedException {
+	Files.createDirectories(batch.getOutput());
+	final BatchManifest manifest = new BatchManifest(batch.getOutput());
+	final AdaptiveScheduler scheduler = new AdaptiveScheduler(jobs);
+	scheduler.start();
+	batch.useScheduler(scheduler);
+	ScheduledExecutorService timer = Executors
+		.newSingleThreadScheduledExecutor(OrderedPipeline
+			.daemonThreads("watcher"));
+	watcher = FileSystems.getDefault().newWatchService();
+	try {
+	    // register before the scan, so no archive falls between the two.
+	    register(input);
+	    scan(input);
+	    timer.scheduleWithFixedDelay(new Runnable() {
+		@Override
+		public void run() {
+		    // an exception would cancel the schedule, and no archive
+		    // would be converted after it.
+		    try {
+			submitQuiet(scheduler.getIo(), manifest);
+		    } catch (RuntimeException e) {
+			LOG.log(Level.WARNING, "Unable to submit archives", e);
+		    }
+		}
+	    }, 0, Math.max(100, quietMillis / 4), TimeUnit.MILLISECONDS);
+
+	    while (!stopped) {
+		WatchKey key;
+		try {
+		    key = watcher.take();
+		} catch (ClosedWatchServiceException e) {
+		    break;
+		}
+		Path directory = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+		    if (event.kind() == OVERFLOW) {
+			LOG.warning("Missed changes, scanning " + input);
+			scan(input);
+			continue;
+		    }
+		    Path changed = directory.resolve((Path) event.context());
+		    if (Files.isDirectory(changed)) {
+			if (event.kind() == ENTRY_CREATE) {
+			    register(changed);
+			    scan(changed);
+			}
+		    } else if (PdfBatch.isArchive(changed)) {
+			seen(changed);
+		    }
+		}
+		key.reset();
+	    }
+	} finally {
+	    timer.shutdownNow();
+	    scheduler.shutdown();
+	    scheduler.awaitTermination(1, TimeUnit.MINUTES);
+	    batch.useScheduler(null);
+	    watcher.close();
+	    manifest.close();
+	    done.countDown();
+	}
+    }
+
+    /**
+     * Stop watching, conversions already started are completed.
+     */
+    public void stop() {
+	stopped = true;
+	WatchService current = watcher;
+	if (current != null) {
+	    try {
+		current.close();
+	    } catch (IOException e) {
+		LOG.log(Level.FINE, "Unable to close watcher", e);
+	    }
+	}
+    }
+
+    /**
+     * Wait until {@link #run()} has returned, after {@link #stop()}.
+     * 
+     * @param timeout
+     *            the longest time to wait.
+     * @param unit
+     *            unit of the timeout.
+     * @return <code>true</code> if the watcher has stopped.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+	    throws InterruptedException {
+	return done.await(timeout, unit);
+    }
+
+    /**
+     * Watch a directory and the directories below it.
+     */
+    private void register(Path directory) throws IOException {
+	Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+	    @Override
+	    public FileVisitResult preVisitDirectory(Path dir,
+		    BasicFileAttributes attrs) throws IOException {
+		dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+		return FileVisitResult.CONTINUE;
+	    }
+	});
+    }
+
+    /**
+     * Look at all archives below a directory, the manifest tells which ones
+     * need converting.
+     */
+    private void scan(Path directory) throws IOException {
+	for (Path archive : PdfBatch.findArchives(directory)) {
+	    seen(archive);
+	}
+    }
+
+    private void seen(Path archive) {
+	synchronized (pending) {
+	    if (!pending.containsKey(archive)) {
+		pending.put(archive, new Candidate());
+	    }
+	}
+    }
+
+    /**
+     * Convert the pending archives that have not changed for the quiet
+     * period, an archive being converted waits until its conversion is done.
+     */
+    private void submitQuiet(Executor pool, final BatchManifest manifest) {
+	long now = System.currentTimeMillis();
+	synchronized (pending) {
+	    Iterator<Map.Entry<Path, Candidate>> candidates = pending
+		    .entrySet().iterator();
+	    while (candidates.hasNext()) {
+		Map.Entry<Path, Candidate> entry = candidates.next();
+		Path archive = entry.getKey();
+		Candidate candidate = entry.getValue();
+		long size;
+		long modified;
+		try {
+		    size = Files.size(archive);
+		    modified = Files.getLastModifiedTime(archive).toMillis();
+		} catch (IOException e) {
+		    // removed or renamed before it was converted.
+		    candidates.remove();
+		    continue;
+		}
+		if (size != candidate.size || modified != candidate.modified) {
+		    candidate.size = size;
+		    candidate.modified = modified;
+		    candidate.stableSince = now;
+		    continue;
+		}
+		if (now - candidate.stableSince < quietMillis
+			|| converting.contains(archive)) {
+		    continue;
+		}
+		converting.add(archive);
+		try {
+		    execute(pool, archive, manifest);
+		} catch (RejectedExecutionException e) {
+		    // left pending, the pool is stopping.
+		    converting.remove(archive);
+		    throw e;
+		}
+		candidates.remove();
+	    }
+	}
+    }
+
+    /**
+     * Convert an archive on the pool, the archive is no longer converting
+     * once done.
+     */
+    private void execute(Executor pool, final Path archive,
+	    final BatchManifest manifest) {
+	pool.execute(new Runnable() {
+	    @Override
+	    public void run() {
+		try {
+		    batch.update(archive, manifest);
+		} catch (Exception e) {
+		    LOG.log(Level.WARNING, "Unable to convert " + archive, e);
+		} finally {
+		    synchronized (pending) {
+			converting.remove(archive);
+		    }
+		}
+	    }
+	});
+    }
+
+}
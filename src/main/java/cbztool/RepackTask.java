@@ -0,0 +1,437 @@
+package cbztool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import cbztool.share.InitializationException;
+import cbztool.share.ProcessException;
+import cbztool.share.StagedTask;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskFuture;
+import cbztool.share.TaskMetrics;
+import cbztool.share.TaskRunner;
+import cbztool.share.Weigher;
+
+/**
+ * Repack a Cbz into a new Cbz, pages in natural name order and each entry
+ * stored with the method that suits it.
+ * 
+ * <p>
+ * Entries are deflated on {@link #setWorkers(int)} threads and kept DEFLATED
+ * only if that saves at least {@link #setMinSaving(double)} of their size,
+ * otherwise they are STORED so readers never inflate them. Images already
+ * compressed (JPEG, PNG, GIF, WebP) are first tried on a 64 KB sample at the
+ * fastest level, and STORED without deflating the rest if the sample does not
+ * shrink. The archive is then
+ * written in order by the thread running the task, see {@link ZipWriter}.
+ * </p>
+ * 
+ * <p>
+ * The archive is written to a part file, see {@link PdfTask#partFile(String)},
+ * and moved into place only once every entry is written, a failed or
+ * cancelled repack leaves no archive behind.
+ * </p>
+ * 
+ * <pre>
+ * RepackTask task = new RepackTask(&quot;comic.cbz&quot;, &quot;repacked.cbz&quot;);
+ * task.submit(TaskEngine.platform(1), null).join();
+ * </pre>
+ */
+public class RepackTask implements
+	StagedTask<RepackTask.Entry, RepackTask.Entry, ZipWriter, String> {
+
+    private static final Logger LOG = Logger.getLogger(RepackTask.class
+	    .getName());
+
+    /**
+     * Extensions of formats that rarely shrink when deflated, only a sample of
+     * them is deflated first.
+     */
+    private static final String[] COMPRESSED = { ".jpg", ".jpeg", ".jpe",
+	    ".png", ".gif", ".webp", ".jp2", ".avif", ".heic", ".zip", ".cbz",
+	    ".gz", ".rar", ".7z" };
+
+    /** Bytes deflated to tell if an already compressed format shrinks. */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Weighs the entries by their uncompressed size, for {@link TaskMetrics}.
+     */
+    private static final Weigher<Entry> WEIGHER = new Weigher<Entry>() {
+	@Override
+	public long weigh(Entry value) {
+	    return value.data.length;
+	}
+    };
+
+    /**
+     * An entry read from the source archive, and how it is written to the
+     * repacked archive once prepared.
+     */
+    static final class Entry {
+	private final String name;
+	private final long time;
+	private final byte[] data;
+	private long crc;
+	private int method = ZipEntry.STORED;
+	private byte[] packed;
+	private int packedLength;
+
+	Entry(String name, long time, byte[] data) {
+	    this.name = name;
+	    this.time = time;
+	    this.data = data;
+	    this.packed = data;
+	    this.packedLength = data.length;
+	}
+    }
+
+    private final String cbzFile;
+    private final String outputFile;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private double minSaving = 0.1;
+    private TaskMetrics metrics;
+    private ZipSource source;
+    private File partFile;
+    private final AtomicInteger entriesRead = new AtomicInteger();
+    private int entriesWritten;
+    private volatile boolean allRead;
+    private volatile boolean readFailed;
+    private int stored;
+    private int deflated;
+    private long bytesIn;
+    private long bytesOut;
+
+    /**
+     * Repack a comic cbz file.
+     * 
+     * @param cbzFile
+     *            the comic file to repack.
+     * @param outputFile
+     *            the path to the Cbz that will be created, must not be the
+     *            source.
+     */
+    public RepackTask(String cbzFile, String outputFile) {
+	this.cbzFile = cbzFile;
+	this.outputFile = outputFile;
+    }
+
+    /**
+     * @param workers
+     *            number of threads compressing entries, defaults to the number
+     *            of available processors.
+     */
+    public void setWorkers(int workers) {
+	this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * @param level
+     *            deflate level from 1 to 9, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public void setLevel(int level) {
+	this.level = level;
+    }
+
+    /**
+     * @param minSaving
+     *            the fraction of its size an entry must shrink by to be kept
+     *            DEFLATED, defaults to 0.1. Entries that shrink less are
+     *            STORED.
+     */
+    public void setMinSaving(double minSaving) {
+	this.minSaving = Math.max(0, Math.min(1, minSaving));
+    }
+
+    /**
+     * @param metrics
+     *            the metrics to record the repack in, <code>null</code> to
+     *            not record.
+     */
+    public void setMetrics(TaskMetrics metrics) {
+	this.metrics = metrics;
+    }
+
+    /**
+     * Run the repack.
+     * 
+     * @param engine
+     *            the engine to run the repack on.
+     * @param listener
+     *            follows the repack, may be <code>null</code>.
+     * @return the running repack.
+     */
+    public TaskFuture<String> submit(TaskEngine engine,
+	    TaskRunner.Listener<String> listener) {
+	StagedTask<Entry, Entry, ZipWriter, String> task = this;
+	if (metrics != null) {
+	    task = metrics.wrap(task, WEIGHER);
+	}
+	return engine.submit(task, workers, 2 * workers, listener);
+    }
+
+    /**
+     * @return the path to the Cbz that will be created.
+     */
+    public String getOutputFile() {
+	return outputFile;
+    }
+
+    @Override
+    public ZipWriter prepareContext() throws InitializationException {
+	try {
+	    source = ZipSource.file(cbzFile);
+	} catch (IOException e) {
+	    throw new InitializationException("Unable to open zip archive: "
+		    + cbzFile, e);
+	}
+	try {
+	    partFile = PdfTask.partFile(outputFile);
+	    return new ZipWriter(new BufferedOutputStream(new FileOutputStream(
+		    partFile)));
+	} catch (FileNotFoundException e) {
+	    try {
+		source.close();
+	    } catch (IOException e1) {
+	    }
+	    throw new InitializationException("Unable to create output: "
+		    + outputFile, e);
+	}
+    }
+
+    @Override
+    public String process(Entry value, ZipWriter context)
+	    throws ProcessException {
+	return complete(prepare(value), context);
+    }
+
+    /**
+     * Compute the CRC of an entry and choose how it is stored, safe to call
+     * from several threads.
+     * 
+     * @param value
+     *            the entry read from the source.
+     * @return the same entry, ready to be written.
+     */
+    @Override
+    public Entry prepare(Entry value) throws ProcessException {
+	CRC32 crc = new CRC32();
+	crc.update(value.data, 0, value.data.length);
+	value.crc = crc.getValue();
+	if (value.data.length == 0) {
+	    return value;
+	}
+	if (isCompressed(value.name) && value.data.length > SAMPLE_SIZE
+		&& deflate(value.data, SAMPLE_SIZE, Deflater.BEST_SPEED) == null) {
+	    return value;
+	}
+
+	byte[] packed = deflate(value.data, value.data.length, level);
+	if (packed != null) {
+	    value.method = ZipEntry.DEFLATED;
+	    value.packed = packed;
+	    value.packedLength = packed.length;
+	}
+	return value;
+    }
+
+    /**
+     * Deflate the start of an array.
+     * 
+     * @param data
+     *            the array to deflate.
+     * @param length
+     *            number of bytes to deflate.
+     * @param level
+     *            deflate level.
+     * @return the deflated bytes, <code>null</code> if they don't save
+     *         {@link #setMinSaving(double)} of the length.
+     */
+    private byte[] deflate(byte[] data, int length, int level) {
+	int limit = (int) (length * (1 - minSaving));
+	byte[] packed = new byte[limit + 1];
+	Deflater deflater = new Deflater(level, true);
+	try {
+	    deflater.setInput(data, 0, length);
+	    deflater.finish();
+	    int written = 0;
+	    while (!deflater.finished() && written < packed.length) {
+		written += deflater.deflate(packed, written, packed.length
+			- written);
+	    }
+	    if (!deflater.finished() || written > limit) {
+		return null;
+	    }
+	    return written == packed.length ? packed : Arrays.copyOf(packed,
+		    written);
+	} finally {
+	    deflater.end();
+	}
+    }
+
+    /**
+     * @return <code>true</code> if the entry is a format that is already
+     *         compressed.
+     */
+    static boolean isCompressed(String name) {
+	String lower = name.toLowerCase(Locale.ROOT);
+	for (String extension : COMPRESSED) {
+	    if (lower.endsWith(extension)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Write a prepared entry to the repacked archive.
+     * 
+     * @param value
+     *            the prepared entry.
+     * @param context
+     *            the repacked archive.
+     * @return the entry name.
+     */
+    @Override
+    public String complete(Entry value, ZipWriter context)
+	    throws ProcessException {
+	try {
+	    context.write(value.name, value.time, value.method, value.crc,
+		    value.data.length, value.packed, value.packedLength);
+	} catch (IOException e) {
+	    throw new ProcessException("Unable to write entry: " + value.name, e);
+	}
+	entriesWritten++;
+	if (value.method == ZipEntry.DEFLATED) {
+	    deflated++;
+	} else {
+	    stored++;
+	}
+	bytesIn += value.data.length;
+	bytesOut += value.packedLength;
+	return value.name;
+    }
+
+    /**
+     * Write the central directory and close the archives. The repacked archive
+     * is moved into place only if every entry read was written.
+     * 
+     * @throws IllegalStateException
+     *             if the complete archive can't be moved into place.
+     */
+    @Override
+    public void endContext(ZipWriter context) {
+	boolean closed = false;
+	try {
+	    context.close();
+	    closed = true;
+	} catch (IOException e) {
+	    LOG.log(Level.WARNING, "Unable to close: " + outputFile, e);
+	} finally {
+	    try {
+		source.close();
+	    } catch (IOException e) {
+	    }
+	}
+	if (!closed || !allRead || readFailed
+		|| entriesWritten != entriesRead.get()) {
+	    partFile.delete();
+	    return;
+	}
+	try {
+	    PdfTask.moveIntoPlace(partFile, new File(outputFile));
+	} catch (IOException e) {
+	    partFile.delete();
+	    throw new IllegalStateException("Unable to create " + outputFile, e);
+	}
+	LOG.info(outputFile + ": " + stored + " entries stored, " + deflated
+		+ " deflated, " + bytesIn + " bytes packed to " + bytesOut);
+    }
+
+    /**
+     * Iterate over the files of the archive in natural name order.
+     */
+    @Override
+    public Iterator<Entry> iterate(ZipWriter context) {
+	final Iterator<Entry> entries = new ZipIterator<Entry>(source,
+		new ZipIterator.EntryReader<Entry>() {
+		    @Override
+		    public boolean accept(ZipEntry entry) {
+			return !entry.isDirectory();
+		    }
+
+		    @Override
+		    public Entry read(ZipEntry entry, InputStream is)
+			    throws IOException {
+			return new Entry(entry.getName(), entry.getTime(),
+				ZipIterator.readBytes(entry, is));
+		    }
+		});
+	// counts the entries and read failures, so an archive that misses
+	// entries is not moved into place.
+	return new Iterator<Entry>() {
+	    @Override
+	    public boolean hasNext() {
+		boolean more;
+		try {
+		    more = entries.hasNext();
+		} catch (RuntimeException e) {
+		    readFailed = true;
+		    throw e;
+		}
+		if (!more) {
+		    allRead = true;
+		}
+		return more;
+	    }
+
+	    @Override
+	    public Entry next() {
+		Entry entry;
+		try {
+		    entry = entries.next();
+		} catch (RuntimeException e) {
+		    readFailed = true;
+		    throw e;
+		}
+		entriesRead.incrementAndGet();
+		return entry;
+	    }
+
+	    @Override
+	    public void remove() {
+		throw new UnsupportedOperationException("Remove not supported");
+	    }
+	};
+    }
+
+    /**
+     * @return number of entries written STORED.
+     */
+    public int getStored() {
+	return stored;
+    }
+
+    /**
+     * @return number of entries written DEFLATED.
+     */
+    public int getDeflated() {
+	return deflated;
+    }
+
+}
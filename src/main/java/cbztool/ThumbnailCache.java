@@ -0,0 +1,241 @@
+package cbztool;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Files kept in a directory under a byte budget, the least recently used files
+ * are deleted when the budget is exceeded. Safe to share between threads and
+ * tasks.
+ * 
+ * <p>
+ * The modification time of a file is its last use, so the order survives a
+ * restart: the directory is scanned once when the cache is created. Files are
+ * written to a temporary file and moved into place, a reader never sees a
+ * partial file.
+ * </p>
+ * 
+ * <p>
+ * Names are built with {@link #name(String...)} from the parts that identify
+ * the content, for example {@link #archiveKey(Path)}, an entry name and a
+ * thumbnail size.
+ * </p>
+ */
+public class ThumbnailCache {
+
+    private static final Logger LOG = Logger.getLogger(ThumbnailCache.class
+	    .getName());
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Map<String, Long> files = new LinkedHashMap<String, Long>(
+	    16, 0.75F, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evicted;
+
+    /**
+     * @param directory
+     *            the cache directory, created if missing.
+     * @param maxBytes
+     *            the maximum number of bytes kept.
+     * @throws IOException
+     *             if the directory can't be created or listed.
+     */
+    public ThumbnailCache(Path directory, long maxBytes) throws IOException {
+	this.directory = directory;
+	this.maxBytes = Math.max(0, maxBytes);
+	Files.createDirectories(directory);
+
+	final Map<Path, FileTime> used = new LinkedHashMap<Path, FileTime>();
+	try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+	    for (Path file : stream) {
+		if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+		    Files.deleteIfExists(file);
+		} else if (Files.isRegularFile(file)) {
+		    used.put(file, Files.getLastModifiedTime(file));
+		}
+	    }
+	}
+	List<Path> order = new ArrayList<Path>(used.keySet());
+	Collections.sort(order, new Comparator<Path>() {
+	    @Override
+	    public int compare(Path a, Path b) {
+		return used.get(a).compareTo(used.get(b));
+	    }
+	});
+	for (Path file : order) {
+	    long size = Files.size(file);
+	    files.put(file.getFileName().toString(), size);
+	    bytes += size;
+	}
+	evict();
+    }
+
+    /**
+     * A key for an archive from its path, size and modification time, so
+     * cached files are found without reading the archive. A changed archive
+     * gets a new key, files cached for the old content are evicted in time.
+     * 
+     * @param archive
+     *            the archive.
+     * @return the key.
+     * @throws IOException
+     *             if the archive attributes can't be read.
+     */
+    public static String archiveKey(Path archive) throws IOException {
+	return name(archive.toAbsolutePath().normalize().toString(),
+		String.valueOf(Files.size(archive)),
+		String.valueOf(Files.getLastModifiedTime(archive).toMillis()));
+    }
+
+    /**
+     * @param parts
+     *            the parts identifying a content.
+     * @return a file name for the content, a SHA-1 of the parts.
+     */
+    public static String name(String... parts) {
+	try {
+	    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+	    for (String part : parts) {
+		digest.update(part.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	    }
+	    return String.format("%040x", new BigInteger(1, digest.digest()));
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException("SHA-1 not available", e);
+	}
+    }
+
+    /**
+     * Look up a cached file and mark it as used.
+     * 
+     * @param name
+     *            the file name.
+     * @return the cached file, <code>null</code> if not cached.
+     */
+    public synchronized Path get(String name) {
+	if (files.get(name) == null) {
+	    misses++;
+	    return null;
+	}
+	Path file = directory.resolve(name);
+	try {
+	    Files.setLastModifiedTime(file,
+		    FileTime.fromMillis(System.currentTimeMillis()));
+	} catch (IOException e) {
+	    // removed behind our back.
+	    bytes -= files.remove(name);
+	    misses++;
+	    return null;
+	}
+	hits++;
+	return file;
+    }
+
+    /**
+     * Read a cached file.
+     * 
+     * @param name
+     *            the file name.
+     * @return the content, <code>null</code> if not cached.
+     */
+    public byte[] read(String name) {
+	Path file = get(name);
+	if (file == null) {
+	    return null;
+	}
+	try {
+	    return Files.readAllBytes(file);
+	} catch (IOException e) {
+	    LOG.log(Level.FINE, "Unable to read cached file: " + file, e);
+	    return null;
+	}
+    }
+
+    /**
+     * Add a file, and evict the least recently used files if the cache is
+     * over budget.
+     * 
+     * @param name
+     *            the file name.
+     * @param data
+     *            the content.
+     * @return the cached file.
+     * @throws IOException
+     *             if the file can't be written.
+     */
+    public Path put(String name, byte[] data) throws IOException {
+	Path file = directory.resolve(name);
+	Path temp = Files.createTempFile(directory, name, TEMP_SUFFIX);
+	try {
+	    Files.write(temp, data);
+	    try {
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	    } catch (AtomicMoveNotSupportedException e) {
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+	    }
+	} finally {
+	    Files.deleteIfExists(temp);
+	}
+	synchronized (this) {
+	    Long previous = files.put(name, (long) data.length);
+	    bytes += data.length - (previous == null ? 0 : previous);
+	    evict();
+	}
+	return file;
+    }
+
+    private void evict() {
+	Iterator<Map.Entry<String, Long>> eldest = files.entrySet().iterator();
+	// the file just added is kept even if it is larger than the budget.
+	while (bytes > maxBytes && files.size() > 1) {
+	    Map.Entry<String, Long> entry = eldest.next();
+	    try {
+		Files.deleteIfExists(directory.resolve(entry.getKey()));
+	    } catch (IOException e) {
+		LOG.log(Level.FINE, "Unable to evict: " + entry.getKey(), e);
+	    }
+	    bytes -= entry.getValue();
+	    eldest.remove();
+	    evicted++;
+	}
+    }
+
+    /**
+     * @return the number of bytes cached.
+     */
+    public synchronized long getBytes() {
+	return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+	return String.format("%d files, %d of %d bytes, %d hits, %d misses,"
+		+ " %d evicted", files.size(), bytes, maxBytes, hits, misses,
+		evicted);
+    }
+
+}
@@ -0,0 +1,384 @@
+package cbztool;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import cbztool.share.InitializationException;
+import cbztool.share.ProcessException;
+import cbztool.share.StagedTask;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskFuture;
+import cbztool.share.TaskRunner;
+
+/**
+ * Create thumbnails of the pages of a Cbz in a {@link ThumbnailCache}.
+ * 
+ * <p>
+ * Pages are decoded on {@link #setWorkers(int)} threads. The decoder reads
+ * only every n:th pixel of a page much larger than the thumbnail, so a large
+ * scan is never decoded at full size, and the result is scaled down to fit a
+ * square of {@link #setSize(int)} pixels and encoded as JPEG.
+ * </p>
+ * 
+ * <p>
+ * Thumbnails are cached by archive key, entry name and size. Pages already
+ * cached are not decoded, and once all thumbnails of an archive are cached
+ * the list of pages is cached too: the next task gives the cached thumbnails
+ * without opening the archive.
+ * </p>
+ * 
+ * <pre>
+ * ThumbnailCache cache = new ThumbnailCache(Paths.get(&quot;thumbs&quot;), 64L &lt;&lt; 20);
+ * ThumbnailTask task = new ThumbnailTask(&quot;comic.cbz&quot;, cache);
+ * task.setPages(1); // the cover only
+ * task.submit(TaskEngine.platform(1), listener).join();
+ * </pre>
+ */
+public class ThumbnailTask implements
+	StagedTask<ThumbnailTask.Page, ThumbnailTask.Page, ThumbnailCache, String> {
+
+    private static final Logger LOG = Logger.getLogger(ThumbnailTask.class
+	    .getName());
+
+    private static final float QUALITY = 0.8F;
+
+    /**
+     * A page of the archive, holding the encoded page until it is prepared
+     * and the thumbnail after.
+     */
+    static final class Page {
+	private final String name;
+	private byte[] data;
+	private final Path cached;
+
+	Page(String name, byte[] data, Path cached) {
+	    this.name = name;
+	    this.data = data;
+	    this.cached = cached;
+	}
+    }
+
+    private final String cbzFile;
+    private final ThumbnailCache cache;
+    private int size = 256;
+    private int pages;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private String archiveKey;
+    private ZipSource source;
+    private List<String> names;
+    private final AtomicInteger pagesRead = new AtomicInteger();
+    private volatile boolean allRead;
+    private List<Path> cachedFiles;
+    private int created;
+
+    /**
+     * @param cbzFile
+     *            the comic file.
+     * @param cache
+     *            the cache to keep the thumbnails in.
+     */
+    public ThumbnailTask(String cbzFile, ThumbnailCache cache) {
+	this.cbzFile = cbzFile;
+	this.cache = cache;
+    }
+
+    /**
+     * @param size
+     *            the largest width or height of a thumbnail, defaults to 256.
+     */
+    public void setSize(int size) {
+	this.size = Math.max(1, size);
+    }
+
+    /**
+     * @param pages
+     *            the number of pages to create thumbnails for, from the
+     *            first page in natural name order. 0, the default, for all
+     *            pages.
+     */
+    public void setPages(int pages) {
+	this.pages = Math.max(0, pages);
+    }
+
+    /**
+     * @param workers
+     *            number of threads decoding pages, defaults to the number of
+     *            available processors.
+     */
+    public void setWorkers(int workers) {
+	this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Create the thumbnails, the listener gets the path to each thumbnail in
+     * page order.
+     * 
+     * @param engine
+     *            the engine to run the task on.
+     * @param listener
+     *            follows the task, may be <code>null</code>.
+     * @return the running task.
+     */
+    public TaskFuture<String> submit(TaskEngine engine,
+	    TaskRunner.Listener<String> listener) {
+	return engine.submit(this, workers, 2 * workers, listener);
+    }
+
+    /**
+     * @return number of thumbnails created, not found in the cache.
+     */
+    public int getCreated() {
+	return created;
+    }
+
+    @Override
+    public ThumbnailCache prepareContext() throws InitializationException {
+	try {
+	    archiveKey = ThumbnailCache.archiveKey(Paths.get(cbzFile));
+	} catch (IOException e) {
+	    throw new InitializationException("Unable to read archive: "
+		    + cbzFile, e);
+	}
+	cachedFiles = cachedFiles();
+	if (cachedFiles == null) {
+	    names = new ArrayList<String>();
+	    try {
+		source = ZipSource.file(cbzFile);
+	    } catch (IOException e) {
+		throw new InitializationException(
+			"Unable to open zip archive: " + cbzFile, e);
+	    }
+	}
+	return cache;
+    }
+
+    /**
+     * Read the cached list of pages into {@link #names}.
+     * 
+     * @return the thumbnails of the pages when they are all cached, otherwise
+     *         <code>null</code>.
+     */
+    private List<Path> cachedFiles() {
+	byte[] listing = cache.read(listingName());
+	if (listing == null) {
+	    return null;
+	}
+	String text = new String(listing, StandardCharsets.UTF_8);
+	List<Path> cached = new ArrayList<Path>();
+	names = text.isEmpty() ? new ArrayList<String>() : Arrays.asList(text
+		.split("\n"));
+	for (String name : names) {
+	    Path file = cache.get(thumbnailName(name));
+	    if (file == null) {
+		return null;
+	    }
+	    cached.add(file);
+	}
+	return cached;
+    }
+
+    private String listingName() {
+	return ThumbnailCache.name(archiveKey, "pages", String.valueOf(size),
+		String.valueOf(pages));
+    }
+
+    private String thumbnailName(String entry) {
+	return ThumbnailCache.name(archiveKey, entry, String.valueOf(size))
+		+ ".jpg";
+    }
+
+    @Override
+    public String process(Page value, ThumbnailCache context)
+	    throws ProcessException {
+	return complete(prepare(value), context);
+    }
+
+    /**
+     * Decode a page and create its thumbnail, safe to call from several
+     * threads.
+     * 
+     * @param value
+     *            the page, cached pages are returned as they are.
+     * @return the page holding the thumbnail.
+     */
+    @Override
+    public Page prepare(Page value) throws ProcessException {
+	if (value.cached != null) {
+	    return value;
+	}
+	try {
+	    value.data = thumbnail(value.data);
+	} catch (IOException e) {
+	    throw new ProcessException("Unable to create thumbnail: "
+		    + value.name, e);
+	}
+	return value;
+    }
+
+    private byte[] thumbnail(byte[] data) throws IOException {
+	ImageInputStream input = ImageIO
+		.createImageInputStream(new ByteArrayInputStream(data));
+	Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+	if (!readers.hasNext()) {
+	    throw new IOException("Unknown image format");
+	}
+	ImageReader reader = readers.next();
+	BufferedImage image;
+	try {
+	    reader.setInput(input, true, true);
+	    int w = reader.getWidth(0);
+	    int h = reader.getHeight(0);
+	    ImageReadParam param = reader.getDefaultReadParam();
+	    // decode at least twice the thumbnail size, for a smooth result.
+	    int step = Math.max(1, Math.max(w, h) / (2 * size));
+	    param.setSourceSubsampling(step, step, 0, 0);
+	    image = reader.read(0, param);
+	} finally {
+	    reader.dispose();
+	    input.close();
+	}
+	double scale = Math.min(1, (double) size
+		/ Math.max(image.getWidth(), image.getHeight()));
+	image = PageResampler.downscale(image,
+		Math.max(1, (int) Math.round(image.getWidth() * scale)),
+		Math.max(1, (int) Math.round(image.getHeight() * scale)));
+	return PageResampler.encode(image, QUALITY);
+    }
+
+    /**
+     * Write the thumbnail to the cache.
+     * 
+     * @return the path to the thumbnail.
+     */
+    @Override
+    public String complete(Page value, ThumbnailCache context)
+	    throws ProcessException {
+	Path file = value.cached;
+	try {
+	    if (file == null) {
+		file = context.put(thumbnailName(value.name), value.data);
+		created++;
+	    }
+	} catch (IOException e) {
+	    throw new ProcessException("Unable to cache thumbnail: "
+		    + value.name, e);
+	}
+	if (source != null) {
+	    names.add(value.name);
+	}
+	return file.toString();
+    }
+
+    /**
+     * Cache the list of pages and close the archive. The list is only cached
+     * when every page of the archive got its thumbnail, a failed or cancelled
+     * run would otherwise be served as the whole archive.
+     */
+    @Override
+    public void endContext(ThumbnailCache context) {
+	if (source == null) {
+	    return;
+	}
+	try {
+	    if (allRead && names.size() == pagesRead.get()) {
+		StringBuilder listing = new StringBuilder();
+		for (String name : names) {
+		    listing.append(listing.length() == 0 ? "" : "\n").append(
+			    name);
+		}
+		context.put(listingName(),
+			listing.toString().getBytes(StandardCharsets.UTF_8));
+	    }
+	} catch (IOException e) {
+	    LOG.fine("Unable to cache page list: " + e);
+	} finally {
+	    try {
+		source.close();
+	    } catch (IOException e) {
+	    }
+	}
+	LOG.fine(cbzFile + ": " + created + " thumbnails created, " + context);
+    }
+
+    /**
+     * Iterate over the pages, from the cached list without opening the
+     * archive when all thumbnails are cached.
+     */
+    @Override
+    public Iterator<Page> iterate(ThumbnailCache context) {
+	if (source == null) {
+	    List<Page> cached = new ArrayList<Page>(names.size());
+	    for (int i = 0; i < names.size(); i++) {
+		cached.add(new Page(names.get(i), null, cachedFiles.get(i)));
+	    }
+	    return cached.iterator();
+	}
+	final Iterator<Page> read = new ZipIterator<Page>(source,
+		new ZipIterator.EntryReader<Page>() {
+		    private int accepted;
+
+		    @Override
+		    public boolean accept(ZipEntry entry) {
+			if (entry.isDirectory()
+				|| !ImageProbe.isImageName(entry.getName())
+				|| (pages > 0 && accepted >= pages)) {
+			    return false;
+			}
+			accepted++;
+			return true;
+		    }
+
+		    @Override
+		    public Page read(ZipEntry entry, InputStream is)
+			    throws IOException {
+			Path cached = cache.get(thumbnailName(entry.getName()));
+			if (cached != null) {
+			    return new Page(entry.getName(), null, cached);
+			}
+			return new Page(entry.getName(), ZipIterator.readBytes(
+				entry, is), null);
+		    }
+		});
+	// counts the pages, so the list is only cached once all are done.
+	return new Iterator<Page>() {
+	    @Override
+	    public boolean hasNext() {
+		boolean more = read.hasNext();
+		if (!more) {
+		    allRead = true;
+		}
+		return more;
+	    }
+
+	    @Override
+	    public Page next() {
+		Page page = read.next();
+		pagesRead.incrementAndGet();
+		return page;
+	    }
+
+	    @Override
+	    public void remove() {
+		throw new UnsupportedOperationException("Remove not supported");
+	    }
+	};
+    }
+
+}
@@ -1,26 +1,15 @@
 package cbztool;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import javax.swing.SwingWorker;
 
-import cbztool.share.InitializationException;
 import cbztool.share.OutputConfig;
-import cbztool.share.ProcessException;
-import cbztool.share.Task;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskMetrics;
+import cbztool.share.TaskRunner;
 
 /**
  * Extract a ZipFile to a directory.
@@ -39,14 +28,15 @@ import cbztool.share.Task;
  * 
  * </p>
  * 
+ * <p>
+ * Runs an {@link ExtractTask} on the worker thread, use the task with a
+ * {@link TaskEngine} to extract without Swing.
+ * </p>
+ * 
  */
-public class UnZip extends SwingWorker<List<String>, String> implements
-		Task<ZipEntry, ZipInputStream, String> {
+public class UnZip extends SwingWorker<List<String>, String> {
 
-	private static final Logger LOG = Logger.getLogger(UnZip.class.getName());
-	private final String zipFile;
-	private static final int BUFFER_SIZE = 2048;
-	private final OutputConfig<ZipEntry> outputConfig;
+	private final ExtractTask task;
 
 	/**
 	 * Create a output configuration that will extract all files found in a Zip
@@ -76,144 +66,83 @@ public class UnZip extends SwingWorker<List<String>, String> implements
 	 *            the output directory for this task.
 	 */
 	public UnZip(String sourceFile, OutputConfig<ZipEntry> outputConfig) {
-		assert sourceFile != null;
-		assert outputConfig != null;
-		this.zipFile = sourceFile;
-		this.outputConfig = outputConfig;
+		this(sourceFile, outputConfig, false);
 	}
 
 	/**
-	 * Execute the unzip.
+	 * Extract a zip file to a directory.
+	 * 
+	 * @param sourceFile
+	 *            the file to extract
+	 * @param outputConfig
+	 *            the output directory for this task.
+	 * @param randomAccess
+	 *            <code>true</code> to read the archive with a
+	 *            {@link ZipFileSource}.
 	 */
-	@Override
-	protected List<String> doInBackground() throws Exception {
-
-		ZipInputStream zipInput = prepareContext();
-		Iterator<ZipEntry> iterator = iterate(zipInput);
-
-		List<String> processed = new ArrayList<String>();
-		while (iterator.hasNext() && !isCancelled()) {
-
-			String unzipPath = process(iterator.next(), zipInput);
-			if (unzipPath == null) {
-				continue;
-			}
-
-			publish(unzipPath);
-			processed.add(unzipPath);
-			setProgress(getProgress() + 1);
-		}
-
-		return processed;
+	public UnZip(String sourceFile, OutputConfig<ZipEntry> outputConfig,
+			boolean randomAccess) {
+		this.task = new ExtractTask(sourceFile, outputConfig, randomAccess);
 	}
 
 	/**
-	 * Extract a ZipEntry to a directory.
-	 * 
-	 * @param entry
-	 *            the entry to extract.
-	 * @param zipStream
-	 *            the stream to extract the entry from.
-	 * @param directory
-	 *            the directory to extract the entry to.
-	 * @throws IOException
+	 * @return the task doing the extraction.
 	 */
-	protected String extract(ZipEntry entry, ZipInputStream zipStream,
-			String directory) throws IOException {
-		byte data[] = new byte[BUFFER_SIZE];
-
-		File output = new File(directory, entry.getName());
-		FileOutputStream fos = new FileOutputStream(output);
-		BufferedOutputStream dest = new BufferedOutputStream(fos, BUFFER_SIZE);
-
-		int count;
-		while ((count = zipStream.read(data, 0, BUFFER_SIZE)) != -1) {
-			dest.write(data, 0, count);
-		}
-		dest.flush();
-		dest.close();
-
-		return output.getAbsolutePath();
+	public ExtractTask getTask() {
+		return task;
 	}
 
 	/**
-	 * Read ZipInputStream and prepares the output directory.
+	 * @param bufferSize
+	 *            size of the buffer used when copying an entry to disk,
+	 *            defaults to 2048 bytes.
 	 */
-	public ZipInputStream prepareContext() throws InitializationException {
-		try {
-			outputConfig.initOutputDirectory(outputConfig.getOutputDirectory());
-		} catch (IOException e1) {
-			throw new InitializationException("Unable to unzip to: " + zipFile,
-					e1);
-		}
-		try {
-			return new ZipInputStream(new BufferedInputStream(
-					new FileInputStream(zipFile)));
-		} catch (FileNotFoundException e) {
-			throw new InitializationException("File not found: " + zipFile, e);
-		}
+	public void setBufferSize(int bufferSize) {
+		task.setBufferSize(bufferSize);
 	}
 
 	/**
-	 * Unzip a ZipEntry.
+	 * @param threads
+	 *            number of entries to extract at once, see
+	 *            {@link ExtractTask#setThreads(int)}.
 	 */
-	public String process(ZipEntry entry, ZipInputStream zipStream)
-			throws ProcessException {
-
-		if (!outputConfig.isAccepted(entry)) {
-			return null;
-		}
-
-		String outputDirectory = outputConfig.getOutputDirectory();
-		if (LOG.isLoggable(Level.FINEST)) {
-			LOG.fine(String.format("extracting %s to %s", entry.getName(),
-					outputDirectory));
-		}
-
-		try {
-			return extract(entry, zipStream, outputDirectory);
-		} catch (IOException e) {
-			throw new ProcessException("IOException processing: "
-					+ entry.getName(), e);
-		}
+	public void setThreads(int threads) {
+		task.setThreads(threads);
 	}
 
 	/**
-	 * Close ZipInputStream, the context created.
+	 * @param metrics
+	 *            the metrics to record the extraction in, <code>null</code> to
+	 *            not record.
 	 */
-	public void endContext(ZipInputStream context) {
-		try {
-			context.close();
-		} catch (IOException e) {
-			LOG.severe("Unable to close context\n" + e.getMessage());
-		}
+	public void setMetrics(TaskMetrics metrics) {
+		task.setMetrics(metrics);
 	}
 
 	/**
-	 * Iterator for the ZipEntry found in the ZipInputStream.
+	 * Execute the unzip.
 	 */
-	public Iterator<ZipEntry> iterate(final ZipInputStream stream) {
-		return new Iterator<ZipEntry>() {
-
-			private ZipEntry currentEntry;
-
-			public boolean hasNext() {
-				try {
-					currentEntry = stream.getNextEntry();
-				} catch (IOException e) {
-				}
-
-				return currentEntry != null;
-			}
-
-			public ZipEntry next() {
-				return currentEntry;
-			}
-
-			public void remove() {
-			}
-
-		};
+	@Override
+	protected List<String> doInBackground() throws Exception {
+		final List<String> processed = new ArrayList<String>();
+		task.submit(TaskEngine.currentThread(),
+				new TaskRunner.Listener<String>() {
+					@Override
+					public boolean isCancelled() {
+						return UnZip.this.isCancelled();
+					}
+
+					@Override
+					public void processed(String unzipPath) {
+						if (unzipPath == null) {
+							return;
+						}
+						publish(unzipPath);
+						processed.add(unzipPath);
+						setProgress(Math.min(100, processed.size()));
+					}
+				}).join();
+		return processed;
 	}
 
 }
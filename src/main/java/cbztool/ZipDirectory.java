@@ -0,0 +1,227 @@
+package cbztool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The central directory of a zip file, with the position of each entry in the
+ * file.
+ * 
+ * <p>
+ * java.util.zip.ZipFile does not tell where the data of an entry starts, this
+ * is needed to copy STORED entries straight from the file, or to seek to an
+ * entry without a ZipFile. Zip64 archives are not supported, reading one
+ * fails with an IOException.
+ * </p>
+ */
+public class ZipDirectory {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ENTRY_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int END_SIZE = 22;
+    private static final int ENTRY_SIZE = 46;
+    private static final int LOCAL_SIZE = 30;
+    private static final long ZIP64 = 0xffffffffL;
+
+    /**
+     * An entry in the central directory.
+     */
+    public static class Entry {
+	private final String name;
+	private final int method;
+	private final long crc;
+	private final long compressedSize;
+	private final long size;
+	private final long localHeaderOffset;
+
+	Entry(String name, int method, long crc, long compressedSize,
+		long size, long localHeaderOffset) {
+	    this.name = name;
+	    this.method = method;
+	    this.crc = crc;
+	    this.compressedSize = compressedSize;
+	    this.size = size;
+	    this.localHeaderOffset = localHeaderOffset;
+	}
+
+	/**
+	 * @return the entry name.
+	 */
+	public String getName() {
+	    return name;
+	}
+
+	/**
+	 * @return the compression method, STORED or DEFLATED.
+	 */
+	public int getMethod() {
+	    return method;
+	}
+
+	/**
+	 * @return CRC32 of the uncompressed data.
+	 */
+	public long getCrc() {
+	    return crc;
+	}
+
+	/**
+	 * @return size of the data in the archive.
+	 */
+	public long getCompressedSize() {
+	    return compressedSize;
+	}
+
+	/**
+	 * @return size of the uncompressed data.
+	 */
+	public long getSize() {
+	    return size;
+	}
+
+	/**
+	 * @return position of the local file header in the archive.
+	 */
+	public long getLocalHeaderOffset() {
+	    return localHeaderOffset;
+	}
+    }
+
+    private final Map<String, Entry> entries;
+
+    private ZipDirectory(Map<String, Entry> entries) {
+	this.entries = entries;
+    }
+
+    /**
+     * Read the central directory of a zip file.
+     * 
+     * @param channel
+     *            the zip file.
+     * @return the directory.
+     * @throws IOException
+     *             if the file can't be read or isn't a supported zip file.
+     */
+    public static ZipDirectory read(FileChannel channel) throws IOException {
+	long fileSize = channel.size();
+	int tail = (int) Math.min(fileSize, END_SIZE + 0xffff);
+	ByteBuffer end = read(channel, fileSize - tail, tail);
+
+	int position = -1;
+	for (int i = tail - END_SIZE; i >= 0; i--) {
+	    if (end.getInt(i) == END_SIGNATURE) {
+		position = i;
+		break;
+	    }
+	}
+	if (position < 0) {
+	    throw new IOException("End of central directory not found");
+	}
+	int count = end.getShort(position + 10) & 0xffff;
+	long directorySize = end.getInt(position + 12) & ZIP64;
+	long directoryOffset = end.getInt(position + 16) & ZIP64;
+	if (count == 0xffff || directorySize == ZIP64
+		|| directoryOffset == ZIP64) {
+	    throw new IOException("Zip64 archives are not supported");
+	}
+
+	ByteBuffer directory = read(channel, directoryOffset,
+		(int) directorySize);
+	Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	int p = 0;
+	for (int i = 0; i < count; i++) {
+	    if (p + ENTRY_SIZE > directory.limit()
+		    || directory.getInt(p) != ENTRY_SIGNATURE) {
+		throw new IOException("Broken central directory entry " + i);
+	    }
+	    int method = directory.getShort(p + 10) & 0xffff;
+	    long crc = directory.getInt(p + 16) & ZIP64;
+	    long compressedSize = directory.getInt(p + 20) & ZIP64;
+	    long size = directory.getInt(p + 24) & ZIP64;
+	    int nameLength = directory.getShort(p + 28) & 0xffff;
+	    int extraLength = directory.getShort(p + 30) & 0xffff;
+	    int commentLength = directory.getShort(p + 32) & 0xffff;
+	    long offset = directory.getInt(p + 42) & ZIP64;
+	    if (compressedSize == ZIP64 || size == ZIP64 || offset == ZIP64) {
+		throw new IOException("Zip64 archives are not supported");
+	    }
+	    byte[] name = new byte[nameLength];
+	    directory.position(p + ENTRY_SIZE);
+	    directory.get(name);
+	    String entryName = new String(name, StandardCharsets.UTF_8);
+	    entries.put(entryName, new Entry(entryName, method, crc,
+		    compressedSize, size, offset));
+	    p += ENTRY_SIZE + nameLength + extraLength + commentLength;
+	}
+	return new ZipDirectory(entries);
+    }
+
+    /**
+     * @return the entries, in the order of the central directory.
+     */
+    public List<Entry> entries() {
+	return Collections.unmodifiableList(new ArrayList<Entry>(entries
+		.values()));
+    }
+
+    /**
+     * @param name
+     *            the entry name.
+     * @return the entry, <code>null</code> if there is no such entry.
+     */
+    public Entry get(String name) {
+	return entries.get(name);
+    }
+
+    /**
+     * Find where the data of an entry starts, this reads the local header of
+     * the entry. Safe to call from several threads.
+     * 
+     * @param channel
+     *            the zip file.
+     * @param entry
+     *            the entry.
+     * @return position of the first byte of data.
+     * @throws IOException
+     *             if the local header can't be read.
+     */
+    public static long dataOffset(FileChannel channel, Entry entry)
+	    throws IOException {
+	ByteBuffer local = read(channel, entry.getLocalHeaderOffset(),
+		LOCAL_SIZE);
+	if (local.getInt(0) != LOCAL_SIGNATURE) {
+	    throw new IOException("Broken local header: " + entry.getName());
+	}
+	int nameLength = local.getShort(26) & 0xffff;
+	int extraLength = local.getShort(28) & 0xffff;
+	return entry.getLocalHeaderOffset() + LOCAL_SIZE + nameLength
+		+ extraLength;
+    }
+
+    /**
+     * Positional read, does not move the channel position.
+     */
+    private static ByteBuffer read(FileChannel channel, long position,
+	    int length) throws IOException {
+	ByteBuffer buffer = ByteBuffer.allocate(length).order(
+		ByteOrder.LITTLE_ENDIAN);
+	while (buffer.hasRemaining()) {
+	    if (channel.read(buffer, position + buffer.position()) < 0) {
+		throw new EOFException("Unexpected end of zip file");
+	    }
+	}
+	buffer.flip();
+	return buffer;
+    }
+
+}
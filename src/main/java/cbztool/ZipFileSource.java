@@ -0,0 +1,204 @@
+package cbztool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import cbztool.ZipIterator.EntryReader;
+import cbztool.share.NaturalOrder;
+
+/**
+ * Random access to the entries in a zip file.
+ * 
+ * <p>
+ * The central directory is read once when the source is created, the entries
+ * are sorted in natural name order, or kept in the order of the central
+ * directory which is the order they were packed, and can be read by index.
+ * Only the entries that are opened are inflated, and different entries can be
+ * read from several threads at once.
+ * </p>
+ * 
+ * <p>
+ * {@link #dataOffset(ZipEntry)} gives the position of the entry data in the
+ * file, so STORED entries can be read straight from {@link #channel()}.
+ * </p>
+ */
+public class ZipFileSource extends ZipSource {
+
+    private static final Comparator<String> ORDER = new NaturalOrder();
+
+    private final String file;
+    private final ZipFile zip;
+    private final List<ZipEntry> entries;
+    private FileChannel channel;
+    private ZipDirectory directory;
+    private boolean directoryRead;
+
+    /**
+     * @param file
+     *            the zip archive to read.
+     * @throws IOException
+     *             if the file isn't a readable zip archive.
+     */
+    public ZipFileSource(String file) throws IOException {
+	this(file, true);
+    }
+
+    /**
+     * @param file
+     *            the zip archive to read.
+     * @param naturalOrder
+     *            <code>true</code> to sort the entries in natural name order,
+     *            <code>false</code> to keep the order they were packed, as
+     *            read from a stream.
+     * @throws IOException
+     *             if the file isn't a readable zip archive.
+     */
+    public ZipFileSource(String file, boolean naturalOrder) throws IOException {
+	this.file = file;
+	this.zip = new ZipFile(file);
+	List<ZipEntry> list = new ArrayList<ZipEntry>(zip.size());
+	Enumeration<? extends ZipEntry> e = zip.entries();
+	while (e.hasMoreElements()) {
+	    list.add(e.nextElement());
+	}
+	if (naturalOrder) {
+	    Collections.sort(list, new Comparator<ZipEntry>() {
+		@Override
+		public int compare(ZipEntry a, ZipEntry b) {
+		    return ORDER.compare(a.getName(), b.getName());
+		}
+	    });
+	}
+	this.entries = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return number of entries in the archive.
+     */
+    public int size() {
+	return entries.size();
+    }
+
+    /**
+     * @param index
+     *            the entry index, in the order of this source.
+     * @return the entry.
+     */
+    public ZipEntry entry(int index) {
+	return entries.get(index);
+    }
+
+    /**
+     * @return all entries, in the order of this source.
+     */
+    public List<ZipEntry> list() {
+	return entries;
+    }
+
+    /**
+     * Read an entry, safe to call from several threads.
+     * 
+     * @param index
+     *            the entry index, in the order of this source.
+     * @param reader
+     *            the reader to read the entry with.
+     * @return the entry read by the reader.
+     * @throws IOException
+     *             if the entry can't be read.
+     */
+    public <E> E read(int index, EntryReader<E> reader) throws IOException {
+	ZipEntry entry = entries.get(index);
+	InputStream input = open(entry);
+	try {
+	    return reader.read(entry, input);
+	} finally {
+	    input.close();
+	}
+    }
+
+    /**
+     * @return channel for positional reads from the archive file, opened on
+     *         first use.
+     * @throws IOException
+     *             if the file can't be opened.
+     */
+    public synchronized FileChannel channel() throws IOException {
+	if (channel == null) {
+	    channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+	}
+	return channel;
+    }
+
+    /**
+     * @return the central directory with entry positions, <code>null</code>
+     *         if the archive is not supported by {@link ZipDirectory}.
+     */
+    public synchronized ZipDirectory directory() {
+	if (!directoryRead) {
+	    directoryRead = true;
+	    try {
+		directory = ZipDirectory.read(channel());
+	    } catch (IOException e) {
+		Logger.getLogger(ZipFileSource.class.getName()).log(
+			Level.FINE, "No entry positions for " + file, e);
+	    }
+	}
+	return directory;
+    }
+
+    /**
+     * Find where the data of an entry starts in the archive file.
+     * 
+     * @param entry
+     *            an entry from this source.
+     * @return the position, or -1 if it is not known.
+     * @throws IOException
+     *             if the local header can't be read.
+     */
+    public long dataOffset(ZipEntry entry) throws IOException {
+	ZipDirectory zipDirectory = directory();
+	ZipDirectory.Entry located = zipDirectory == null ? null
+		: zipDirectory.get(entry.getName());
+	if (located == null) {
+	    return -1;
+	}
+	return ZipDirectory.dataOffset(channel(), located);
+    }
+
+    @Override
+    public Iterator<ZipEntry> entries() {
+	return entries.iterator();
+    }
+
+    @Override
+    public InputStream open(ZipEntry entry) throws IOException {
+	return zip.getInputStream(entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+	try {
+	    zip.close();
+	} finally {
+	    synchronized (this) {
+		if (channel != null) {
+		    channel.close();
+		}
+	    }
+	}
+    }
+
+}
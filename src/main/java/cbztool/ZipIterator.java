@@ -4,11 +4,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import cbztool.share.BufferPool;
+import cbztool.share.PooledBuffer;
+
 /**
- * Iterate over the entries in a ZipInputStream.
+ * Iterate over the entries in a ZipInputStream or any other {@link ZipSource}.
+ * An entry that can't be read throws a {@link ZipReadException}.
  * 
  * @author frode
  * 
@@ -16,30 +21,223 @@ import java.util.zip.ZipInputStream;
 public class ZipIterator<E> implements Iterator<E>, Iterable<E> {
 
     public static ZipIterator<byte[]> bytes(ZipInputStream zipInput) {
-	return new ZipIterator<byte[]>(zipInput, new EntryReader<byte[]>() {
-
-	    @Override
-	    public byte[] read(InputStream is) throws IOException {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-		int nRead;
-		byte[] data = new byte[16384];
+	return bytes(ZipSource.stream(zipInput));
+    }
 
-		while ((nRead = is.read(data, 0, data.length)) != -1) {
-		    buffer.write(data, 0, nRead);
-		}
+    public static ZipIterator<byte[]> bytes(ZipSource source) {
+	return new ZipIterator<byte[]>(source, new EntryReader<byte[]>() {
 
-		buffer.flush();
-		return buffer.toByteArray();
+	    @Override
+	    public byte[] read(ZipEntry entry, InputStream is)
+		    throws IOException {
+		return readBytes(entry, is);
 	    }
 
 	    @Override
 	    public boolean accept(ZipEntry entry) {
-		return true;
+		return !entry.isDirectory();
 	    }
 	});
     }
 
+    /**
+     * Read an entry into an array of exact size, pre-sized from
+     * {@link ZipEntry#getSize()} when the size is known.
+     * 
+     * @param entry
+     *            the entry.
+     * @param is
+     *            the entry content.
+     * @return the entry content.
+     * @throws IOException
+     *             if the entry can't be read.
+     */
+    static byte[] readBytes(ZipEntry entry, InputStream is) throws IOException {
+	long size = entry.getSize();
+	if (size >= 0 && size < MAX_ENTRY_SIZE) {
+	    byte[] data = new byte[(int) size];
+	    if (fill(is, data, 0) == data.length && is.read() == -1) {
+		return data;
+	    }
+	    // the size in the header was wrong, fall back to reading until the
+	    // end of the entry.
+	    ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+		    (int) Math.min(MAX_ENTRY_SIZE, data.length * 2L));
+	    buffer.write(data, 0, data.length);
+	    return readAll(is, buffer);
+	}
+	return readAll(is, new ByteArrayOutputStream());
+    }
+
+    /**
+     * Iterate over the entries as buffers from a pool, the buffer is sized
+     * from {@link ZipEntry#getSize()} when the size is known. The buffers
+     * should be released when the caller is done with them.
+     * 
+     * @param source
+     *            the archive.
+     * @param pool
+     *            the pool to take buffers from.
+     * @return iterator for the entry content.
+     */
+    public static ZipIterator<PooledBuffer> buffers(ZipSource source,
+	    final BufferPool pool) {
+	return buffers(source, pool, 0, 0);
+    }
+
+    /**
+     * Iterate over a range of the entries as buffers from a pool, entries
+     * before the range are not read. Directories are not counted.
+     * 
+     * @param source
+     *            the archive.
+     * @param pool
+     *            the pool to take buffers from.
+     * @param first
+     *            index of the first entry, from 0.
+     * @param count
+     *            number of entries, 0 for all entries from the first.
+     * @return iterator for the entry content.
+     */
+    public static ZipIterator<PooledBuffer> buffers(ZipSource source,
+	    final BufferPool pool, final int first, final int count) {
+	return buffers(source, source.entries(), pool, first, count);
+    }
+
+    /**
+     * Iterate over a range of some of the entries as buffers from a pool,
+     * only the given entries are read, see
+     * {@link cbztool.share.OutputConfig#select(Iterator)}.
+     * 
+     * @param source
+     *            the archive.
+     * @param entries
+     *            the entries to read, from the listing of the source.
+     * @param pool
+     *            the pool to take buffers from.
+     * @param first
+     *            index of the first entry, from 0.
+     * @param count
+     *            number of entries, 0 for all entries from the first.
+     * @return iterator for the entry content.
+     */
+    public static ZipIterator<PooledBuffer> buffers(ZipSource source,
+	    Iterator<ZipEntry> entries, final BufferPool pool,
+	    final int first, final int count) {
+	return buffers(source, entries, pool, first, count, false);
+    }
+
+    /**
+     * Iterate over a range of some of the entries as buffers, see
+     * {@link #buffers(ZipSource, Iterator, BufferPool, int, int)}.
+     * 
+     * @param source
+     *            the archive.
+     * @param entries
+     *            the entries to read, from the listing of the source.
+     * @param pool
+     *            the pool to take buffers from.
+     * @param first
+     *            index of the first entry, from 0.
+     * @param count
+     *            number of entries, 0 for all entries from the first.
+     * @param exact
+     *            <code>true</code> to read entries of known size into an array
+     *            of exact size of their own, as {@link #bytes(ZipSource)}
+     *            does, only entries of unknown size then use the pool.
+     * @return iterator for the entry content.
+     */
+    public static ZipIterator<PooledBuffer> buffers(ZipSource source,
+	    Iterator<ZipEntry> entries, final BufferPool pool,
+	    final int first, final int count, final boolean exact) {
+	return new ZipIterator<PooledBuffer>(source, entries,
+		new EntryReader<PooledBuffer>() {
+
+		    @Override
+		    public PooledBuffer read(ZipEntry entry, InputStream is)
+			    throws IOException {
+			long size = entry.getSize();
+			if (exact && size >= 0 && size < MAX_ENTRY_SIZE) {
+			    return BufferPool.unpooled(readBytes(entry, is));
+			}
+			byte[] data = pool.acquire(size >= 0
+				&& size < MAX_ENTRY_SIZE ? (int) size
+				: UNKNOWN_SIZE_BUFFER);
+			int length = 0;
+			try {
+			    while ((length = fill(is, data, length)) == data.length) {
+				int next = is.read();
+				if (next == -1) {
+				    break;
+				}
+				if (data.length >= MAX_ENTRY_SIZE) {
+				    throw new IOException("Entry too large: "
+					    + entry.getName());
+				}
+				byte[] larger = pool.acquire((int) Math.min(
+					MAX_ENTRY_SIZE, Math.max(
+						UNKNOWN_SIZE_BUFFER,
+						data.length * 2L)));
+				System.arraycopy(data, 0, larger, 0, length);
+				pool.release(data);
+				data = larger;
+				data[length++] = (byte) next;
+			    }
+			} catch (IOException e) {
+			    pool.release(data);
+			    throw e;
+			}
+			return pool.wrap(data, length);
+		    }
+
+		    private int index;
+
+		    @Override
+		    public boolean accept(ZipEntry entry) {
+			if (entry.isDirectory()) {
+			    return false;
+			}
+			int current = index++;
+			return current >= first
+				&& (count == 0 || current < first + count);
+		    }
+		});
+    }
+
+    /** Entries larger than this are read without trusting the header size. */
+    private static final long MAX_ENTRY_SIZE = Integer.MAX_VALUE - 8;
+
+    /** Initial buffer for entries where the size is unknown. */
+    private static final int UNKNOWN_SIZE_BUFFER = 256 * 1024;
+
+    /**
+     * Read from a stream until the array is full or the stream ends.
+     * 
+     * @return the number of bytes in the array.
+     */
+    private static int fill(InputStream is, byte[] data, int offset)
+	    throws IOException {
+	int nRead;
+	while (offset < data.length
+		&& (nRead = is.read(data, offset, data.length - offset)) != -1) {
+	    offset += nRead;
+	}
+	return offset;
+    }
+
+    private static byte[] readAll(InputStream is, ByteArrayOutputStream buffer)
+	    throws IOException {
+	int nRead;
+	byte[] data = new byte[16384];
+
+	while ((nRead = is.read(data, 0, data.length)) != -1) {
+	    buffer.write(data, 0, nRead);
+	}
+
+	buffer.flush();
+	return buffer.toByteArray();
+    }
+
     /**
      * Read an ZipEntry to object.
      * 
@@ -48,7 +246,7 @@ public class ZipIterator<E> implements Iterator<E>, Iterable<E> {
      * @param <E>
      *            the type to return from the reader.
      */
-    interface EntryReader<E> {
+    public interface EntryReader<E> {
 
 	/**
 	 * @param entry
@@ -59,20 +257,41 @@ public class ZipIterator<E> implements Iterator<E>, Iterable<E> {
 
 	/**
 	 * @param entry
+	 *            the entry to read.
+	 * @param input
 	 *            input stream for a ZipEntry.
 	 * @return the ZIP entry as Object.
 	 * @throws IOException
 	 *             if any errors while reading the entry.
 	 */
-	E read(InputStream entry) throws IOException;
+	E read(ZipEntry entry, InputStream input) throws IOException;
     }
 
-    private final ZipInputStream zip;
+    private final ZipSource source;
+    private final Iterator<ZipEntry> entries;
     private final EntryReader<E> reader;
     private ZipEntry currentEntry;
 
     public ZipIterator(ZipInputStream zip, EntryReader<E> reader) {
-	this.zip = zip;
+	this(ZipSource.stream(zip), reader);
+    }
+
+    public ZipIterator(ZipSource source, EntryReader<E> reader) {
+	this(source, source.entries(), reader);
+    }
+
+    /**
+     * @param source
+     *            the archive.
+     * @param entries
+     *            the entries to read, from the listing of the source.
+     * @param reader
+     *            reads the accepted entries.
+     */
+    public ZipIterator(ZipSource source, Iterator<ZipEntry> entries,
+	    EntryReader<E> reader) {
+	this.source = source;
+	this.entries = entries;
 	this.reader = reader;
     }
 
@@ -93,12 +312,11 @@ public class ZipIterator<E> implements Iterator<E>, Iterable<E> {
      */
     @Override
     public boolean hasNext() {
-	try {
-	    do {
-		currentEntry = zip.getNextEntry();
-	    } while (currentEntry != null && !reader.accept(currentEntry));
-	} catch (IOException e) {
-	    return false;
+	while (currentEntry == null && entries.hasNext()) {
+	    ZipEntry entry = entries.next();
+	    if (reader.accept(entry)) {
+		currentEntry = entry;
+	    }
 	}
 	return currentEntry != null;
     }
@@ -110,10 +328,21 @@ public class ZipIterator<E> implements Iterator<E>, Iterable<E> {
      */
     @Override
     public E next() {
+	if (!hasNext()) {
+	    throw new NoSuchElementException();
+	}
+	ZipEntry entry = currentEntry;
+	currentEntry = null;
 	try {
-	    return reader.read(zip);
+	    InputStream input = source.open(entry);
+	    try {
+		return reader.read(entry, input);
+	    } finally {
+		input.close();
+	    }
 	} catch (IOException e) {
-	    return null;
+	    throw new ZipReadException("Unable to read entry: "
+		    + entry.getName(), e);
 	}
     }
 
@@ -0,0 +1,32 @@
+package cbztool;
+
+import java.io.IOException;
+
+/**
+ * An {@link IOException} reading an archive, thrown from the iterators over
+ * its entries, which can't throw checked exceptions. A damaged or truncated
+ * archive then fails the task instead of ending the iteration early.
+ */
+public class ZipReadException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message
+     *            error message.
+     * @param cause
+     *            the error reading the archive.
+     */
+    public ZipReadException(String message, IOException cause) {
+	super(message, cause);
+    }
+
+    /**
+     * @return the error reading the archive.
+     */
+    @Override
+    public IOException getCause() {
+	return (IOException) super.getCause();
+    }
+
+}
@@ -0,0 +1,170 @@
+package cbztool;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The entries of a zip archive, and access to their content.
+ * 
+ * <p>
+ * Use {@link #stream(InputStream)} for stdin and other input that can only be
+ * read once, the entries are then produced in the order they were packed and
+ * only the current entry can be opened. Use {@link #file(String)} when the
+ * archive is a file, see {@link ZipFileSource}, and
+ * {@link #directory(String)} for pages already extracted to a directory.
+ * </p>
+ */
+public abstract class ZipSource implements Closeable {
+
+    /**
+     * Read entries from a stream, one after the other.
+     * 
+     * @param input
+     *            the zip archive.
+     * @return a sequential source.
+     */
+    public static ZipSource stream(InputStream input) {
+	return new Stream(new ZipInputStream(input));
+    }
+
+    /**
+     * Read entries from a stream, one after the other.
+     * 
+     * @param zip
+     *            the zip archive.
+     * @return a sequential source.
+     */
+    public static ZipSource stream(ZipInputStream zip) {
+	return new Stream(zip);
+    }
+
+    /**
+     * Read entries from a file by random access.
+     * 
+     * @param file
+     *            the zip archive.
+     * @return a random access source.
+     * @throws IOException
+     *             if the central directory can't be read.
+     */
+    public static ZipFileSource file(String file) throws IOException {
+	return new ZipFileSource(file);
+    }
+
+    /**
+     * Read entries from a file by random access, in the order they were
+     * packed, the same order as {@link #stream(InputStream)}.
+     * 
+     * @param file
+     *            the zip archive.
+     * @return a random access source.
+     * @throws IOException
+     *             if the central directory can't be read.
+     */
+    public static ZipFileSource packed(String file) throws IOException {
+	return new ZipFileSource(file, false);
+    }
+
+    /**
+     * Read the images in a directory as entries.
+     * 
+     * @param directory
+     *            the directory holding the pages.
+     * @return a random access source.
+     * @throws IOException
+     *             if the directory can't be listed.
+     */
+    public static DirectorySource directory(String directory)
+	    throws IOException {
+	return new DirectorySource(directory);
+    }
+
+    /**
+     * @return iterator for the entries in this source, throws a
+     *         {@link ZipReadException} if the next entry can't be read.
+     */
+    public abstract Iterator<ZipEntry> entries();
+
+    /**
+     * Open an entry for reading, the stream should be closed after use.
+     * 
+     * @param entry
+     *            an entry from {@link #entries()}.
+     * @return the content of the entry.
+     * @throws IOException
+     *             if the entry can't be opened.
+     */
+    public abstract InputStream open(ZipEntry entry) throws IOException;
+
+    /**
+     * Entries read from a ZipInputStream.
+     */
+    private static class Stream extends ZipSource {
+
+	private final ZipInputStream zip;
+	private ZipEntry current;
+	private boolean fetched;
+
+	Stream(ZipInputStream zip) {
+	    this.zip = zip;
+	}
+
+	@Override
+	public Iterator<ZipEntry> entries() {
+	    return new Iterator<ZipEntry>() {
+
+		public boolean hasNext() {
+		    if (!fetched) {
+			try {
+			    current = zip.getNextEntry();
+			} catch (IOException e) {
+			    throw new ZipReadException(
+				    "Unable to read next entry", e);
+			}
+			fetched = true;
+		    }
+		    return current != null;
+		}
+
+		public ZipEntry next() {
+		    if (!hasNext()) {
+			throw new NoSuchElementException();
+		    }
+		    fetched = false;
+		    return current;
+		}
+
+		public void remove() {
+		    throw new UnsupportedOperationException(
+			    "Remove not supported");
+		}
+	    };
+	}
+
+	@Override
+	public InputStream open(ZipEntry entry) throws IOException {
+	    if (entry != current) {
+		throw new IOException("Only the current entry can be read: "
+			+ entry.getName());
+	    }
+	    return new FilterInputStream(zip) {
+		@Override
+		public void close() throws IOException {
+		    zip.closeEntry();
+		}
+	    };
+	}
+
+	@Override
+	public void close() throws IOException {
+	    zip.close();
+	}
+    }
+
+}
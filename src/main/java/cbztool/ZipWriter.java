@@ -0,0 +1,214 @@
+package cbztool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Write a zip archive from entries that are already compressed.
+ * 
+ * <p>
+ * {@link java.util.zip.ZipOutputStream} compresses the entries itself, on the
+ * thread writing the archive. This writer takes the data as it is stored in
+ * the archive, so entries can be compressed on other threads and only written
+ * here, in order. Zip64 is not supported, the archive is limited to 65535
+ * entries and 4 GB.
+ * </p>
+ * 
+ * <pre>
+ * ZipWriter zip = new ZipWriter(new BufferedOutputStream(out));
+ * zip.write(&quot;page01.jpg&quot;, time, ZipEntry.STORED, crc, data.length, data,
+ *      data.length);
+ * zip.close();
+ * </pre>
+ */
+public class ZipWriter implements Closeable {
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int ENTRY_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int UTF8_FLAG = 0x800;
+    private static final long MAX_SIZE = 0xfffffffeL;
+    private static final int MAX_ENTRIES = 0xffff;
+
+    /**
+     * Central directory record of a written entry.
+     */
+    private static class Written {
+	private final byte[] name;
+	private final int flags;
+	private final int method;
+	private final int dosTime;
+	private final long crc;
+	private final long compressedSize;
+	private final long size;
+	private final long offset;
+
+	Written(byte[] name, int flags, int method, int dosTime, long crc,
+		long compressedSize, long size, long offset) {
+	    this.name = name;
+	    this.flags = flags;
+	    this.method = method;
+	    this.dosTime = dosTime;
+	    this.crc = crc;
+	    this.compressedSize = compressedSize;
+	    this.size = size;
+	    this.offset = offset;
+	}
+    }
+
+    private final OutputStream out;
+    private final List<Written> entries = new ArrayList<Written>();
+    private long position;
+
+    /**
+     * @param out
+     *            the stream to write the archive to, closed with this writer.
+     */
+    public ZipWriter(OutputStream out) {
+	this.out = out;
+    }
+
+    /**
+     * Write an entry.
+     * 
+     * @param name
+     *            the entry name.
+     * @param time
+     *            modification time in milliseconds, -1 if unknown.
+     * @param method
+     *            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+     * @param crc
+     *            CRC-32 of the uncompressed content.
+     * @param size
+     *            size of the uncompressed content.
+     * @param data
+     *            the content as stored in the archive, raw deflate data
+     *            without zlib header for DEFLATED entries.
+     * @param length
+     *            number of bytes of <code>data</code> to write.
+     * @throws IOException
+     *             if the entry can't be written or the archive needs Zip64.
+     */
+    public void write(String name, long time, int method, long crc,
+	    long size, byte[] data, int length) throws IOException {
+	if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+	    throw new IOException("Unsupported method " + method + ": " + name);
+	}
+	if (entries.size() >= MAX_ENTRIES || size > MAX_SIZE
+		|| position + length > MAX_SIZE) {
+	    throw new IOException("Archive too large, Zip64 is not supported");
+	}
+
+	byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+	int flags = encoded.length != name.length() ? UTF8_FLAG : 0;
+	for (int i = 0; flags == 0 && i < encoded.length; i++) {
+	    if (encoded[i] < 0) {
+		flags = UTF8_FLAG;
+	    }
+	}
+	Written entry = new Written(encoded, flags, method, dosTime(time),
+		crc, length, size, position);
+
+	ByteBuffer header = buffer(30 + encoded.length);
+	header.putInt(LOCAL_SIGNATURE);
+	header.putShort((short) VERSION);
+	header.putShort((short) flags);
+	header.putShort((short) method);
+	header.putInt(entry.dosTime);
+	header.putInt((int) crc);
+	header.putInt(length);
+	header.putInt((int) size);
+	header.putShort((short) encoded.length);
+	header.putShort((short) 0);
+	header.put(encoded);
+	write(header);
+	out.write(data, 0, length);
+	position += length;
+	entries.add(entry);
+    }
+
+    /**
+     * Write the central directory and close the stream.
+     */
+    @Override
+    public void close() throws IOException {
+	try {
+	    long start = position;
+	    for (Written entry : entries) {
+		ByteBuffer record = buffer(46 + entry.name.length);
+		record.putInt(ENTRY_SIGNATURE);
+		record.putShort((short) VERSION);
+		record.putShort((short) VERSION);
+		record.putShort((short) entry.flags);
+		record.putShort((short) entry.method);
+		record.putInt(entry.dosTime);
+		record.putInt((int) entry.crc);
+		record.putInt((int) entry.compressedSize);
+		record.putInt((int) entry.size);
+		record.putShort((short) entry.name.length);
+		record.putShort((short) 0); // extra
+		record.putShort((short) 0); // comment
+		record.putShort((short) 0); // disk
+		record.putShort((short) 0); // internal attributes
+		record.putInt(0); // external attributes
+		record.putInt((int) entry.offset);
+		record.put(entry.name);
+		write(record);
+	    }
+	    if (position > MAX_SIZE) {
+		throw new IOException(
+			"Archive too large, Zip64 is not supported");
+	    }
+
+	    ByteBuffer end = buffer(22);
+	    end.putInt(END_SIGNATURE);
+	    end.putShort((short) 0);
+	    end.putShort((short) 0);
+	    end.putShort((short) entries.size());
+	    end.putShort((short) entries.size());
+	    end.putInt((int) (position - start));
+	    end.putInt((int) start);
+	    end.putShort((short) 0);
+	    write(end);
+	    out.flush();
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static ByteBuffer buffer(int size) {
+	return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+	out.write(buffer.array(), 0, buffer.position());
+	position += buffer.position();
+    }
+
+    /**
+     * @return the time in MS-DOS format, date in the high 16 bits.
+     */
+    static int dosTime(long time) {
+	Calendar calendar = Calendar.getInstance();
+	calendar.setTimeInMillis(time < 0 ? System.currentTimeMillis() : time);
+	int year = calendar.get(Calendar.YEAR);
+	if (year < 1980) {
+	    return (1 << 21) | (1 << 16);
+	}
+	return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+		| calendar.get(Calendar.DAY_OF_MONTH) << 16
+		| calendar.get(Calendar.HOUR_OF_DAY) << 11
+		| calendar.get(Calendar.MINUTE) << 5
+		| calendar.get(Calendar.SECOND) >> 1;
+    }
+
+}
@@ -0,0 +1,439 @@
+package cbztool.bench;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+import cbztool.CbzToPdf;
+import cbztool.PdfConfig;
+import cbztool.UnZip;
+import cbztool.share.JsonWriter;
+import cbztool.share.TaskEngine;
+
+/**
+ * End to end benchmark, converts and extracts a corpus of generated CBZ files
+ * the way {@link CbzToPdf} and {@link UnZip} do, and reports the throughput,
+ * the time per archive, the GC time and the peak memory as JSON.
+ *
+ * <p>
+ * The corpus is made from a seed, the number of archives, the largest number
+ * of pages, the page format and the entry method. Each archive gets its page
+ * count, page size, format and method from the seed, so archives of different
+ * sizes are mixed and the same settings always give the same corpus. The
+ * corpus is written once below the work directory and reused by later runs,
+ * so it is read through the file system cache like a library on a warm disk.
+ * </p>
+ *
+ * <p>
+ * Each workload runs over the whole corpus <code>warmup</code> times, not
+ * measured, and then <code>runs</code> times. The report has for each
+ * workload the pages and input megabytes per second, the 50th and 99th
+ * percentile and the longest time per archive, the GC time and count and the
+ * peak heap during the measured runs. The peak resident set size of the
+ * process, <code>VmHWM</code>, is read from <code>/proc/self/status</code>
+ * and is -1 where there is none.
+ * </p>
+ *
+ * <pre>
+ * MacroBenchmark bench = new MacroBenchmark(Paths.get(&quot;/tmp/bench&quot;));
+ * bench.setArchives(20);
+ * String json = bench.run();
+ * </pre>
+ */
+public class MacroBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(MacroBenchmark.class
+	    .getName());
+
+    /** Format or method picked per archive from the seed. */
+    public static final String MIXED = "mixed";
+
+    /** Page sizes of the corpus, a phone scan and a high resolution scan. */
+    private static final int[][] PAGE_SIZES = { { 800, 1200 },
+	    { 2400, 3600 } };
+
+    /**
+     * A workload run on each archive of the corpus.
+     */
+    private interface Workload {
+
+	/**
+	 * @param archive
+	 *            the archive.
+	 * @param output
+	 *            where to write the output, removed after the run.
+	 * @return number of pages or entries processed.
+	 */
+	int run(Path archive, Path output) throws Exception;
+    }
+
+    private final Path workDirectory;
+    private long seed = 42;
+    private int archives = 8;
+    private int maxPages = 40;
+    private String format = MIXED;
+    private String method = MIXED;
+    private int warmup = 1;
+    private int runs = 3;
+    private PdfConfig config = new PdfConfig();
+
+    /**
+     * @param workDirectory
+     *            directory for the corpus and the outputs.
+     */
+    public MacroBenchmark(Path workDirectory) {
+	this.workDirectory = workDirectory;
+    }
+
+    /**
+     * @param seed
+     *            seed for the corpus, defaults to 42.
+     */
+    public void setSeed(long seed) {
+	this.seed = seed;
+    }
+
+    /**
+     * @param archives
+     *            number of archives in the corpus, defaults to 8.
+     */
+    public void setArchives(int archives) {
+	this.archives = Math.max(1, archives);
+    }
+
+    /**
+     * @param maxPages
+     *            largest number of pages of an archive, defaults to 40.
+     */
+    public void setMaxPages(int maxPages) {
+	this.maxPages = Math.max(1, maxPages);
+    }
+
+    /**
+     * @param format
+     *            <code>jpeg</code>, <code>png</code> or {@link #MIXED}.
+     * @throws IllegalArgumentException
+     *             for another format.
+     */
+    public void setFormat(String format) {
+	String value = format.toLowerCase(Locale.ROOT);
+	if (!Arrays.asList(MIXED, "jpeg", "png").contains(value)) {
+	    throw new IllegalArgumentException("Unknown format: " + format);
+	}
+	this.format = value;
+    }
+
+    /**
+     * @param method
+     *            <code>stored</code>, <code>deflated</code> or {@link #MIXED}.
+     * @throws IllegalArgumentException
+     *             for another method.
+     */
+    public void setMethod(String method) {
+	String value = method.toLowerCase(Locale.ROOT);
+	if (!Arrays.asList(MIXED, "stored", "deflated").contains(value)) {
+	    throw new IllegalArgumentException("Unknown method: " + method);
+	}
+	this.method = value;
+    }
+
+    /**
+     * @param warmup
+     *            runs over the corpus before measuring, defaults to 1.
+     */
+    public void setWarmup(int warmup) {
+	this.warmup = Math.max(0, warmup);
+    }
+
+    /**
+     * @param runs
+     *            measured runs over the corpus, defaults to 3.
+     */
+    public void setRuns(int runs) {
+	this.runs = Math.max(1, runs);
+    }
+
+    /**
+     * @param config
+     *            settings for the PDF conversions.
+     */
+    public void setConfig(PdfConfig config) {
+	this.config = config;
+    }
+
+    /**
+     * Write the corpus unless it is already there.
+     *
+     * @return the archives, in corpus order.
+     * @throws IOException
+     *             if an archive can't be written.
+     */
+    public List<Path> corpus() throws IOException {
+	Path directory = workDirectory.resolve(String.format(
+		"corpus-%d-%d-%d-%s-%s", seed, archives, maxPages, format,
+		method));
+	Files.createDirectories(directory);
+	List<Path> corpus = new ArrayList<Path>();
+	Random random = new Random(seed);
+	for (int i = 0; i < archives; i++) {
+	    // every value is drawn for every archive, so the corpus only
+	    // depends on the settings.
+	    int pages = 1 + random.nextInt(maxPages);
+	    int[] size = PAGE_SIZES[random.nextInt(4) == 0 ? 1 : 0];
+	    SyntheticCbz.Format pageFormat = random.nextBoolean() ? SyntheticCbz.Format.JPEG
+		    : SyntheticCbz.Format.PNG;
+	    boolean stored = random.nextBoolean();
+	    if (!format.equals(MIXED)) {
+		pageFormat = SyntheticCbz.Format.valueOf(format
+			.toUpperCase(Locale.ROOT));
+	    }
+	    if (!method.equals(MIXED)) {
+		stored = method.equals("stored");
+	    }
+
+	    SyntheticCbz cbz = new SyntheticCbz(seed * 1000 + i);
+	    cbz.setPages(pages);
+	    cbz.setSize(size[0], size[1]);
+	    cbz.setFormat(pageFormat);
+	    cbz.setMethod(stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+	    cbz.setLandscapeEvery(8);
+
+	    Path archive = directory.resolve(String.format(
+		    "%03d-%dp-%dx%d-%s-%s.cbz", i, pages, size[0], size[1],
+		    pageFormat.getExtension(), stored ? "stored" : "deflated"));
+	    if (!Files.isRegularFile(archive)) {
+		Path part = archive.resolveSibling(archive.getFileName()
+			+ ".part");
+		cbz.write(part);
+		Files.move(part, archive, StandardCopyOption.REPLACE_EXISTING);
+		LOG.fine("Generated " + archive);
+	    }
+	    corpus.add(archive);
+	}
+	return corpus;
+    }
+
+    /**
+     * Generate the corpus if needed and run the workloads.
+     *
+     * @return the report as JSON.
+     * @throws Exception
+     *             if an archive fails to convert or extract.
+     */
+    public String run() throws Exception {
+	List<Path> corpus = corpus();
+	long bytes = 0;
+	for (Path archive : corpus) {
+	    bytes += Files.size(archive);
+	}
+	Path outputs = workDirectory.resolve("output");
+	Files.createDirectories(outputs);
+	final TaskEngine engine = TaskEngine.platform(1);
+
+	JsonWriter json = new JsonWriter();
+	json.beginObject();
+	json.name("java").value(System.getProperty("java.version"));
+	json.name("processors").value(
+		Runtime.getRuntime().availableProcessors());
+	json.name("maxHeapBytes").value(Runtime.getRuntime().maxMemory());
+	json.name("corpus").beginObject();
+	json.name("seed").value(seed);
+	json.name("archives").value(corpus.size());
+	json.name("maxPages").value(maxPages);
+	json.name("format").value(format);
+	json.name("method").value(method);
+	json.name("bytes").value(bytes);
+	json.endObject();
+	json.name("warmup").value(warmup);
+	json.name("runs").value(runs);
+	json.name("pdfSettings").value(config.getSettings());
+
+	json.name("workloads").beginObject();
+	try {
+	    measure("pdf", new Workload() {
+		@Override
+		public int run(Path archive, Path output) throws Exception {
+		    Path pdf = output.resolveSibling(output.getFileName()
+			    + ".pdf");
+		    try {
+			return new CbzToPdf(archive.toString(), pdf.toString(),
+				new PdfConfig(config)).getTask()
+				.submit(engine, null).join();
+		    } finally {
+			Files.deleteIfExists(pdf);
+		    }
+		}
+	    }, corpus, outputs, json);
+	    measure("unzip", new Workload() {
+		@Override
+		public int run(Path archive, Path output) throws Exception {
+		    try {
+			return new UnZip(archive.toString(),
+				UnZip.ALL(output.toString())).getTask()
+				.submit(engine, null).join();
+		    } finally {
+			delete(output);
+		    }
+		}
+	    }, corpus, outputs, json);
+	} finally {
+	    engine.shutdown();
+	}
+	json.endObject();
+
+	json.name("peakRssBytes").value(peakRss());
+	json.endObject();
+	return json.toString();
+    }
+
+    /**
+     * Run a workload over the corpus and write its numbers.
+     */
+    private void measure(String name, Workload workload, List<Path> corpus,
+	    Path output, JsonWriter json) throws Exception {
+	for (int i = 0; i < warmup; i++) {
+	    for (Path archive : corpus) {
+		workload.run(archive, output.resolve(name));
+	    }
+	}
+
+	System.gc();
+	List<MemoryPoolMXBean> heap = new ArrayList<MemoryPoolMXBean>();
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+		pool.resetPeakUsage();
+		heap.add(pool);
+	    }
+	}
+	long gcMillis = -gcMillis();
+	long gcCount = -gcCount();
+
+	long[] nanos = new long[runs * corpus.size()];
+	long pages = 0;
+	long bytes = 0;
+	long total = 0;
+	int n = 0;
+	for (int i = 0; i < runs; i++) {
+	    for (Path archive : corpus) {
+		long size = Files.size(archive);
+		long start = System.nanoTime();
+		pages += workload.run(archive, output.resolve(name));
+		nanos[n] = System.nanoTime() - start;
+		total += nanos[n++];
+		bytes += size;
+	    }
+	}
+
+	gcMillis += gcMillis();
+	gcCount += gcCount();
+	long peakHeap = 0;
+	for (MemoryPoolMXBean pool : heap) {
+	    peakHeap += pool.getPeakUsage().getUsed();
+	}
+	Arrays.sort(nanos);
+	double seconds = total / 1e9;
+
+	json.name(name).beginObject();
+	json.name("archives").value(nanos.length);
+	json.name("pages").value(pages);
+	json.name("bytes").value(bytes);
+	json.name("seconds").value(seconds);
+	json.name("pagesPerSecond").value(pages / seconds);
+	json.name("mbPerSecond").value(bytes / 1048576.0 / seconds);
+	json.name("archiveMillis").beginObject();
+	json.name("p50").value(percentile(nanos, 50) / 1e6);
+	json.name("p99").value(percentile(nanos, 99) / 1e6);
+	json.name("max").value(nanos[nanos.length - 1] / 1e6);
+	json.endObject();
+	json.name("gcMillis").value(gcMillis);
+	json.name("gcCount").value(gcCount);
+	json.name("peakHeapBytes").value(peakHeap);
+	json.endObject();
+	LOG.info(String.format("%s: %.1f pages/s, %.1f MB/s", name, pages
+		/ seconds, bytes / 1048576.0 / seconds));
+    }
+
+    /**
+     * @param sorted
+     *            sorted samples.
+     * @param percent
+     *            the percentile.
+     * @return the sample at the percentile, by nearest rank.
+     */
+    static long percentile(long[] sorted, int percent) {
+	int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+	return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static long gcMillis() {
+	long millis = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory
+		.getGarbageCollectorMXBeans()) {
+	    millis += Math.max(0, gc.getCollectionTime());
+	}
+	return millis;
+    }
+
+    private static long gcCount() {
+	long count = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory
+		.getGarbageCollectorMXBeans()) {
+	    count += Math.max(0, gc.getCollectionCount());
+	}
+	return count;
+    }
+
+    /**
+     * @return the peak resident set size of the process, -1 if not known.
+     */
+    static long peakRss() {
+	Path status = Paths.get("/proc/self/status");
+	if (!Files.isReadable(status)) {
+	    return -1;
+	}
+	try {
+	    for (String line : Files.readAllLines(status,
+		    StandardCharsets.UTF_8)) {
+		if (line.startsWith("VmHWM:")) {
+		    String[] fields = line.substring(6).trim().split("\\s+");
+		    return Long.parseLong(fields[0]) * 1024;
+		}
+	    }
+	} catch (IOException e) {
+	    LOG.fine("Unable to read " + status + ": " + e.getMessage());
+	} catch (NumberFormatException e) {
+	    LOG.fine("Unable to read " + status + ": " + e.getMessage());
+	}
+	return -1;
+    }
+
+    /**
+     * Delete a file or a directory tree.
+     */
+    private static void delete(Path path) throws IOException {
+	if (Files.isDirectory(path)) {
+	    try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+		for (Path child : children) {
+		    delete(child);
+		}
+	    }
+	}
+	Files.deleteIfExists(path);
+    }
+
+}
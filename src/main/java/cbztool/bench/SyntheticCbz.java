@@ -0,0 +1,222 @@
+package cbztool.bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Create CBZ archives with generated pages, the same seed and settings always
+ * give the same pages.
+ * 
+ * <pre>
+ * SyntheticCbz cbz = new SyntheticCbz(42);
+ * cbz.setPages(20);
+ * cbz.setFormat(SyntheticCbz.Format.PNG);
+ * cbz.write(Paths.get(&quot;test.cbz&quot;));
+ * </pre>
+ */
+public class SyntheticCbz {
+
+    /**
+     * Image format for the pages.
+     */
+    public enum Format {
+	JPEG("jpg"), PNG("png");
+
+	private final String extension;
+
+	private Format(String extension) {
+	    this.extension = extension;
+	}
+
+	/**
+	 * @return the file extension.
+	 */
+	public String getExtension() {
+	    return extension;
+	}
+    }
+
+    /** Time of all entries, so a seed always gives the same bytes. */
+    private static final long ENTRY_TIME = 1262347200000L;
+
+    private final long seed;
+    private int pages = 10;
+    private int width = 1000;
+    private int height = 1500;
+    private Format format = Format.JPEG;
+    private int method = ZipEntry.DEFLATED;
+    private int landscapeEvery;
+
+    /**
+     * @param seed
+     *            seed for the page content.
+     */
+    public SyntheticCbz(long seed) {
+	this.seed = seed;
+    }
+
+    /**
+     * @param pages
+     *            number of pages in the archive.
+     */
+    public void setPages(int pages) {
+	this.pages = pages;
+    }
+
+    /**
+     * @param width
+     *            page width in pixels.
+     * @param height
+     *            page height in pixels.
+     */
+    public void setSize(int width, int height) {
+	this.width = width;
+	this.height = height;
+    }
+
+    /**
+     * @param format
+     *            image format for the pages.
+     */
+    public void setFormat(Format format) {
+	this.format = format;
+    }
+
+    /**
+     * @param method
+     *            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+     */
+    public void setMethod(int method) {
+	this.method = method;
+    }
+
+    /**
+     * @param landscapeEvery
+     *            make every n'th page a landscape page, 0 for none.
+     */
+    public void setLandscapeEvery(int landscapeEvery) {
+	this.landscapeEvery = landscapeEvery;
+    }
+
+    /**
+     * @return number of pages in the archive.
+     */
+    public int getPages() {
+	return pages;
+    }
+
+    /**
+     * @param index
+     *            page index, from 0.
+     * @return the entry name for the page.
+     */
+    public String name(int index) {
+	return String.format("page%04d.%s", index + 1, format.getExtension());
+    }
+
+    /**
+     * Render and encode a page.
+     * 
+     * @param index
+     *            page index, from 0.
+     * @return the encoded image.
+     * @throws IOException
+     *             if the image can't be encoded.
+     */
+    public byte[] page(int index) throws IOException {
+	boolean landscape = landscapeEvery > 0
+		&& (index + 1) % landscapeEvery == 0;
+	int w = landscape ? height : width;
+	int h = landscape ? width : height;
+	Random random = new Random(seed * 31 + index);
+
+	BufferedImage image = new BufferedImage(w, h,
+		BufferedImage.TYPE_INT_RGB);
+	Graphics2D g = image.createGraphics();
+	g.setColor(Color.WHITE);
+	g.fillRect(0, 0, w, h);
+	for (int i = 0; i < 40; i++) {
+	    g.setColor(new Color(random.nextInt(0xffffff)));
+	    g.fillRect(random.nextInt(w), random.nextInt(h),
+		    random.nextInt(w / 3 + 1), random.nextInt(h / 3 + 1));
+	}
+	g.dispose();
+
+	// scanned pages are noisy, noise keeps the encoded size realistic.
+	for (int y = 0; y < h; y += 2) {
+	    for (int x = random.nextInt(4); x < w; x += 4) {
+		int rgb = image.getRGB(x, y);
+		int n = random.nextInt(32) - 16;
+		image.setRGB(x, y, shift(rgb, 16, n) | shift(rgb, 8, n)
+			| shift(rgb, 0, n));
+	    }
+	}
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	ImageIO.write(image, format == Format.JPEG ? "jpeg" : "png", bytes);
+	return bytes.toByteArray();
+    }
+
+    private static int shift(int rgb, int bits, int delta) {
+	int c = (rgb >> bits & 0xff) + delta;
+	return Math.max(0, Math.min(255, c)) << bits;
+    }
+
+    /**
+     * Write the archive to a stream.
+     * 
+     * @param output
+     *            the stream to write to, closed when done.
+     * @throws IOException
+     *             if the archive can't be written.
+     */
+    public void write(OutputStream output) throws IOException {
+	ZipOutputStream zip = new ZipOutputStream(output);
+	try {
+	    for (int i = 0; i < pages; i++) {
+		byte[] data = page(i);
+		ZipEntry entry = new ZipEntry(name(i));
+		entry.setMethod(method);
+		entry.setTime(ENTRY_TIME);
+		if (method == ZipEntry.STORED) {
+		    CRC32 crc = new CRC32();
+		    crc.update(data);
+		    entry.setSize(data.length);
+		    entry.setCompressedSize(data.length);
+		    entry.setCrc(crc.getValue());
+		}
+		zip.putNextEntry(entry);
+		zip.write(data);
+		zip.closeEntry();
+	    }
+	} finally {
+	    zip.close();
+	}
+    }
+
+    /**
+     * Write the archive to a file.
+     * 
+     * @param file
+     *            the file to create.
+     * @throws IOException
+     *             if the archive can't be written.
+     */
+    public void write(Path file) throws IOException {
+	write(new BufferedOutputStream(Files.newOutputStream(file)));
+    }
+
+}
@@ -0,0 +1,281 @@
+package cbztool.share;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of daemon threads that can be resized while running, and that
+ * measures how its tasks are served.
+ *
+ * <p>
+ * Each task is timed from {@link #execute(Runnable)} to its start, the queue
+ * wait, and from its start to its end, the busy time. When the JVM supports
+ * it the CPU time of the task's thread is also recorded, so a pool whose tasks
+ * spend their time blocked on the disk can be told from a pool whose tasks
+ * compute. {@link #sample()} returns the numbers since the previous sample,
+ * see {@link AdaptiveScheduler}.
+ * </p>
+ */
+public class AdaptivePool implements Executor {
+
+	private static final ThreadMXBean THREADS = ManagementFactory
+			.getThreadMXBean();
+
+	/**
+	 * How the pool served its tasks between two samples.
+	 */
+	public static final class Sample {
+		private final int size;
+		private final int queued;
+		private final long completed;
+		private final double utilization;
+		private final double waitMillis;
+		private final double cpuEfficiency;
+
+		Sample(int size, int queued, long completed, double utilization,
+				double waitMillis, double cpuEfficiency) {
+			this.size = size;
+			this.queued = queued;
+			this.completed = completed;
+			this.utilization = utilization;
+			this.waitMillis = waitMillis;
+			this.cpuEfficiency = cpuEfficiency;
+		}
+
+		/**
+		 * @return number of threads when sampled.
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return number of tasks waiting for a thread when sampled.
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		/**
+		 * @return number of tasks completed since the previous sample.
+		 */
+		public long getCompleted() {
+			return completed;
+		}
+
+		/**
+		 * @return the part of the thread time spent running tasks, from 0 to
+		 *         1.
+		 */
+		public double getUtilization() {
+			return utilization;
+		}
+
+		/**
+		 * @return the average time a task waited for a thread, in
+		 *         milliseconds.
+		 */
+		public double getWaitMillis() {
+			return waitMillis;
+		}
+
+		/**
+		 * @return the part of the busy time the threads were on a CPU, from
+		 *         0 to 1, 1 if the CPU time is not measured.
+		 */
+		public double getCpuEfficiency() {
+			return cpuEfficiency;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%d threads, %.0f%% busy, %.0f%% cpu, %.1f ms wait, %d queued",
+					size, utilization * 100, cpuEfficiency * 100, waitMillis,
+					queued);
+		}
+	}
+
+	/**
+	 * A task with its submit time.
+	 */
+	private final class Timed implements Runnable {
+		private final Runnable task;
+		private final long submitted = System.nanoTime();
+
+		Timed(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			long cpuStart = cpuTime();
+			waitNanos.addAndGet(start - submitted);
+			try {
+				task.run();
+			} finally {
+				busyNanos.addAndGet(System.nanoTime() - start);
+				if (cpuStart >= 0) {
+					cpuNanos.addAndGet(cpuTime() - cpuStart);
+				}
+				completed.incrementAndGet();
+			}
+		}
+	}
+
+	private final ThreadPoolExecutor pool;
+	private final int min;
+	private final int max;
+	private final boolean cpuMeasured;
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong busyNanos = new AtomicLong();
+	private final AtomicLong cpuNanos = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private long sampled = System.nanoTime();
+	private long lastWait;
+	private long lastBusy;
+	private long lastCpu;
+	private long lastCompleted;
+
+	/**
+	 * @param name
+	 *            prefix for the thread names.
+	 * @param size
+	 *            number of threads to start with.
+	 * @param min
+	 *            the fewest threads the pool can be resized to, at least 1.
+	 * @param max
+	 *            the most threads the pool can be resized to.
+	 */
+	public AdaptivePool(String name, int size, int min, int max) {
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		int initial = clamp(size);
+		pool = new ThreadPoolExecutor(initial, initial, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				OrderedPipeline.daemonThreads(name));
+		cpuMeasured = THREADS.isCurrentThreadCpuTimeSupported()
+				&& THREADS.isThreadCpuTimeEnabled();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		pool.execute(new Timed(command));
+	}
+
+	/**
+	 * @return the current number of threads.
+	 */
+	public int getSize() {
+		return pool.getCorePoolSize();
+	}
+
+	/**
+	 * @return the fewest threads the pool can be resized to.
+	 */
+	public int getMin() {
+		return min;
+	}
+
+	/**
+	 * @return the most threads the pool can be resized to.
+	 */
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * Resize the pool, running tasks are not interrupted, surplus threads end
+	 * when their task is done.
+	 *
+	 * @param size
+	 *            the number of threads, clamped to the bounds of the pool.
+	 * @return the new number of threads.
+	 */
+	public synchronized int setSize(int size) {
+		int target = clamp(size);
+		if (target > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(target);
+			pool.setCorePoolSize(target);
+		} else {
+			pool.setCorePoolSize(target);
+			pool.setMaximumPoolSize(target);
+		}
+		return target;
+	}
+
+	/**
+	 * @return how the tasks were served since the previous sample.
+	 */
+	public synchronized Sample sample() {
+		long now = System.nanoTime();
+		long wait = waitNanos.get();
+		long busy = busyNanos.get();
+		long cpu = cpuNanos.get();
+		long done = completed.get();
+
+		int size = getSize();
+		long elapsed = Math.max(1, now - sampled);
+		long busyDelta = busy - lastBusy;
+		long doneDelta = done - lastCompleted;
+		double utilization = Math.min(1, busyDelta / (double) elapsed / size);
+		double waitMillis = doneDelta == 0 ? 0 : (wait - lastWait)
+				/ (double) doneDelta / 1e6;
+		double efficiency = !cpuMeasured || busyDelta <= 0 ? 1 : Math.min(1,
+				(cpu - lastCpu) / (double) busyDelta);
+
+		sampled = now;
+		lastWait = wait;
+		lastBusy = busy;
+		lastCpu = cpu;
+		lastCompleted = done;
+		return new Sample(size, pool.getQueue().size(), doneDelta,
+				utilization, waitMillis, efficiency);
+	}
+
+	/**
+	 * @return number of tasks completed since the pool was created.
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Stop accepting tasks, queued tasks are still run.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * @param timeout
+	 *            the longest time to wait.
+	 * @param unit
+	 *            unit of the timeout.
+	 * @return <code>true</code> if all tasks are done.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return pool.awaitTermination(timeout, unit);
+	}
+
+	private int clamp(int size) {
+		return Math.max(min, Math.min(max, size));
+	}
+
+	/**
+	 * @return CPU time of the current thread, -1 if not measured.
+	 */
+	private long cpuTime() {
+		return cpuMeasured ? THREADS.getCurrentThreadCpuTime() : -1;
+	}
+
+}
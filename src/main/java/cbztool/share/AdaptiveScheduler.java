@@ -0,0 +1,204 @@
+package cbztool.share;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Two pools for runs over many files, one for the tasks reading and writing
+ * the files and one for the values they compute, resized from what they
+ * measure.
+ *
+ * <p>
+ * A task submitted to {@link #getIo()} runs the whole task on its thread and
+ * spends its time on the disk, a {@link TaskEngine} from
+ * {@link #engine()} prepares the values of staged tasks on
+ * {@link #getCompute()}. Every {@link #getInterval()} milliseconds the pools
+ * are sampled, see {@link AdaptivePool.Sample}, and resized by one thread:
+ * </p>
+ * <ul>
+ * <li>the compute pool grows while values wait for a thread and the threads
+ * are busy, beyond the number of processors only while the threads are on a
+ * CPU, so tasks blocked in a decoder can be overlapped.</li>
+ * <li>the compute pool shrinks when its threads are idle, or when they are
+ * more than the processors and wait for a CPU.</li>
+ * <li>the I/O pool grows while files are queued and the compute pool has
+ * room, so the processors are kept busy.</li>
+ * <li>the I/O pool shrinks while values wait long for the compute pool, more
+ * files at once would only hold more pages in memory.</li>
+ * </ul>
+ *
+ * <pre>
+ * AdaptiveScheduler scheduler = new AdaptiveScheduler(4);
+ * scheduler.start();
+ * TaskEngine engine = scheduler.engine();
+ * scheduler.getIo().execute(convertOneFile);
+ * scheduler.shutdown();
+ * </pre>
+ */
+public class AdaptiveScheduler {
+
+	private static final Logger LOG = Logger.getLogger(AdaptiveScheduler.class
+			.getName());
+
+	/** Average wait of the compute pool that tells values are queued. */
+	static final double GROW_WAIT_MILLIS = 2;
+
+	/** Average wait of the compute pool that tells the files are too many. */
+	static final double SHRINK_WAIT_MILLIS = 20;
+
+	private final int processors;
+	private final AdaptivePool io;
+	private final AdaptivePool compute;
+	private final ScheduledExecutorService ticker;
+	private long interval = 500;
+	private int resizes;
+
+	/**
+	 * @param jobs
+	 *            number of files handled at once to start with.
+	 */
+	public AdaptiveScheduler(int jobs) {
+		this(jobs, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param jobs
+	 *            number of files handled at once to start with.
+	 * @param processors
+	 *            number of processors to plan the compute pool for.
+	 */
+	public AdaptiveScheduler(int jobs, int processors) {
+		this.processors = Math.max(1, processors);
+		jobs = Math.max(1, jobs);
+		io = new AdaptivePool("io", jobs, 1, Math.max(2 * jobs,
+				this.processors));
+		compute = new AdaptivePool("compute", this.processors, 1,
+				2 * this.processors);
+		ticker = Executors.newSingleThreadScheduledExecutor(OrderedPipeline
+				.daemonThreads("scheduler"));
+	}
+
+	/**
+	 * @return the pool for the tasks reading and writing files.
+	 */
+	public AdaptivePool getIo() {
+		return io;
+	}
+
+	/**
+	 * @return the pool preparing the values of staged tasks.
+	 */
+	public AdaptivePool getCompute() {
+		return compute;
+	}
+
+	/**
+	 * @return an engine running each task on the thread submitting it, with
+	 *         the values of staged tasks prepared on the compute pool.
+	 */
+	public TaskEngine engine() {
+		return TaskEngine.currentThread(compute);
+	}
+
+	/**
+	 * @return milliseconds between two samples.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @param interval
+	 *            milliseconds between two samples, set before
+	 *            {@link #start()}.
+	 */
+	public void setInterval(long interval) {
+		this.interval = Math.max(10, interval);
+	}
+
+	/**
+	 * Start sampling and resizing the pools.
+	 */
+	public void start() {
+		ticker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				adjust();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sample both pools and resize them by at most one thread each.
+	 */
+	synchronized void adjust() {
+		AdaptivePool.Sample cpu = compute.sample();
+		AdaptivePool.Sample disk = io.sample();
+
+		int cpuSize = cpu.getSize();
+		if (cpu.getWaitMillis() > GROW_WAIT_MILLIS
+				&& cpu.getUtilization() > 0.8
+				&& (cpuSize < processors || cpu.getCpuEfficiency() > 0.9)) {
+			cpuSize++;
+		} else if (cpu.getUtilization() < 0.4 && cpu.getQueued() == 0
+				|| cpuSize > processors && cpu.getCpuEfficiency() < 0.6) {
+			cpuSize--;
+		}
+
+		int ioSize = disk.getSize();
+		if (cpu.getWaitMillis() > SHRINK_WAIT_MILLIS) {
+			ioSize--;
+		} else if (disk.getQueued() > 0 && cpu.getUtilization() < 0.7) {
+			ioSize++;
+		}
+
+		resize(compute, cpuSize, cpu);
+		resize(io, ioSize, disk);
+	}
+
+	private void resize(AdaptivePool pool, int size,
+			AdaptivePool.Sample sample) {
+		int before = sample.getSize();
+		if (pool.setSize(size) != before) {
+			resizes++;
+			LOG.fine((pool == io ? "io" : "compute") + " pool " + before
+					+ " -> " + pool.getSize() + " threads, " + sample);
+		}
+	}
+
+	/**
+	 * Stop resizing, the pools stop accepting tasks and queued tasks are still
+	 * run.
+	 */
+	public void shutdown() {
+		ticker.shutdownNow();
+		io.shutdown();
+		compute.shutdown();
+	}
+
+	/**
+	 * @param timeout
+	 *            the longest time to wait for each pool.
+	 * @param unit
+	 *            unit of the timeout.
+	 * @return <code>true</code> if all tasks are done.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return io.awaitTermination(timeout, unit)
+				&& compute.awaitTermination(timeout, unit);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"io %d threads (%d..%d), compute %d threads (%d..%d), %d resizes",
+				io.getSize(), io.getMin(), io.getMax(), compute.getSize(),
+				compute.getMin(), compute.getMax(), resizes);
+	}
+
+}
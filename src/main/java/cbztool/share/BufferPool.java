@@ -0,0 +1,121 @@
+package cbztool.share;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A bounded pool of byte arrays, so large buffers can be reused instead of
+ * allocated for every value.
+ *
+ * <p>
+ * The pool keeps at most <code>maxBuffers</code> arrays and at most
+ * <code>maxBytes</code> bytes, arrays released when the pool is full are left
+ * to the garbage collector. Safe to use from several threads.
+ * </p>
+ */
+public class BufferPool {
+
+	private final int maxBuffers;
+	private final long maxBytes;
+	private final LinkedList<byte[]> free = new LinkedList<byte[]>();
+	private long freeBytes;
+
+	/**
+	 * @param maxBuffers
+	 *            the maximum number of arrays kept in the pool.
+	 * @param maxBytes
+	 *            the maximum number of bytes kept in the pool.
+	 */
+	public BufferPool(int maxBuffers, long maxBytes) {
+		this.maxBuffers = maxBuffers;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Take an array from the pool, the smallest array that is large enough is
+	 * used, a new array is created if the pool has none.
+	 *
+	 * @param size
+	 *            the minimum size of the array.
+	 * @return an array of at least <code>size</code> bytes.
+	 */
+	public byte[] acquire(int size) {
+		synchronized (free) {
+			byte[] best = null;
+			for (byte[] candidate : free) {
+				if (candidate.length >= size
+						&& (best == null || candidate.length < best.length)) {
+					best = candidate;
+				}
+			}
+			if (best != null) {
+				removeIdentical(best);
+				freeBytes -= best.length;
+				return best;
+			}
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Wrap an array from {@link #acquire(int)} so it can be released.
+	 *
+	 * @param data
+	 *            an array from this pool.
+	 * @param length
+	 *            number of bytes used in the array.
+	 * @return the buffer.
+	 */
+	public PooledBuffer wrap(byte[] data, int length) {
+		return new PooledBuffer(this, data, length);
+	}
+
+	/**
+	 * Wrap an array that is not from a pool, releasing the buffer leaves the
+	 * array to the garbage collector.
+	 *
+	 * @param data
+	 *            the content, the whole array is used.
+	 * @return the buffer.
+	 */
+	public static PooledBuffer unpooled(byte[] data) {
+		return new PooledBuffer(null, data, data.length);
+	}
+
+	/**
+	 * Give an array back to the pool, the array must not be used after this.
+	 *
+	 * @param data
+	 *            the array to release.
+	 */
+	public void release(byte[] data) {
+		synchronized (free) {
+			if (free.size() >= maxBuffers
+					|| freeBytes + data.length > maxBytes) {
+				return;
+			}
+			free.addFirst(data);
+			freeBytes += data.length;
+		}
+	}
+
+	/**
+	 * @return number of bytes kept in the pool.
+	 */
+	public long getFreeBytes() {
+		synchronized (free) {
+			return freeBytes;
+		}
+	}
+
+	private void removeIdentical(byte[] data) {
+		Iterator<byte[]> i = free.iterator();
+		while (i.hasNext()) {
+			if (i.next() == data) {
+				i.remove();
+				return;
+			}
+		}
+	}
+
+}
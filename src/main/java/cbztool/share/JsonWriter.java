@@ -0,0 +1,167 @@
+package cbztool.share;
+
+import java.util.Locale;
+
+/**
+ * Build a JSON document, just enough for the reports written by the tools.
+ *
+ * <pre>
+ * String json = new JsonWriter().beginObject().name(&quot;pages&quot;).value(10)
+ *              .endObject().toString();
+ * </pre>
+ */
+public class JsonWriter {
+
+	private final StringBuilder json = new StringBuilder();
+	private boolean first = true;
+
+	/**
+	 * @return this writer.
+	 */
+	public JsonWriter beginObject() {
+		separate();
+		json.append('{');
+		first = true;
+		return this;
+	}
+
+	/**
+	 * @return this writer.
+	 */
+	public JsonWriter endObject() {
+		json.append('}');
+		first = false;
+		return this;
+	}
+
+	/**
+	 * @return this writer.
+	 */
+	public JsonWriter beginArray() {
+		separate();
+		json.append('[');
+		first = true;
+		return this;
+	}
+
+	/**
+	 * @return this writer.
+	 */
+	public JsonWriter endArray() {
+		json.append(']');
+		first = false;
+		return this;
+	}
+
+	/**
+	 * @param name
+	 *            name of the next member in an object.
+	 * @return this writer.
+	 */
+	public JsonWriter name(String name) {
+		separate();
+		string(name);
+		json.append(':');
+		first = true;
+		return this;
+	}
+
+	/**
+	 * @param value
+	 *            a string, may be <code>null</code>.
+	 * @return this writer.
+	 */
+	public JsonWriter value(String value) {
+		separate();
+		if (value == null) {
+			json.append("null");
+		} else {
+			string(value);
+		}
+		return this;
+	}
+
+	/**
+	 * @param value
+	 *            a number.
+	 * @return this writer.
+	 */
+	public JsonWriter value(long value) {
+		separate();
+		json.append(value);
+		return this;
+	}
+
+	/**
+	 * @param value
+	 *            a number, written with 3 decimals.
+	 * @return this writer.
+	 */
+	public JsonWriter value(double value) {
+		separate();
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			json.append("null");
+		} else {
+			json.append(String.format(Locale.ROOT, "%.3f", value));
+		}
+		return this;
+	}
+
+	/**
+	 * @param value
+	 *            a boolean.
+	 * @return this writer.
+	 */
+	public JsonWriter value(boolean value) {
+		separate();
+		json.append(value);
+		return this;
+	}
+
+	private void separate() {
+		if (!first) {
+			json.append(',');
+		}
+		first = false;
+	}
+
+	private void string(String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+
+	/**
+	 * @return the JSON document.
+	 */
+	@Override
+	public String toString() {
+		return json.toString();
+	}
+
+}
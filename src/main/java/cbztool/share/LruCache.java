@@ -0,0 +1,104 @@
+package cbztool.share;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map keeping the most recently used entries, the least recently used entry
+ * is dropped when the map is full. Not thread safe.
+ * 
+ * <p>
+ * With {@link #LruCache(int, Weigher, long)} the map is also bounded by the
+ * size of its values, the least recently used entries are dropped until the
+ * values fit. The entry just added is always kept.
+ * </p>
+ * 
+ * @param <K>
+ *            the key type.
+ * @param <V>
+ *            the value type.
+ */
+public class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int maxEntries;
+	private final Weigher<? super V> weigher;
+	private final long maxBytes;
+	private long bytes;
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of entries kept.
+	 */
+	public LruCache(int maxEntries) {
+		this(maxEntries, null, 0);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of entries kept.
+	 * @param weigher
+	 *            tells the bytes held by a value.
+	 * @param maxBytes
+	 *            maximum number of bytes held by the values.
+	 */
+	public LruCache(int maxEntries, Weigher<? super V> weigher, long maxBytes) {
+		super(16, 0.75F, true);
+		this.maxEntries = Math.max(1, maxEntries);
+		this.weigher = weigher;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the bytes held by the values, 0 if not bounded by size.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		V previous = super.put(key, value);
+		if (weigher != null) {
+			bytes -= previous == null ? 0 : weigher.weigh(previous);
+			bytes += value == null ? 0 : weigher.weigh(value);
+			trim();
+		}
+		return previous;
+	}
+
+	@Override
+	public V remove(Object key) {
+		V previous = super.remove(key);
+		if (weigher != null && previous != null) {
+			bytes -= weigher.weigh(previous);
+		}
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		bytes = 0;
+	}
+
+	private void trim() {
+		Iterator<V> eldest = values().iterator();
+		while (bytes > maxBytes && size() > 1) {
+			V value = eldest.next();
+			bytes -= value == null ? 0 : weigher.weigh(value);
+			eldest.remove();
+		}
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+		if (size() > maxEntries && weigher != null && eldest.getValue() != null) {
+			bytes -= weigher.weigh(eldest.getValue());
+		}
+		return size() > maxEntries;
+	}
+
+}
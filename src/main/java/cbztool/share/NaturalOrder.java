@@ -0,0 +1,69 @@
+package cbztool.share;
+
+import java.util.Comparator;
+
+/**
+ * Compare names the way a reader expects pages to be ordered, runs of digits
+ * are compared by their numeric value, so <code>page2.jpg</code> comes before
+ * <code>page10.jpg</code>.
+ */
+public class NaturalOrder implements Comparator<String> {
+
+	@Override
+	public int compare(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			char ca = a.charAt(i);
+			char cb = b.charAt(j);
+			if (Character.isDigit(ca) && Character.isDigit(cb)) {
+				int endA = digitsEnd(a, i);
+				int endB = digitsEnd(b, j);
+				int result = compareNumbers(a.substring(i, endA),
+						b.substring(j, endB));
+				if (result != 0) {
+					return result;
+				}
+				i = endA;
+				j = endB;
+			} else {
+				int result = Character.toLowerCase(ca)
+						- Character.toLowerCase(cb);
+				if (result != 0) {
+					return result;
+				}
+				i++;
+				j++;
+			}
+		}
+		int result = (a.length() - i) - (b.length() - j);
+		return result != 0 ? result : a.compareTo(b);
+	}
+
+	private static int digitsEnd(String s, int start) {
+		int end = start;
+		while (end < s.length() && Character.isDigit(s.charAt(end))) {
+			end++;
+		}
+		return end;
+	}
+
+	private static int compareNumbers(String a, String b) {
+		String x = stripZeros(a);
+		String y = stripZeros(b);
+		if (x.length() != y.length()) {
+			return x.length() - y.length();
+		}
+		int result = x.compareTo(y);
+		return result != 0 ? result : a.length() - b.length();
+	}
+
+	private static String stripZeros(String digits) {
+		int i = 0;
+		while (i < digits.length() - 1 && digits.charAt(i) == '0') {
+			i++;
+		}
+		return digits.substring(i);
+	}
+
+}
@@ -0,0 +1,345 @@
+package cbztool.share;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Apply a stage to values on a pool of workers, and hand the results to a sink
+ * in the same order as the values was produced.
+ *
+ * <p>
+ * One reader thread pulls values from the source, the workers apply the stage
+ * and the thread calling {@link #run(Iterator, Sink)} is the single ordered
+ * writer. At most <code>window</code> values are read but not yet written, the
+ * reader waits for the writer when the window is full.
+ * </p>
+ * 
+ * <p>
+ * With {@link #setByteLimit(Weigher, long)} the values in flight are also
+ * bounded by their size, the reader then waits until the written values have
+ * made room for the value it just read. A value larger than the limit is let
+ * through alone.
+ * </p>
+ * 
+ * <p>
+ * When the pipeline stops before the source is exhausted, values read or
+ * prepared but not given to the sink are released if they are
+ * {@link Releasable}.
+ * </p>
+ * 
+ * <p>
+ * With {@link #setExecutor(Executor)} the stage runs on a shared executor
+ * instead of a pool of its own, so several pipelines can share one pool sized
+ * for the machine, see {@link AdaptiveScheduler}. The window still bounds the
+ * values in flight of each pipeline.
+ * </p>
+ *
+ * @param <E>
+ *            the input type.
+ * @param <V>
+ *            the type produced by the stage.
+ */
+public class OrderedPipeline<E, V> {
+
+	/**
+	 * Transform a value, called from the worker threads.
+	 *
+	 * @param <E>
+	 *            the input type.
+	 * @param <V>
+	 *            the output type.
+	 */
+	public interface Stage<E, V> {
+
+		/**
+		 * @param value
+		 *            the value to transform.
+		 * @return the transformed value.
+		 */
+		V apply(E value) throws ProcessException;
+	}
+
+	/**
+	 * Receive the values from the stage in source order, called from the
+	 * thread running the pipeline.
+	 *
+	 * @param <V>
+	 *            the value type.
+	 */
+	public interface Sink<V> {
+
+		/**
+		 * @param value
+		 *            the next value.
+		 * @return <code>false</code> to stop the pipeline.
+		 */
+		boolean accept(V value) throws ProcessException;
+	}
+
+	private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+	/**
+	 * Bytes held by the values in flight.
+	 */
+	private static final class ByteBudget {
+		private final long max;
+		private long used;
+
+		ByteBudget(long max) {
+			this.max = max;
+		}
+
+		synchronized void acquire(long bytes) throws InterruptedException {
+			while (used > 0 && used + bytes > max) {
+				wait();
+			}
+			used += bytes;
+		}
+
+		synchronized void release(long bytes) {
+			used -= bytes;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * A value being processed, and the bytes it holds.
+	 */
+	private static final class Pending<V> {
+		private final Future<V> future;
+		private final Object value;
+		private final long bytes;
+
+		Pending(Future<V> future, Object value, long bytes) {
+			this.future = future;
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+
+	private final Stage<E, V> stage;
+	private final int workers;
+	private final int window;
+	private Weigher<? super E> weigher;
+	private long maxBytes;
+	private Executor executor;
+
+	/**
+	 * @param stage
+	 *            the stage to apply to each value.
+	 * @param workers
+	 *            number of worker threads.
+	 * @param window
+	 *            maximum number of values in flight.
+	 */
+	public OrderedPipeline(Stage<E, V> stage, int workers, int window) {
+		assert stage != null;
+		this.stage = stage;
+		this.workers = Math.max(1, workers);
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * Bound the values in flight by their size.
+	 * 
+	 * @param weigher
+	 *            tells the bytes held by a value until it is written.
+	 * @param maxBytes
+	 *            maximum number of bytes in flight, 0 for no limit.
+	 */
+	public void setByteLimit(Weigher<? super E> weigher, long maxBytes) {
+		this.weigher = weigher;
+		this.maxBytes = weigher == null ? 0 : maxBytes;
+	}
+
+	/**
+	 * Run the stage on a shared executor instead of on <code>workers</code>
+	 * threads of the pipeline's own.
+	 * 
+	 * @param executor
+	 *            the executor, <code>null</code> for a pool of the pipeline's
+	 *            own. It is not shut down by the pipeline, stages not yet
+	 *            started when the pipeline stops are cancelled.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Run the pipeline until the source is exhausted or the sink ask to stop.
+	 *
+	 * @param source
+	 *            the values to process, only read from the reader thread.
+	 * @param sink
+	 *            receive the values in source order.
+	 * @return the number of values given to the sink.
+	 * @throws ProcessException
+	 *             if the stage or the sink failed, the pipeline is stopped.
+	 * @throws InterruptedException
+	 *             if the writer is interrupted.
+	 */
+	public int run(final Iterator<E> source, Sink<V> sink)
+			throws ProcessException, InterruptedException {
+
+		final ExecutorService own = executor != null ? null : Executors
+				.newFixedThreadPool(workers, daemonThreads("pipeline-"
+						+ POOL_COUNT.incrementAndGet()));
+		final Executor pool = own != null ? own : executor;
+		final Semaphore permits = new Semaphore(window);
+		final ByteBudget budget = maxBytes > 0 ? new ByteBudget(maxBytes)
+				: null;
+		final BlockingQueue<Pending<V>> queue = new LinkedBlockingQueue<Pending<V>>();
+		final Pending<V> end = new Pending<V>(null, null, 0);
+		final Throwable[] readFailure = new Throwable[1];
+
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (source.hasNext()) {
+						permits.acquire();
+						final E value = source.next();
+						boolean queued = false;
+						try {
+							long bytes = 0;
+							if (budget != null && value != null) {
+								bytes = weigher.weigh(value);
+								budget.acquire(bytes);
+							}
+							FutureTask<V> future = new FutureTask<V>(
+									new Callable<V>() {
+										@Override
+										public V call() throws ProcessException {
+											return stage.apply(value);
+										}
+									});
+							queue.add(new Pending<V>(future, value, bytes));
+							queued = true;
+							pool.execute(future);
+						} finally {
+							if (!queued) {
+								release(value);
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					// the writer has stopped.
+				} catch (RuntimeException e) {
+					readFailure[0] = e;
+				} finally {
+					queue.add(end);
+				}
+			}
+		}, Thread.currentThread().getName() + "-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		int count = 0;
+		try {
+			Pending<V> next;
+			while ((next = queue.take()) != end) {
+				V value;
+				try {
+					value = next.future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof ProcessException) {
+						throw (ProcessException) e.getCause();
+					}
+					throw new ProcessException("Unable to process value",
+							e.getCause());
+				}
+				count++;
+				boolean more = sink.accept(value);
+				permits.release();
+				if (budget != null) {
+					budget.release(next.bytes);
+				}
+				if (!more) {
+					return count;
+				}
+			}
+			reader.join();
+			if (readFailure[0] != null) {
+				throw new ProcessException("Unable to read value: "
+						+ readFailure[0].getMessage(), readFailure[0]);
+			}
+			return count;
+		} finally {
+			// the source is only closed once the reader is done with it.
+			reader.interrupt();
+			reader.join();
+			try {
+				discard(queue);
+			} finally {
+				if (own != null) {
+					own.shutdownNow();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cancel the values not given to the sink, and release what they hold.
+	 * Values not yet prepared are released as they were read, values being
+	 * prepared are waited for and released as prepared.
+	 */
+	private static <V> void discard(BlockingQueue<Pending<V>> queue) {
+		Pending<V> pending;
+		while ((pending = queue.poll()) != null) {
+			if (pending.future == null) {
+				continue;
+			}
+			if (pending.future.cancel(false)) {
+				release(pending.value);
+				continue;
+			}
+			try {
+				release(pending.future.get());
+			} catch (ExecutionException e) {
+				// the stage failed, the value is its own to release.
+			} catch (InterruptedException e) {
+				// stop waiting, the remaining values are left to the
+				// garbage collector.
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private static void release(Object value) {
+		if (value instanceof Releasable) {
+			((Releasable) value).release();
+		}
+	}
+
+	/**
+	 * @param name
+	 *            prefix for the thread names.
+	 * @return factory creating daemon threads, so an abandoned pipeline never
+	 *         keeps the JVM alive.
+	 */
+	public static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+}
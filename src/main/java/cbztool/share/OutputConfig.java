@@ -2,6 +2,7 @@ package cbztool.share;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +34,28 @@ public abstract class OutputConfig<E> {
 	 */
 	public abstract boolean isAccepted(E entity);
 
+	/**
+	 * Pick the entities to process from the listing of the input, before any
+	 * of them is read. Each picked entity is still tested with
+	 * {@link #isAccepted(Object)}.
+	 * 
+	 * @param entities
+	 *            all entities of the input, in the order they are read.
+	 * @return the entities to process, by default all of them.
+	 */
+	public Iterator<E> select(Iterator<E> entities) {
+		return entities;
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #select(Iterator)} picks the
+	 *         entities, the input should then be listed before it is read so
+	 *         entities left out are never read.
+	 */
+	public boolean isSelective() {
+		return false;
+	}
+
 	/**
 	 * Initialize the output directory, creates the directory if the file does
 	 * not exist.
@@ -0,0 +1,83 @@
+package cbztool.share;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Bytes held in an array borrowed from a {@link BufferPool}, the array can be
+ * larger than the content, or in an array of its own, see
+ * {@link BufferPool#unpooled(byte[])}.
+ */
+public final class PooledBuffer implements Releasable {
+
+	private final BufferPool pool;
+	private byte[] data;
+	private final int length;
+
+	PooledBuffer(BufferPool pool, byte[] data, int length) {
+		this.pool = pool;
+		this.data = data;
+		this.length = length;
+	}
+
+	/**
+	 * @return the backing array, only the first {@link #length()} bytes are
+	 *         content.
+	 * @throws IllegalStateException
+	 *             if the buffer is released.
+	 */
+	public byte[] array() {
+		if (data == null) {
+			throw new IllegalStateException("Buffer is released");
+		}
+		return data;
+	}
+
+	/**
+	 * @return number of bytes in the buffer.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return <code>true</code> if the backing array has the exact size of the
+	 *         content.
+	 */
+	public boolean isExact() {
+		return array().length == length;
+	}
+
+	/**
+	 * @return the content in an array of exact size, the backing array is
+	 *         returned if it already has the exact size.
+	 */
+	public byte[] bytes() {
+		return isExact() ? data : Arrays.copyOf(array(), length);
+	}
+
+	/**
+	 * @return a stream reading the content.
+	 */
+	public InputStream stream() {
+		return new ByteArrayInputStream(array(), 0, length);
+	}
+
+	/**
+	 * Give the backing array back to the pool, calling this more than once has
+	 * no effect.
+	 */
+	@Override
+	public void release() {
+		byte[] released;
+		synchronized (this) {
+			released = data;
+			data = null;
+		}
+		if (released != null && pool != null) {
+			pool.release(released);
+		}
+	}
+
+}
@@ -0,0 +1,14 @@
+package cbztool.share;
+
+/**
+ * A value holding a resource that should be given back when the value is no
+ * longer needed, like a {@link PooledBuffer}.
+ */
+public interface Releasable {
+
+	/**
+	 * Give back the resource, calling this more than once has no effect.
+	 */
+	void release();
+
+}
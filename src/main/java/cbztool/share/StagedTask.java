@@ -0,0 +1,44 @@
+package cbztool.share;
+
+/**
+ * A task where processing a value is split in two stages, a prepare stage that
+ * does not need the context and can run on any thread, and a complete stage
+ * that is executed in the order the values was produced.
+ *
+ * <p>
+ * <code>process(value, context)</code> must give the same result as
+ * <code>complete(prepare(value), context)</code>.
+ * </p>
+ *
+ * @param <E>
+ *            the type to process in the task.
+ * @param <V>
+ *            the prepared type.
+ * @param <C>
+ *            the context type for this task.
+ * @param <P>
+ *            the result type for the task process.
+ */
+public interface StagedTask<E, V, C, P> extends Task<E, C, P> {
+
+	/**
+	 * Prepare a value, must be safe to call from several threads at once.
+	 *
+	 * @param value
+	 *            the value to prepare.
+	 * @return the prepared value.
+	 */
+	public V prepare(E value) throws ProcessException;
+
+	/**
+	 * Complete a prepared value in given context.
+	 *
+	 * @param value
+	 *            the prepared value.
+	 * @param context
+	 *            the context to complete the value in.
+	 * @return the result from processing the value.
+	 */
+	public P complete(V value, C context) throws ProcessException;
+
+}
@@ -0,0 +1,211 @@
+package cbztool.share;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Run tasks on an executor, without any UI.
+ * 
+ * <p>
+ * Each submitted task runs on one thread of the executor through
+ * {@link TaskRunner}, a staged task also uses the workers of its
+ * {@link OrderedPipeline}. Progress is reported to a
+ * {@link TaskRunner.Listener} and the returned {@link TaskFuture} cancels the
+ * task.
+ * </p>
+ * 
+ * <pre>
+ * TaskEngine engine = TaskEngine.platform(4);
+ * TaskFuture&lt;String&gt; run = engine.submit(task, listener);
+ * int processed = run.join();
+ * engine.shutdown();
+ * </pre>
+ */
+public class TaskEngine {
+
+	private static final Logger LOG = Logger.getLogger(TaskEngine.class
+			.getName());
+	private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+	/** Runs the tasks on the thread submitting them. */
+	private static final Executor CURRENT_THREAD = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final Executor executor;
+	private final Executor compute;
+
+	/**
+	 * @param executor
+	 *            the executor to run the tasks on.
+	 */
+	public TaskEngine(Executor executor) {
+		this(executor, null);
+	}
+
+	/**
+	 * @param executor
+	 *            the executor to run the tasks on.
+	 * @param compute
+	 *            the executor preparing the values of staged tasks, shared by
+	 *            all tasks of the engine. <code>null</code> to give each
+	 *            staged task a pool of its own.
+	 */
+	public TaskEngine(Executor executor, Executor compute) {
+		assert executor != null;
+		this.executor = executor;
+		this.compute = compute;
+	}
+
+	/**
+	 * @return an engine running each task on the thread submitting it,
+	 *         <code>submit</code> returns when the task is done.
+	 */
+	public static TaskEngine currentThread() {
+		return new TaskEngine(CURRENT_THREAD);
+	}
+
+	/**
+	 * @param compute
+	 *            the executor preparing the values of staged tasks.
+	 * @return an engine running each task on the thread submitting it, with
+	 *         the values of staged tasks prepared on <code>compute</code>.
+	 */
+	public static TaskEngine currentThread(Executor compute) {
+		return new TaskEngine(CURRENT_THREAD, compute);
+	}
+
+	/**
+	 * @param threads
+	 *            number of tasks running at once.
+	 * @return an engine running the tasks on a fixed pool of daemon threads.
+	 */
+	public static TaskEngine platform(int threads) {
+		return new TaskEngine(Executors.newFixedThreadPool(Math.max(1, threads),
+				OrderedPipeline.daemonThreads("engine-"
+						+ POOL_COUNT.incrementAndGet())));
+	}
+
+	/**
+	 * @return an engine running each task on a virtual thread, on a JDK
+	 *         without virtual threads each task gets a new daemon thread.
+	 */
+	public static TaskEngine virtual() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return new TaskEngine((ExecutorService) factory.invoke(null));
+		} catch (ReflectiveOperationException e) {
+			LOG.fine("Virtual threads not available, using platform threads");
+			return new TaskEngine(Executors.newCachedThreadPool(OrderedPipeline
+					.daemonThreads("engine-" + POOL_COUNT.incrementAndGet())));
+		}
+	}
+
+	/**
+	 * Run a task, one value at a time.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @param listener
+	 *            follows the task, may be <code>null</code>.
+	 * @return the running task.
+	 */
+	public <E, C, P> TaskFuture<P> submit(final Task<E, C, P> task,
+			TaskRunner.Listener<P> listener) {
+		TaskFuture<P> future = new TaskFuture<P>(new TaskFuture.Work<P>() {
+			@Override
+			public int run(TaskRunner.Listener<P> listener) throws Exception {
+				return TaskRunner.run(task, listener);
+			}
+		}, listener);
+		executor.execute(future);
+		return future;
+	}
+
+	/**
+	 * Run a staged task, values are prepared on <code>workers</code> threads.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @param workers
+	 *            number of threads preparing values.
+	 * @param window
+	 *            maximum number of values in flight.
+	 * @param listener
+	 *            follows the task, may be <code>null</code>.
+	 * @return the running task.
+	 */
+	public <E, V, C, P> TaskFuture<P> submit(StagedTask<E, V, C, P> task,
+			int workers, int window, TaskRunner.Listener<P> listener) {
+		return submit(task, workers, window, null, 0, listener);
+	}
+
+	/**
+	 * Run a staged task, values are prepared on <code>workers</code> threads
+	 * and the values in flight are bounded both by count and by size.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @param workers
+	 *            number of threads preparing values.
+	 * @param window
+	 *            maximum number of values in flight.
+	 * @param weigher
+	 *            tells the bytes held by a value until it is completed.
+	 * @param maxBytes
+	 *            maximum number of bytes in flight, 0 for no limit.
+	 * @param listener
+	 *            follows the task, may be <code>null</code>.
+	 * @return the running task.
+	 */
+	public <E, V, C, P> TaskFuture<P> submit(
+			final StagedTask<E, V, C, P> task, final int workers,
+			final int window, final Weigher<? super E> weigher,
+			final long maxBytes, TaskRunner.Listener<P> listener) {
+		TaskFuture<P> future = new TaskFuture<P>(new TaskFuture.Work<P>() {
+			@Override
+			public int run(TaskRunner.Listener<P> listener) throws Exception {
+				return TaskRunner.run(task, workers, window, weigher,
+						maxBytes, compute, listener);
+			}
+		}, listener);
+		executor.execute(future);
+		return future;
+	}
+
+	/**
+	 * Stop accepting tasks, running tasks are completed.
+	 */
+	public void shutdown() {
+		if (executor instanceof ExecutorService) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	/**
+	 * @param timeout
+	 *            the longest time to wait.
+	 * @param unit
+	 *            unit of the timeout.
+	 * @return <code>true</code> if all tasks are done.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		if (executor instanceof ExecutorService) {
+			return ((ExecutorService) executor).awaitTermination(timeout, unit);
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,126 @@
+package cbztool.share;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A task submitted to a {@link TaskEngine}, the result is the number of
+ * processed values.
+ * 
+ * <p>
+ * Cancelling the future stops the task before the next value, with
+ * <code>mayInterruptIfRunning</code> a task waiting for input is interrupted.
+ * The context is ended in both cases, use {@link #awaitFinished()} to wait for
+ * it.
+ * </p>
+ * 
+ * @param <P>
+ *            the result type for the task process.
+ */
+public class TaskFuture<P> extends FutureTask<Integer> {
+
+	/**
+	 * Run a task, reporting to a listener.
+	 * 
+	 * @param <P>
+	 *            the result type for the task process.
+	 */
+	interface Work<P> {
+		int run(TaskRunner.Listener<P> listener) throws Exception;
+	}
+
+	private static final class Body<P> implements Callable<Integer> {
+		private final Work<P> work;
+		private TaskFuture<P> future;
+
+		Body(Work<P> work) {
+			this.work = work;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			return work.run(future.listener);
+		}
+	}
+
+	private final AtomicInteger processed = new AtomicInteger();
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private final TaskRunner.Listener<P> listener;
+
+	TaskFuture(Work<P> work, TaskRunner.Listener<P> listener) {
+		this(new Body<P>(work), listener);
+	}
+
+	private TaskFuture(Body<P> body, final TaskRunner.Listener<P> listener) {
+		super(body);
+		body.future = this;
+		this.listener = new TaskRunner.Listener<P>() {
+			@Override
+			public boolean isCancelled() {
+				return TaskFuture.this.isCancelled()
+						|| (listener != null && listener.isCancelled());
+			}
+
+			@Override
+			public void processed(P result) {
+				processed.incrementAndGet();
+				if (listener != null) {
+					listener.processed(result);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void run() {
+		try {
+			super.run();
+		} finally {
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * @return number of values processed so far.
+	 */
+	public int getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * Wait until the task has ended its context, also after the future is
+	 * cancelled.
+	 * 
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public void awaitFinished() throws InterruptedException {
+		finished.await();
+	}
+
+	/**
+	 * Wait for the task and return the number of processed values, the error
+	 * that stopped the task is thrown as it is.
+	 * 
+	 * @return number of processed values.
+	 * @throws Exception
+	 *             the error from the task.
+	 */
+	public int join() throws Exception {
+		try {
+			return get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,434 @@
+package cbztool.share;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Record where the time goes when running tasks.
+ * 
+ * <p>
+ * Wrap a task with {@link #wrap(Task, Weigher)} or
+ * {@link #wrap(StagedTask, Weigher)} and run the wrapped task instead, every
+ * call to the task is then timed. For each stage the number of calls, the
+ * total and longest time and a latency histogram are kept, together with the
+ * bytes read per entry, the processed values per second and the peak number
+ * of bytes read but not yet processed.
+ * </p>
+ * 
+ * <p>
+ * Recording costs two calls to {@link System#nanoTime()} and a few atomic
+ * additions per call, one instance can be shared by tasks running at the same
+ * time, the numbers are then for all the tasks together. The report is written
+ * with {@link #toJson()}.
+ * </p>
+ */
+public class TaskMetrics {
+
+	/** The stages of a task. */
+	public static final String PREPARE_CONTEXT = "prepareContext",
+			READ = "read", PROCESS = "process", PREPARE = "prepare",
+			COMPLETE = "complete", END_CONTEXT = "endContext";
+
+	/** Histogram buckets, bucket i holds times below 2^i microseconds. */
+	private static final int BUCKETS = 32;
+
+	/**
+	 * Timing of one stage, can also be used alone as a latency histogram.
+	 */
+	public static final class Stage {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		/**
+		 * @param nanos
+		 *            the time of one call.
+		 */
+		public void record(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			max(maxNanos, nanos);
+			long micros = nanos / 1000;
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			histogram.incrementAndGet(Math.min(BUCKETS - 1, bucket));
+		}
+
+		/**
+		 * @return number of calls.
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return time spent in all calls, summed over all threads.
+		 */
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		/**
+		 * @return the longest call.
+		 */
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		/**
+		 * @param percent
+		 *            the percentile, 0 to 100.
+		 * @return upper bound of the histogram bucket holding the percentile,
+		 *         in microseconds.
+		 */
+		public long percentileMicros(double percent) {
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = histogram.get(i);
+				total += counts[i];
+			}
+			long rank = (long) Math.ceil(total * percent / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return 1L << i;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Write the timing as a JSON object.
+		 * 
+		 * @param json
+		 *            the writer.
+		 */
+		public void write(JsonWriter json) {
+			json.beginObject();
+			json.name("count").value(getCount());
+			json.name("totalMillis").value(getTotalNanos() / 1e6);
+			json.name("maxMillis").value(getMaxNanos() / 1e6);
+			json.name("p50Micros").value(percentileMicros(50));
+			json.name("p90Micros").value(percentileMicros(90));
+			json.name("p99Micros").value(percentileMicros(99));
+			json.name("histogram").beginArray();
+			int last = BUCKETS - 1;
+			while (last > 0 && histogram.get(last) == 0) {
+				last--;
+			}
+			for (int i = 0; i <= last; i++) {
+				json.value(histogram.get(i));
+			}
+			json.endArray();
+			json.endObject();
+		}
+	}
+
+	private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong ended = new AtomicLong();
+	private final AtomicLong tasks = new AtomicLong();
+	private final AtomicLong entries = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong maxEntryBytes = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong buffered = new AtomicLong();
+	private final AtomicLong peakBuffered = new AtomicLong();
+
+	/**
+	 * Create empty metrics.
+	 */
+	public TaskMetrics() {
+		for (String name : new String[] { PREPARE_CONTEXT, READ, PREPARE,
+				COMPLETE, PROCESS, END_CONTEXT }) {
+			stages.put(name, new Stage());
+		}
+	}
+
+	/**
+	 * @param name
+	 *            the stage name, one of the constants in this class.
+	 * @return the timing of the stage.
+	 */
+	public Stage getStage(String name) {
+		return stages.get(name);
+	}
+
+	/**
+	 * @return number of values read, summed over all tasks.
+	 */
+	public long getEntries() {
+		return entries.get();
+	}
+
+	/**
+	 * @return number of bytes read, summed over all tasks.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return number of values processed, summed over all tasks.
+	 */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * @return the most bytes read but not yet processed at any time.
+	 */
+	public long getPeakBufferedBytes() {
+		return peakBuffered.get();
+	}
+
+	/**
+	 * @return time from the first task started to the last task ended.
+	 */
+	public long getWallNanos() {
+		long start = started.get();
+		return start == 0 ? 0 : Math.max(0, ended.get() - start);
+	}
+
+	/**
+	 * @return processed values per second of wall time.
+	 */
+	public double getThroughput() {
+		long wall = getWallNanos();
+		return wall == 0 ? 0 : processed.get() * 1e9 / wall;
+	}
+
+	/**
+	 * Record calls to a task.
+	 * 
+	 * @param task
+	 *            the task to record.
+	 * @param weigher
+	 *            tells the bytes in each value, <code>null</code> if unknown.
+	 * @return a task calling <code>task</code>.
+	 */
+	public <E, C, P> Task<E, C, P> wrap(Task<E, C, P> task, Weigher<E> weigher) {
+		return new Metered<E, C, P>(task, weigher);
+	}
+
+	/**
+	 * Record calls to a staged task.
+	 * 
+	 * @param task
+	 *            the task to record.
+	 * @param weigher
+	 *            tells the bytes in each value, <code>null</code> if unknown.
+	 * @return a staged task calling <code>task</code>.
+	 */
+	public <E, V, C, P> StagedTask<E, V, C, P> wrap(
+			StagedTask<E, V, C, P> task, Weigher<E> weigher) {
+		return new MeteredStaged<E, V, C, P>(task, weigher);
+	}
+
+	/**
+	 * @return the metrics as a JSON document.
+	 */
+	public String toJson() {
+		JsonWriter json = new JsonWriter();
+		write(json);
+		return json.toString();
+	}
+
+	/**
+	 * Write the metrics as a JSON object.
+	 * 
+	 * @param json
+	 *            the writer.
+	 */
+	public void write(JsonWriter json) {
+		json.beginObject();
+		json.name("tasks").value(tasks.get());
+		json.name("wallMillis").value(getWallNanos() / 1e6);
+		json.name("entries").value(getEntries());
+		json.name("processed").value(getProcessed());
+		json.name("perSecond").value(getThroughput());
+		json.name("bytesRead").value(getBytes());
+		json.name("bytesPerEntry").value(
+				getEntries() == 0 ? 0 : getBytes() / getEntries());
+		json.name("maxEntryBytes").value(maxEntryBytes.get());
+		json.name("peakBufferedBytes").value(getPeakBufferedBytes());
+		json.name("stages").beginObject();
+		for (Map.Entry<String, Stage> stage : stages.entrySet()) {
+			if (stage.getValue().getCount() > 0) {
+				json.name(stage.getKey());
+				stage.getValue().write(json);
+			}
+		}
+		json.endObject();
+		json.endObject();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d processed in %d ms, %.1f/s, %d bytes read",
+				getProcessed(),
+				TimeUnit.NANOSECONDS.toMillis(getWallNanos()),
+				getThroughput(), getBytes());
+	}
+
+	private static void max(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())
+				&& !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	private void record(String stage, long start) {
+		stages.get(stage).record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records a plain task, values are processed in the order they are read
+	 * so the weight of the value read first is released first.
+	 */
+	private class Metered<E, C, P> implements Task<E, C, P> {
+		private final Task<E, C, P> task;
+		private final Weigher<E> weigher;
+		private final Queue<Long> pending = new ConcurrentLinkedQueue<Long>();
+
+		Metered(Task<E, C, P> task, Weigher<E> weigher) {
+			assert task != null;
+			this.task = task;
+			this.weigher = weigher;
+		}
+
+		@Override
+		public C prepareContext() throws InitializationException {
+			long start = System.nanoTime();
+			started.compareAndSet(0, start);
+			tasks.incrementAndGet();
+			try {
+				return task.prepareContext();
+			} finally {
+				record(PREPARE_CONTEXT, start);
+			}
+		}
+
+		@Override
+		public Iterator<E> iterate(C context) {
+			final Iterator<E> values = task.iterate(context);
+			return new Iterator<E>() {
+				@Override
+				public boolean hasNext() {
+					long start = System.nanoTime();
+					try {
+						return values.hasNext();
+					} finally {
+						record(READ, start);
+					}
+				}
+
+				@Override
+				public E next() {
+					long start = System.nanoTime();
+					E value;
+					try {
+						value = values.next();
+					} finally {
+						record(READ, start);
+					}
+					read(value);
+					return value;
+				}
+
+				@Override
+				public void remove() {
+					values.remove();
+				}
+			};
+		}
+
+		private void read(E value) {
+			long weight = weigher == null || value == null ? 0 : weigher
+					.weigh(value);
+			entries.incrementAndGet();
+			bytes.addAndGet(weight);
+			max(maxEntryBytes, weight);
+			pending.add(weight);
+			max(peakBuffered, buffered.addAndGet(weight));
+		}
+
+		void processed() {
+			processed.incrementAndGet();
+			Long weight = pending.poll();
+			if (weight != null) {
+				buffered.addAndGet(-weight);
+			}
+		}
+
+		@Override
+		public P process(E value, C context) throws ProcessException {
+			long start = System.nanoTime();
+			try {
+				return task.process(value, context);
+			} finally {
+				record(PROCESS, start);
+				processed();
+			}
+		}
+
+		@Override
+		public void endContext(C context) {
+			long start = System.nanoTime();
+			try {
+				task.endContext(context);
+			} finally {
+				record(END_CONTEXT, start);
+				Long weight;
+				while ((weight = pending.poll()) != null) {
+					buffered.addAndGet(-weight);
+				}
+				max(ended, System.nanoTime());
+			}
+		}
+	}
+
+	/**
+	 * Records a staged task, values are completed in the order they are read.
+	 */
+	private class MeteredStaged<E, V, C, P> extends Metered<E, C, P> implements
+			StagedTask<E, V, C, P> {
+		private final StagedTask<E, V, C, P> task;
+
+		MeteredStaged(StagedTask<E, V, C, P> task, Weigher<E> weigher) {
+			super(task, weigher);
+			this.task = task;
+		}
+
+		@Override
+		public V prepare(E value) throws ProcessException {
+			long start = System.nanoTime();
+			try {
+				return task.prepare(value);
+			} finally {
+				record(PREPARE, start);
+			}
+		}
+
+		@Override
+		public P complete(V value, C context) throws ProcessException {
+			long start = System.nanoTime();
+			try {
+				return task.complete(value, context);
+			} finally {
+				record(COMPLETE, start);
+				processed();
+			}
+		}
+	}
+
+}
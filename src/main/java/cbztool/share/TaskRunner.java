@@ -0,0 +1,200 @@
+package cbztool.share;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Run a {@link Task} through its life cycle, <code>prepareContext</code>,
+ * <code>iterate</code>, <code>process</code> for each value and
+ * <code>endContext</code>.
+ *
+ * <p>
+ * The task is only used through its interface, so a task can be wrapped, for
+ * example by {@link TaskMetrics#wrap(StagedTask, Weigher)}, before it is run.
+ * </p>
+ */
+public final class TaskRunner {
+
+	private static final Logger LOG = Logger.getLogger(TaskRunner.class
+			.getName());
+
+	/**
+	 * Follow a running task.
+	 *
+	 * @param <P>
+	 *            the task result type.
+	 */
+	public interface Listener<P> {
+
+		/**
+		 * @return <code>true</code> to stop the task before the next value.
+		 */
+		boolean isCancelled();
+
+		/**
+		 * Called for each processed value, in order.
+		 *
+		 * @param result
+		 *            the result from processing the value.
+		 */
+		void processed(P result);
+	}
+
+	private TaskRunner() {
+	}
+
+	/**
+	 * Run a task on the current thread.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param listener
+	 *            follows the task.
+	 * @return the number of processed values.
+	 */
+	public static <E, C, P> int run(Task<E, C, P> task, Listener<P> listener)
+			throws InitializationException, ProcessException {
+		C context = task.prepareContext();
+		int count = 0;
+		boolean done = false;
+		try {
+			Iterator<E> values = task.iterate(context);
+			while (!listener.isCancelled() && values.hasNext()) {
+				listener.processed(task.process(values.next(), context));
+				count++;
+			}
+			done = true;
+		} finally {
+			end(task, context, done);
+		}
+		return count;
+	}
+
+	/**
+	 * Run a staged task, values are prepared on <code>workers</code> threads
+	 * and completed on the current thread in order, see
+	 * {@link OrderedPipeline}.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param workers
+	 *            number of threads preparing values.
+	 * @param window
+	 *            maximum number of values in flight.
+	 * @param listener
+	 *            follows the task.
+	 * @return the number of processed values.
+	 */
+	public static <E, V, C, P> int run(StagedTask<E, V, C, P> task,
+			int workers, int window, Listener<P> listener)
+			throws InitializationException, ProcessException,
+			InterruptedException {
+		return run(task, workers, window, null, 0, listener);
+	}
+
+	/**
+	 * Run a staged task, values are prepared on <code>workers</code> threads
+	 * and completed on the current thread in order. The values in flight are
+	 * bounded both by count and by size.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @param workers
+	 *            number of threads preparing values.
+	 * @param window
+	 *            maximum number of values in flight.
+	 * @param weigher
+	 *            tells the bytes held by a value until it is completed.
+	 * @param maxBytes
+	 *            maximum number of bytes in flight, 0 for no limit.
+	 * @param listener
+	 *            follows the task.
+	 * @return the number of processed values.
+	 */
+	public static <E, V, C, P> int run(StagedTask<E, V, C, P> task,
+			int workers, int window, Weigher<? super E> weigher,
+			long maxBytes, Listener<P> listener)
+			throws InitializationException, ProcessException,
+			InterruptedException {
+		return run(task, workers, window, weigher, maxBytes, null, listener);
+	}
+
+	/**
+	 * Run a staged task, values are prepared on a shared executor and
+	 * completed on the current thread in order.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @param workers
+	 *            number of threads preparing values when there is no shared
+	 *            executor.
+	 * @param window
+	 *            maximum number of values in flight.
+	 * @param weigher
+	 *            tells the bytes held by a value until it is completed.
+	 * @param maxBytes
+	 *            maximum number of bytes in flight, 0 for no limit.
+	 * @param compute
+	 *            the executor preparing the values, <code>null</code> for
+	 *            <code>workers</code> threads of the task's own.
+	 * @param listener
+	 *            follows the task.
+	 * @return the number of processed values.
+	 */
+	public static <E, V, C, P> int run(final StagedTask<E, V, C, P> task,
+			int workers, int window, Weigher<? super E> weigher,
+			long maxBytes, Executor compute, final Listener<P> listener)
+			throws InitializationException, ProcessException,
+			InterruptedException {
+		final C context = task.prepareContext();
+		OrderedPipeline<E, V> pipeline = new OrderedPipeline<E, V>(
+				new OrderedPipeline.Stage<E, V>() {
+					@Override
+					public V apply(E value) throws ProcessException {
+						return task.prepare(value);
+					}
+				}, workers, window);
+		pipeline.setByteLimit(weigher, maxBytes);
+		pipeline.setExecutor(compute);
+
+		int count;
+		boolean done = false;
+		try {
+			count = pipeline.run(task.iterate(context),
+					new OrderedPipeline.Sink<V>() {
+						@Override
+						public boolean accept(V value)
+								throws ProcessException {
+							if (listener.isCancelled()) {
+								return false;
+							}
+							listener.processed(task.complete(value, context));
+							return true;
+						}
+					});
+			done = true;
+		} finally {
+			end(task, context, done);
+		}
+		return count;
+	}
+
+	/**
+	 * End the context, after a failure errors from ending the context are
+	 * logged so they don't hide the first error.
+	 */
+	private static <C> void end(Task<?, C, ?> task, C context, boolean done) {
+		if (done) {
+			task.endContext(context);
+			return;
+		}
+		try {
+			task.endContext(context);
+		} catch (RuntimeException e) {
+			LOG.log(Level.FINE, "Unable to end context after failure", e);
+		}
+	}
+
+}
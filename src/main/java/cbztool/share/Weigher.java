@@ -0,0 +1,18 @@
+package cbztool.share;
+
+/**
+ * Tells the size of a value, in bytes.
+ *
+ * @param <E>
+ *            the value type.
+ */
+public interface Weigher<E> {
+
+	/**
+	 * @param value
+	 *            the value.
+	 * @return the number of bytes the value holds.
+	 */
+	long weigh(E value);
+
+}
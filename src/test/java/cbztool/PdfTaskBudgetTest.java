@@ -0,0 +1,136 @@
+package cbztool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cbztool.bench.SyntheticCbz;
+import cbztool.share.TaskEngine;
+import cbztool.share.TaskRunner;
+
+/**
+ * Check that with {@link PdfConfig#getMaxInFlightBytes()} the heap retained by
+ * {@link PdfTask} stays flat as the archive gets longer.
+ */
+public class PdfTaskBudgetTest {
+    private static final int SHORT = 8;
+    private static final int LONG = 200;
+
+    /** Heap the long archive may retain beyond the short one. */
+    private static final long MARGIN = 2 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private TaskEngine engine;
+    private File shortArchive;
+    private File longArchive;
+    private long budget;
+
+    @Before
+    public void setUp() throws IOException {
+	engine = TaskEngine.platform(2);
+	shortArchive = archive(SHORT);
+	longArchive = archive(LONG);
+	// Room for three pages while the window alone would allow sixteen.
+	budget = 3 * Math.max(largestEntry(shortArchive),
+		largestEntry(longArchive));
+    }
+
+    @After
+    public void tearDown() {
+	engine.shutdown();
+    }
+
+    @Test
+    public void retainedHeapDoesNotGrowWithPages() throws Exception {
+	// Load the classes and fill the static caches before measuring.
+	retainedHeap(shortArchive, SHORT);
+
+	long shortHeap = retainedHeap(shortArchive, SHORT);
+	long longHeap = retainedHeap(longArchive, LONG);
+	assertTrue("retained " + longHeap + " bytes for " + LONG
+		+ " pages against " + shortHeap + " for " + SHORT,
+		longHeap <= shortHeap + MARGIN);
+    }
+
+    private File archive(int pages) throws IOException {
+	SyntheticCbz cbz = new SyntheticCbz(pages);
+	cbz.setPages(pages);
+	cbz.setSize(800, 1200);
+	cbz.setFormat(SyntheticCbz.Format.PNG);
+	cbz.setMethod(ZipEntry.STORED);
+	File archive = folder.newFile(pages + ".cbz");
+	cbz.write(archive.toPath());
+	return archive;
+    }
+
+    /**
+     * Convert the archive with the budget and collect the garbage after each
+     * written page.
+     *
+     * @return the most heap in use after a collection during the conversion,
+     *         less the heap in use before it.
+     */
+    private long retainedHeap(File archive, final int pages) throws Exception {
+	PdfConfig config = new PdfConfig();
+	config.setWorkers(2);
+	config.setWindow(16);
+	config.setMaxInFlightBytes(budget);
+
+	File pdf = new File(folder.getRoot(), pages + ".pdf");
+	final long before = usedAfterGc();
+	final long[] peak = new long[1];
+	final int[] written = new int[1];
+	new PdfTask(archive.getPath(), pdf.getPath(), config).submit(engine,
+		new TaskRunner.Listener<String>() {
+		    @Override
+		    public boolean isCancelled() {
+			return false;
+		    }
+
+		    @Override
+		    public void processed(String result) {
+			written[0]++;
+			peak[0] = Math.max(peak[0], usedAfterGc() - before);
+		    }
+		}).join();
+
+	assertEquals(pages, written[0]);
+	assertTrue(pdf.delete());
+	return peak[0];
+    }
+
+    private long usedAfterGc() {
+	memory.gc();
+	return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long largestEntry(File archive) throws IOException {
+	long largest = 0;
+	ZipFile zip = new ZipFile(archive);
+	try {
+	    Enumeration<? extends ZipEntry> entries = zip.entries();
+	    while (entries.hasMoreElements()) {
+		largest = Math.max(largest, entries.nextElement().getSize());
+	    }
+	} finally {
+	    zip.close();
+	}
+	return largest;
+    }
+}